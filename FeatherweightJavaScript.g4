@@ -9,6 +9,8 @@ WHILE: 'while';
 FUNCTION: 'function';
 VAR: 'var';
 PRINT: 'print';
+SPAWN: 'spawn';
+AWAIT: 'await';
 
 // Literals
 INT: [1-9][0-9]* | '0';
@@ -72,7 +74,13 @@ compare: addSub ( (LT | LTE | GT | GTE | EQ) addSub)*;
 
 addSub: mulDiv ( (ADD | SUB) mulDiv)*;
 
-mulDiv: callExpr ( (MUL | DIV | MOD) callExpr)*;
+mulDiv: unary ( (MUL | DIV | MOD) unary)*;
+
+// spawn f(x) starts a call on another thread, await waits for its value
+unary:
+	SPAWN callExpr	# spawnExpr
+	| AWAIT unary	# awaitExpr
+	| callExpr		# plainExpr;
 
 // Functions 
 callExpr: primary (LPAREN argsList? RPAREN)*;
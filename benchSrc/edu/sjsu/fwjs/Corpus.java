@@ -0,0 +1,44 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
+
+/**
+ * The scripts the benchmarks run, read from benchCorpus/ (or the directory
+ * in the fwjs.corpus system property).
+ */
+class Corpus {
+    static final String DIR = System.getProperty("fwjs.corpus", "benchCorpus");
+
+    static String load(String name) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(DIR, name + ".fwjs"));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lexes, parses and builds the Expression tree, like Interpreter.main.
+     */
+    static Expression parse(String source) {
+        FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(CharStreams.fromString(source));
+        FeatherweightJavaScriptParser parser = new FeatherweightJavaScriptParser(new CommonTokenStream(lexer));
+        ParseTree tree = parser.prog();
+        return new ExpressionBuilderVisitor().visit(tree);
+    }
+
+    /**
+     * Everything Interpreter.main does before running the program, see
+     * Interpreter.compile.
+     */
+    static Expression compile(String source) throws IOException {
+        return Interpreter.compile(source.getBytes(StandardCharsets.UTF_8), true, new ExpressionFactory());
+    }
+}
@@ -0,0 +1,52 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to run an already parsed and resolved program in a fresh global
+ * environment. The tree is shared between invocations, so specialized
+ * nodes, inline caches and JIT code warm up like in a long running script.
+ * Printed output goes through a BufferedSink into a null stream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EvalBenchmark {
+
+    @Param({ "fib", "loops", "lists", "scopes", "print" })
+    public String workload;
+
+    @Param({ "tree", "vm" })
+    public String engine;
+
+    private Expression prog;
+    private OutputSink sink;
+
+    @Setup
+    public void prepare() throws IOException {
+        prog = Corpus.compile(Corpus.load(workload));
+        sink = new BufferedSink(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Value run() {
+        return Interpreter.run(prog, engine, new Environment(new ExecutionContext(sink)));
+    }
+}
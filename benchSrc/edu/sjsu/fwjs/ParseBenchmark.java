@@ -0,0 +1,44 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to go from source text to the Expression tree:
+ * FeatherweightJavaScriptParser.prog plus ExpressionBuilderVisitor.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParseBenchmark {
+
+    @Param({ "fib", "loops", "lists", "scopes", "print" })
+    public String workload;
+
+    private String source;
+
+    @Setup
+    public void load() throws IOException {
+        source = Corpus.load(workload);
+    }
+
+    @Benchmark
+    public Expression parse() {
+        return Corpus.parse(source);
+    }
+}
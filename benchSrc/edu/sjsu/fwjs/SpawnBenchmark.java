@@ -0,0 +1,52 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of benchCorpus/spawn.fwjs, the same loop split into more and
+ * more spawned calls. With one task nothing is spawned; on n cores the
+ * score should grow until tasks reaches n. Limit the cores the forked JVM
+ * sees with -jvmArgsAppend -XX:ActiveProcessorCount=n to compare.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SpawnBenchmark {
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int tasks;
+
+    @Param({ "tree", "vm" })
+    public String engine;
+
+    private Expression prog;
+    private OutputSink sink;
+
+    @Setup
+    public void prepare() throws IOException {
+        prog = Corpus.compile("var tasks = " + tasks + ";\n" + Corpus.load("spawn"));
+        sink = new BufferedSink(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Value run() {
+        return Interpreter.run(prog, engine, new Environment(new ExecutionContext(sink)));
+    }
+}
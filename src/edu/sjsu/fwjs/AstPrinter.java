@@ -0,0 +1,137 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+
+/**
+ * Prints an expression tree, one node per line, indented by depth.
+ * Used by the -dump-ast option of the Interpreter.
+ */
+public class AstPrinter {
+
+    public static String print(Expression exp) {
+        StringBuilder sb = new StringBuilder();
+        print(exp, 0, sb);
+        return sb.toString();
+    }
+
+    private static void print(Expression exp, int indent, StringBuilder sb) {
+        for (int i = 0; i < indent; i++) {
+            sb.append("  ");
+        }
+        if (exp == null) {
+            sb.append("Empty\n");
+            return;
+        }
+        if (exp instanceof ValueExpr) {
+            sb.append("Value ").append(((ValueExpr) exp).getValue()).append('\n');
+        } else if (exp instanceof VarExpr) {
+            sb.append("Var ").append(((VarExpr) exp).getVarName()).append('\n');
+        } else if (exp instanceof GlobalVarExpr) {
+            sb.append("GlobalVar ").append(((GlobalVarExpr) exp).getVarName()).append('\n');
+        } else if (exp instanceof LocalVarExpr) {
+            LocalVarExpr v = (LocalVarExpr) exp;
+            sb.append("LocalVar ").append(v.getVarName()).append(refs(v.getKinds(), v.getSlots()));
+            sb.append(v.checksGlobal() ? " global\n" : "\n");
+        } else if (exp instanceof PrintExpr) {
+            sb.append("Print\n");
+            print(((PrintExpr) exp).getExp(), indent + 1, sb);
+        } else if (exp instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) exp;
+            sb.append("BinOp ").append(b.getOp()).append('\n');
+            print(b.getE1(), indent + 1, sb);
+            print(b.getE2(), indent + 1, sb);
+        } else if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            sb.append("If\n");
+            print(i.getCond(), indent + 1, sb);
+            print(i.getThn(), indent + 1, sb);
+            print(i.getEls(), indent + 1, sb);
+        } else if (exp instanceof CountingLoopExpr) {
+            CountingLoopExpr c = (CountingLoopExpr) exp;
+            sb.append("CountingLoop ").append(c.describe());
+            if (c.getHoisted().length > 0) {
+                sb.append(" hoists ").append(Arrays.toString(c.getHoistSlots()));
+            }
+            sb.append('\n');
+            // the hoisted expressions, then the body
+            for (BinOpExpr h : c.getHoisted()) {
+                print(h, indent + 1, sb);
+            }
+            print(c.getBody(), indent + 1, sb);
+        } else if (exp instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) exp;
+            sb.append("While\n");
+            print(w.getCond(), indent + 1, sb);
+            print(w.getBody(), indent + 1, sb);
+        } else if (exp instanceof SeqExpr) {
+            sb.append("Seq\n");
+            print(((SeqExpr) exp).getE1(), indent + 1, sb);
+            print(((SeqExpr) exp).getE2(), indent + 1, sb);
+        } else if (exp instanceof VarDeclExpr) {
+            sb.append("VarDecl ").append(((VarDeclExpr) exp).getVarName()).append('\n');
+            print(((VarDeclExpr) exp).getExp(), indent + 1, sb);
+        } else if (exp instanceof LocalDeclExpr) {
+            LocalDeclExpr d = (LocalDeclExpr) exp;
+            sb.append("LocalDecl ").append(d.getVarName()).append(" [").append(d.isCell() ? "cell:" : "")
+                    .append(d.getSlot()).append("]\n");
+            print(d.getExp(), indent + 1, sb);
+        } else if (exp instanceof AssignExpr) {
+            sb.append("Assign ").append(((AssignExpr) exp).getVarName()).append('\n');
+            print(((AssignExpr) exp).getE(), indent + 1, sb);
+        } else if (exp instanceof LocalAssignExpr) {
+            LocalAssignExpr a = (LocalAssignExpr) exp;
+            sb.append("LocalAssign ").append(a.getVarName()).append(refs(a.getKinds(), a.getSlots())).append('\n');
+            print(a.getE(), indent + 1, sb);
+        } else if (exp instanceof FunctionDeclExpr) {
+            FunctionDeclExpr f = (FunctionDeclExpr) exp;
+            sb.append("Function ").append(f.getParams());
+            if (f.getLine() >= 0 || f.getName() != null) {
+                sb.append(' ').append(f.describe());
+            }
+            if (f.getFrameSize() >= 0) {
+                sb.append(" frame=").append(f.getFrameSize());
+                if (f.getCaptureKinds().length > 0) {
+                    sb.append(" captures").append(refs(f.getCaptureKinds(), f.getCaptureIndices()));
+                }
+            }
+            sb.append('\n');
+            print(f.getBody(), indent + 1, sb);
+        } else if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            sb.append(app.isTail() ? "TailCall\n" : "Call\n");
+            print(app.getF(), indent + 1, sb);
+            for (Expression arg : app.getArgs()) {
+                print(arg, indent + 1, sb);
+            }
+        } else if (exp instanceof SpawnExpr) {
+            SpawnExpr sp = (SpawnExpr) exp;
+            sb.append("Spawn\n");
+            print(sp.getF(), indent + 1, sb);
+            for (Expression arg : sp.getArgs()) {
+                print(arg, indent + 1, sb);
+            }
+        } else if (exp instanceof AwaitExpr) {
+            sb.append("Await\n");
+            print(((AwaitExpr) exp).getExp(), indent + 1, sb);
+        } else {
+            sb.append(exp.getClass().getSimpleName()).append('\n');
+        }
+    }
+
+    // (depth:slot) candidates, innermost first
+    private static final String[] KINDS = { "slot", "cell", "captured", "captured-cell" };
+
+    /**
+     * References as kind:index, see Environment.lookup.
+     */
+    private static String refs(int[] kinds, int[] indices) {
+        StringBuilder sb = new StringBuilder(" [");
+        for (int i = 0; i < kinds.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(KINDS[kinds[i]]).append(':').append(indices[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,159 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A BufferedSink whose full buffers are written by a thread of its own, so
+ * the script does not wait for a slow stream (a pipe, a terminal) until it
+ * is more than a few buffers ahead.
+ *
+ * flush returns when everything printed before it has been written. An
+ * error of the stream is thrown by the next print or flush. close flushes
+ * and stops the writer thread.
+ */
+public class AsyncSink implements OutputSink, AutoCloseable {
+    private static final int QUEUED_BUFFERS = 8;
+
+    private ChunkQueue queue;
+    private BufferedSink buffer;
+
+    public AsyncSink(OutputStream out) {
+        this(out, BufferedSink.DEFAULT_SIZE);
+    }
+
+    public AsyncSink(OutputStream out, int size) {
+        this.queue = new ChunkQueue(out);
+        this.buffer = new BufferedSink(queue, size);
+    }
+
+    @Override
+    public void print(Value v) {
+        queue.check();
+        buffer.print(v);
+    }
+
+    @Override
+    public void flush() {
+        buffer.flush();
+        queue.check();
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            queue.close();
+        }
+    }
+
+    /**
+     * The stream the BufferedSink drains into: chunks are copied onto a
+     * bounded queue, and a daemon thread writes them to the real stream.
+     */
+    private static class ChunkQueue extends OutputStream implements Runnable {
+        private static final byte[] STOP = new byte[0];
+
+        private OutputStream out;
+        private BlockingQueue<Object> chunks = new ArrayBlockingQueue<Object>(QUEUED_BUFFERS);
+        private Thread writer;
+        private volatile IOException error;
+        private volatile boolean closed;
+
+        ChunkQueue(OutputStream out) {
+            this.out = out;
+            this.writer = new Thread(this, "fwjs-output");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            put(Arrays.copyOfRange(b, off, off + len));
+        }
+
+        /**
+         * Waits until the writer thread has written and flushed everything
+         * queued so far.
+         */
+        @Override
+        public void flush() {
+            CountDownLatch done = new CountDownLatch(1);
+            put(done);
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                put(STOP);
+            }
+        }
+
+        void check() {
+            IOException e = error;
+            if (e != null) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void put(Object chunk) {
+            if (closed && chunk != STOP) {
+                throw new IllegalStateException("Output is closed");
+            }
+            try {
+                chunks.put(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Object chunk;
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (chunk == STOP) {
+                    return;
+                }
+                try {
+                    if (chunk instanceof CountDownLatch) {
+                        if (error == null) {
+                            out.flush();
+                        }
+                        ((CountDownLatch) chunk).countDown();
+                    } else if (error == null) {
+                        out.write((byte[]) chunk);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                    if (chunk instanceof CountDownLatch) {
+                        ((CountDownLatch) chunk).countDown();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The operation a BinOpExpr performs, specialized on the operand types
+ * the site has seen so far.
+ *
+ * Every BinOpExpr starts out UNINITIALIZED. Its first execution looks at
+ * the operands and installs a node for exactly those types, for example
+ * an int-only add, so later executions skip the instanceof chain and the
+ * switch in BinOpExpr.apply. When a specialized node gets operands of
+ * other types, the site is rewritten to the POLYMORPHIC node, which just
+ * calls apply, and stays that way.
+ *
+ * Int nodes read their operands with evaluateInt, so in a nested
+ * expression like a * b + c only the outermost result is boxed, and a
+ * comparison used as a condition is never boxed at all.
+ *
+ * When TypeInference proves the operand types of a site, the site gets
+ * its node before the program runs. The node still checks the operands,
+ * so this saves the first execution, not the checks.
+ *
+ * Nodes keep no per-site state, so one instance of each is shared by all
+ * sites.
+ */
+abstract class BinOpNode {
+
+    abstract Value execute(BinOpExpr site, Environment env);
+
+    int executeInt(BinOpExpr site, Environment env) throws UnexpectedResultException {
+        return expectInt(execute(site, env));
+    }
+
+    boolean executeBoolean(BinOpExpr site, Environment env) throws UnexpectedResultException {
+        return expectBoolean(execute(site, env));
+    }
+
+    /**
+     * Picks the node for the operand types seen at a site.
+     */
+    static BinOpNode forOperands(Op op, Value a, Value b) {
+        if (a instanceof IntVal && b instanceof IntVal) {
+            return forInts(op);
+        }
+        if (op == Op.EQ && a instanceof BoolVal && b instanceof BoolVal) {
+            return BOOL_EQ;
+        }
+        return POLYMORPHIC;
+    }
+
+    /**
+     * The node for two int operands.
+     */
+    static BinOpNode forInts(Op op) {
+        return INT_NODES[op.ordinal()];
+    }
+
+    static int expectInt(Value v) throws UnexpectedResultException {
+        if (v instanceof IntVal) {
+            return ((IntVal) v).toInt();
+        }
+        throw new UnexpectedResultException(v);
+    }
+
+    static boolean expectBoolean(Value v) throws UnexpectedResultException {
+        if (v instanceof BoolVal) {
+            return ((BoolVal) v).toBoolean();
+        }
+        throw new UnexpectedResultException(v);
+    }
+
+    static final BinOpNode UNINITIALIZED = new BinOpNode() {
+        @Override
+        Value execute(BinOpExpr site, Environment env) {
+            Value a = site.getE1().evaluate(env);
+            Value b = site.getE2().evaluate(env);
+            site.specialize(a, b);
+            return BinOpExpr.apply(site.getOp(), a, b);
+        }
+    };
+
+    static final BinOpNode POLYMORPHIC = new BinOpNode() {
+        @Override
+        Value execute(BinOpExpr site, Environment env) {
+            Value a = site.getE1().evaluate(env);
+            Value b = site.getE2().evaluate(env);
+            return BinOpExpr.apply(site.getOp(), a, b);
+        }
+    };
+
+    static final BinOpNode BOOL_EQ = new BinOpNode() {
+        @Override
+        Value execute(BinOpExpr site, Environment env) {
+            try {
+                return BoolVal.of(executeBoolean(site, env));
+            } catch (UnexpectedResultException e) {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        boolean executeBoolean(BinOpExpr site, Environment env) throws UnexpectedResultException {
+            boolean x;
+            try {
+                x = site.getE1().evaluateBoolean(env);
+            } catch (UnexpectedResultException e) {
+                return expectBoolean(site.generalize(e.getResult(), site.getE2().evaluate(env)));
+            }
+            boolean y;
+            try {
+                y = site.getE2().evaluateBoolean(env);
+            } catch (UnexpectedResultException e) {
+                return expectBoolean(site.generalize(BoolVal.of(x), e.getResult()));
+            }
+            return x == y;
+        }
+    };
+
+    /**
+     * Arithmetic on two ints.
+     */
+    abstract static class IntArith extends BinOpNode {
+        @Override
+        final Value execute(BinOpExpr site, Environment env) {
+            try {
+                return IntVal.of(executeInt(site, env));
+            } catch (UnexpectedResultException e) {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        final int executeInt(BinOpExpr site, Environment env) throws UnexpectedResultException {
+            int x;
+            try {
+                x = site.getE1().evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return expectInt(site.generalize(e.getResult(), site.getE2().evaluate(env)));
+            }
+            int y;
+            try {
+                y = site.getE2().evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return expectInt(site.generalize(IntVal.of(x), e.getResult()));
+            }
+            return compute(x, y);
+        }
+
+        abstract int compute(int num1, int num2);
+    }
+
+    /**
+     * Comparison of two ints.
+     */
+    abstract static class IntCompare extends BinOpNode {
+        @Override
+        final Value execute(BinOpExpr site, Environment env) {
+            try {
+                return BoolVal.of(executeBoolean(site, env));
+            } catch (UnexpectedResultException e) {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        final boolean executeBoolean(BinOpExpr site, Environment env) throws UnexpectedResultException {
+            int x;
+            try {
+                x = site.getE1().evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return expectBoolean(site.generalize(e.getResult(), site.getE2().evaluate(env)));
+            }
+            int y;
+            try {
+                y = site.getE2().evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return expectBoolean(site.generalize(IntVal.of(x), e.getResult()));
+            }
+            return compare(x, y);
+        }
+
+        abstract boolean compare(int num1, int num2);
+    }
+
+    // indexed by Op ordinal
+    private static final BinOpNode[] INT_NODES = {
+        new IntArith() { // ADD
+            int compute(int num1, int num2) {
+                return num1 + num2;
+            }
+        },
+        new IntArith() { // SUBTRACT
+            int compute(int num1, int num2) {
+                return num1 - num2;
+            }
+        },
+        new IntArith() { // MULTIPLY
+            int compute(int num1, int num2) {
+                return num1 * num2;
+            }
+        },
+        new IntArith() { // DIVIDE
+            int compute(int num1, int num2) {
+                if (num2 == 0) {
+                    throw new RuntimeException("Division by zero");
+                }
+                return num1 / num2;
+            }
+        },
+        new IntArith() { // MOD
+            int compute(int num1, int num2) {
+                return num1 % num2;
+            }
+        },
+        new IntCompare() { // GT
+            boolean compare(int num1, int num2) {
+                return num1 > num2;
+            }
+        },
+        new IntCompare() { // GE
+            boolean compare(int num1, int num2) {
+                return num1 >= num2;
+            }
+        },
+        new IntCompare() { // LT
+            boolean compare(int num1, int num2) {
+                return num1 < num2;
+            }
+        },
+        new IntCompare() { // LE
+            boolean compare(int num1, int num2) {
+                return num1 <= num2;
+            }
+        },
+        new IntCompare() { // EQ
+            boolean compare(int num1, int num2) {
+                return num1 == num2;
+            }
+        },
+    };
+}
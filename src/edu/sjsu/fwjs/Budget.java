@@ -0,0 +1,78 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Limits how long a run may take: an amount of fuel, an optional deadline,
+ * and cancellation from another thread. One unit of fuel is used at every
+ * function call and every loop iteration; when something runs out the run
+ * stops with a BudgetExceededException.
+ *
+ * Only the fuel is counted on every step. The clock and the cancel flag are
+ * checked every CHECK_INTERVAL steps, so a deadline or cancel takes effect
+ * a little late but costs almost nothing.
+ *
+ * Compiled code from the JitCompiler has no checks, so functions are not
+ * compiled while a run has a budget.
+ */
+public class Budget {
+    static final int CHECK_INTERVAL = 1024;
+
+    private long fuel = Long.MAX_VALUE;
+    private long deadline; // System.nanoTime() value, only if hasDeadline
+    private boolean hasDeadline;
+    private volatile boolean cancelled;
+    private int countdown = CHECK_INTERVAL;
+
+    /**
+     * Sets the number of calls and loop iterations the run may make.
+     */
+    public Budget setFuel(long fuel) {
+        this.fuel = fuel;
+        return this;
+    }
+
+    /**
+     * Sets a deadline the given number of milliseconds from now.
+     */
+    public Budget setTimeout(long millis) {
+        this.deadline = System.nanoTime() + millis * 1000000L;
+        this.hasDeadline = true;
+        return this;
+    }
+
+    /**
+     * Asks the run to stop. Can be called from any thread.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public long getFuel() {
+        return this.fuel;
+    }
+
+    /**
+     * Uses one unit of fuel, called at loop back-edges and function entries.
+     */
+    void tick() {
+        if (--fuel < 0) {
+            fuel = 0;
+            throw new BudgetExceededException(BudgetExceededException.Reason.FUEL);
+        }
+        if (--countdown == 0) {
+            countdown = CHECK_INTERVAL;
+            check();
+        }
+    }
+
+    /**
+     * Checks the deadline and the cancel flag right away.
+     */
+    void check() {
+        if (cancelled) {
+            throw new BudgetExceededException(BudgetExceededException.Reason.CANCELLED);
+        }
+        if (hasDeadline && System.nanoTime() - deadline >= 0) {
+            throw new BudgetExceededException(BudgetExceededException.Reason.TIME);
+        }
+    }
+}
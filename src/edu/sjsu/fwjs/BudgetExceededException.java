@@ -0,0 +1,31 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Thrown when a run uses up its Budget.
+ */
+public class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        FUEL("Out of fuel"),
+        TIME("Time limit exceeded"),
+        CANCELLED("Cancelled");
+
+        private String message;
+
+        Reason(String message) {
+            this.message = message;
+        }
+    }
+
+    private Reason reason;
+
+    public BudgetExceededException(Reason reason) {
+        super(reason.message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return this.reason;
+    }
+}
@@ -0,0 +1,127 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+
+/**
+ * Collects printed values in a large byte buffer and writes it to an
+ * OutputStream when it is full or flushed, instead of one synchronized,
+ * flushing write per value. Ints and booleans are written as bytes
+ * directly.
+ *
+ * Methods are synchronized, so one sink can be shared by several runs,
+ * like STDOUT is.
+ */
+public class BufferedSink implements OutputSink {
+    static final int DEFAULT_SIZE = 1 << 16;
+
+    static final BufferedSink STDOUT = new BufferedSink(null, DEFAULT_SIZE);
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                STDOUT.flush();
+            } catch (UncheckedIOException e) {
+                // nothing left to report it to
+            }
+        }));
+    }
+
+    private static final byte[] NEWLINE = ValueText.NEWLINE.getBytes(Charset.defaultCharset());
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+    private OutputStream out; // null means System.out
+    private byte[] buf;
+    private int count;
+
+    public BufferedSink(OutputStream out) {
+        this(out, DEFAULT_SIZE);
+    }
+
+    public BufferedSink(OutputStream out, int size) {
+        this.out = out;
+        this.buf = new byte[Math.max(size, 32)];
+    }
+
+    @Override
+    public synchronized void print(Value v) {
+        if (v instanceof IntVal) {
+            writeInt(((IntVal) v).toInt());
+        } else if (v instanceof BoolVal) {
+            write(((BoolVal) v).toBoolean() ? TRUE : FALSE);
+        } else {
+            write(v.toString().getBytes(Charset.defaultCharset()));
+        }
+        write(NEWLINE);
+    }
+
+    @Override
+    public synchronized void flush() {
+        drain();
+        try {
+            target().flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeInt(int i) {
+        if (buf.length - count < 11) {
+            drain();
+        }
+        long n = i; // so that -Integer.MIN_VALUE fits
+        if (n < 0) {
+            buf[count++] = '-';
+            n = -n;
+        }
+        int end = count + digits(n);
+        for (int p = end - 1; p >= count; p--) {
+            buf[p] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        count = end;
+    }
+
+    private static int digits(long n) {
+        int d = 1;
+        while (n >= 10) {
+            n /= 10;
+            d++;
+        }
+        return d;
+    }
+
+    private void write(byte[] b) {
+        if (b.length > buf.length - count) {
+            drain();
+            if (b.length > buf.length) {
+                writeOut(b, b.length);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buf, count, b.length);
+        count += b.length;
+    }
+
+    private void drain() {
+        if (count > 0) {
+            writeOut(buf, count);
+            count = 0;
+        }
+    }
+
+    private void writeOut(byte[] b, int len) {
+        try {
+            target().write(b, 0, len);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private OutputStream target() {
+        return out != null ? out : System.out;
+    }
+}
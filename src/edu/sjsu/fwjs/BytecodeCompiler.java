@@ -0,0 +1,289 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Compiles a resolved Expression tree to bytecode for the VirtualMachine.
+ * Every function body reachable from the program gets its own Chunk.
+ * Nodes without an opcode are kept in the constant pool and run by the
+ * tree-walker through EVAL, so the VM can run any program.
+ */
+public class BytecodeCompiler {
+    // FunctionDeclExpr compares by identity; weak keys let the chunks of
+    // functions that can no longer be called go away when statements are
+    // compiled one at a time (Interpreter.runStream)
+    private Map<FunctionDeclExpr, Chunk> functions = new WeakHashMap<FunctionDeclExpr, Chunk>();
+
+    /**
+     * Compiles top-level code, and the functions it declares.
+     */
+    public Chunk compile(Expression prog) {
+        Builder b = new Builder();
+        b.emitExpr(prog);
+        b.emit(Chunk.RETURN);
+        return b.toChunk();
+    }
+
+    /**
+     * The chunk for the body of a function, or null if it was not compiled.
+     */
+    Chunk chunkFor(FunctionDeclExpr decl) {
+        return functions.get(decl);
+    }
+
+    private void compileFunction(FunctionDeclExpr decl) {
+        if (functions.containsKey(decl) || decl.getFrameSize() < 0) {
+            // already done, or an unresolved function that needs named frames
+            return;
+        }
+        Builder b = new Builder();
+        b.emitExpr(decl.getBody());
+        b.emit(Chunk.RETURN);
+        functions.put(decl, b.toChunk());
+    }
+
+    /**
+     * Code and constants of the chunk being compiled.
+     */
+    private class Builder {
+        private int[] code = new int[64];
+        private int length;
+        private List<Object> constants = new ArrayList<Object>();
+        private Map<Object, Integer> constantIndex = new HashMap<Object, Integer>();
+        private int depth;
+        private int maxDepth;
+
+        Chunk toChunk() {
+            return new Chunk(Arrays.copyOf(code, length), constants.toArray(), maxDepth);
+        }
+
+        void emit(int word) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = word;
+        }
+
+        void emit(int opcode, int operand) {
+            emit(opcode);
+            emit(operand);
+        }
+
+        /**
+         * Emits a jump with a placeholder target and returns the
+         * position of the target, to be filled in by patch.
+         */
+        int emitJump(int opcode) {
+            emit(opcode, -1);
+            return length - 1;
+        }
+
+        void patch(int at) {
+            code[at] = length;
+        }
+
+        int constant(Object c) {
+            // nodes are shared by identity, values and names by equality
+            Object key = (c instanceof Expression) ? new IdentityKey(c) : c;
+            Integer k = constantIndex.get(key);
+            if (k == null) {
+                k = constants.size();
+                constants.add(c);
+                constantIndex.put(key, k);
+            }
+            return k;
+        }
+
+        void push(int n) {
+            depth += n;
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+
+        void emitExpr(Expression exp) {
+            if (exp instanceof CountingLoopExpr) {
+                // the VM runs the loop on ints as it is
+                exp = ((CountingLoopExpr) exp).getLoop();
+            }
+            if (exp == null) {
+                // empty block
+                emit(Chunk.PUSH_NONE);
+                push(1);
+            } else if (exp instanceof ValueExpr) {
+                emit(Chunk.CONST, constant(((ValueExpr) exp).getValue()));
+                push(1);
+            } else if (exp instanceof VarExpr) {
+                emit(Chunk.LOAD_NAME, constant(((VarExpr) exp).getVarName()));
+                push(1);
+            } else if (exp instanceof GlobalVarExpr) {
+                emit(Chunk.LOAD_GLOBAL, constant(((GlobalVarExpr) exp).getVarName()));
+                push(1);
+            } else if (exp instanceof LocalVarExpr) {
+                emitLocalVar((LocalVarExpr) exp);
+            } else if (exp instanceof PrintExpr) {
+                emitExpr(((PrintExpr) exp).getExp());
+                emit(Chunk.PRINT);
+            } else if (exp instanceof BinOpExpr) {
+                BinOpExpr b = (BinOpExpr) exp;
+                emitExpr(b.getE1());
+                emitExpr(b.getE2());
+                emit(Chunk.ADD + b.getOp().ordinal());
+                push(-1);
+            } else if (exp instanceof IfExpr) {
+                IfExpr i = (IfExpr) exp;
+                int toElse = emitCondition(i.getCond(), Chunk.JUMP_IF_FALSE, Chunk.CMP_JUMP_IF_FALSE);
+                emitExpr(i.getThn());
+                int toEnd = emitJump(Chunk.JUMP);
+                push(-1);
+                patch(toElse);
+                if (i.getEls() != null) {
+                    emitExpr(i.getEls());
+                } else {
+                    emit(Chunk.PUSH_NULL);
+                    push(1);
+                }
+                patch(toEnd);
+            } else if (exp instanceof WhileExpr) {
+                WhileExpr w = (WhileExpr) exp;
+                // the value of the loop is the value of the last iteration
+                emit(Chunk.PUSH_NONE);
+                push(1);
+                int start = length;
+                int toEnd = emitCondition(w.getCond(), Chunk.LOOP_IF_FALSE, Chunk.CMP_LOOP_IF_FALSE);
+                emit(Chunk.POP);
+                push(-1);
+                emitExpr(w.getBody());
+                emit(Chunk.JUMP, start);
+                patch(toEnd);
+            } else if (exp instanceof SeqExpr) {
+                emitExpr(((SeqExpr) exp).getE1());
+                emit(Chunk.POP);
+                push(-1);
+                emitExpr(((SeqExpr) exp).getE2());
+            } else if (exp instanceof VarDeclExpr) {
+                VarDeclExpr d = (VarDeclExpr) exp;
+                emitExpr(d.getExp());
+                emit(Chunk.DECLARE_NAME, constant(d.getVarName()));
+            } else if (exp instanceof AssignExpr) {
+                AssignExpr a = (AssignExpr) exp;
+                emitExpr(a.getE());
+                emit(Chunk.ASSIGN_NAME, constant(a));
+            } else if (exp instanceof LocalDeclExpr) {
+                LocalDeclExpr d = (LocalDeclExpr) exp;
+                emitExpr(d.getExp());
+                emit(d.isCell() ? Chunk.DECLARE_CELL : Chunk.DECLARE_SLOT, d.getSlot());
+            } else if (exp instanceof LocalAssignExpr) {
+                emitExpr(((LocalAssignExpr) exp).getE());
+                emit(Chunk.ASSIGN_LOCAL, constant(exp));
+            } else if (exp instanceof FunctionDeclExpr) {
+                compileFunction((FunctionDeclExpr) exp);
+                emit(Chunk.CLOSURE, constant(exp));
+                push(1);
+            } else if (exp instanceof FunctionAppExpr) {
+                FunctionAppExpr app = (FunctionAppExpr) exp;
+                emitExpr(app.getF());
+                for (Expression arg : app.getArgs()) {
+                    emitExpr(arg);
+                }
+                emit(app.isTail() ? Chunk.TAIL_CALL : Chunk.CALL, app.getArgs().size());
+                push(-app.getArgs().size());
+            } else if (exp instanceof SpawnExpr) {
+                SpawnExpr sp = (SpawnExpr) exp;
+                emitExpr(sp.getF());
+                for (Expression arg : sp.getArgs()) {
+                    emitExpr(arg);
+                }
+                emit(Chunk.SPAWN, sp.getArgs().size());
+                push(-sp.getArgs().size());
+            } else if (exp instanceof AwaitExpr) {
+                emitExpr(((AwaitExpr) exp).getExp());
+                emit(Chunk.AWAIT);
+            } else {
+                emit(Chunk.EVAL, constant(exp));
+                push(1);
+            }
+        }
+
+        /**
+         * Emits a condition and the jump taken when it is false.
+         * Comparisons are fused with the jump.
+         */
+        int emitCondition(Expression cond, int jump, int cmpJump) {
+            if (cond instanceof BinOpExpr && isComparison(((BinOpExpr) cond).getOp())) {
+                BinOpExpr b = (BinOpExpr) cond;
+                emitExpr(b.getE1());
+                emitExpr(b.getE2());
+                emit(cmpJump, b.getOp().ordinal());
+                emit(-1);
+                push(-2);
+                return length - 1;
+            }
+            emitExpr(cond);
+            push(-1);
+            return emitJump(jump);
+        }
+
+        /**
+         * Tries each candidate frame in turn, then the global scope.
+         */
+        void emitLocalVar(LocalVarExpr v) {
+            int[] kinds = v.getKinds();
+            int[] slots = v.getSlots();
+            int n = kinds.length;
+            if (!v.checksGlobal()) {
+                // the last candidate is a parameter
+                n--;
+            }
+            int[] toEnd = new int[n];
+            for (int i = 0; i < n; i++) {
+                emit(Chunk.TRY_SLOT);
+                emit(kinds[i]);
+                emit(slots[i]);
+                emit(-1);
+                toEnd[i] = length - 1;
+            }
+            if (v.checksGlobal()) {
+                emit(Chunk.LOAD_GLOBAL, constant(v.getVarName()));
+            } else {
+                emit(Chunk.LOAD_SLOT);
+                emit(kinds[n]);
+                emit(slots[n]);
+            }
+            push(1);
+            for (int i = 0; i < n; i++) {
+                patch(toEnd[i]);
+            }
+        }
+    }
+
+    private static boolean isComparison(Op op) {
+        return op == Op.LT || op == Op.LE || op == Op.GT || op == Op.GE || op == Op.EQ;
+    }
+
+    /**
+     * Wraps a node so the constant pool shares it by identity.
+     */
+    private static class IdentityKey {
+        private Object o;
+
+        IdentityKey(Object o) {
+            this.o = o;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return (that instanceof IdentityKey) && ((IdentityKey) that).o == this.o;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(o);
+        }
+    }
+}
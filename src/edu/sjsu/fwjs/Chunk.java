@@ -0,0 +1,89 @@
+package edu.sjsu.fwjs;
+
+/**
+ * A unit of compiled bytecode: the top-level program or one function body.
+ * Instructions and their operands are stored inline in one int array;
+ * operands that are not small ints refer to the constant pool.
+ */
+class Chunk {
+    // push constants[k]
+    static final int CONST = 0;
+    // push a fresh FWJS null
+    static final int PUSH_NULL = 1;
+    // push a Java null (the value of a while loop whose body never ran)
+    static final int PUSH_NONE = 2;
+    static final int POP = 3;
+
+    // name-based variables of the global scope, operand: constant index of the name
+    static final int LOAD_NAME = 4;
+    static final int LOAD_GLOBAL = 5;
+    static final int DECLARE_NAME = 6;
+    // k: constants[k] is the AssignExpr
+    static final int ASSIGN_NAME = 7;
+
+    // kind index: push the variable, which must be set (a parameter);
+    // kind and index are a reference as in Environment.lookup
+    static final int LOAD_SLOT = 8;
+    // kind index target: if the variable is set, push it and jump to target
+    static final int TRY_SLOT = 9;
+    // slot: declare in the current frame
+    static final int DECLARE_SLOT = 10;
+    // slot: declare in the cell of a slot of the current frame
+    static final int DECLARE_CELL = 33;
+    // k: constants[k] is the LocalAssignExpr describing the candidate frames
+    static final int ASSIGN_LOCAL = 11;
+
+    static final int PRINT = 12;
+
+    // binary operators, same order as Op
+    static final int ADD = 13;
+    static final int SUBTRACT = 14;
+    static final int MULTIPLY = 15;
+    static final int DIVIDE = 16;
+    static final int MOD = 17;
+    static final int GT = 18;
+    static final int GE = 19;
+    static final int LT = 20;
+    static final int LE = 21;
+    static final int EQ = 22;
+
+    // target
+    static final int JUMP = 23;
+    // target: pop the condition of an if, jump when false
+    static final int JUMP_IF_FALSE = 24;
+    // target: pop the condition of a while, jump when false
+    static final int LOOP_IF_FALSE = 25;
+
+    // op target: compare the two operands on the stack (op is an Op ordinal)
+    // and jump when false, without materializing the BoolVal
+    static final int CMP_JUMP_IF_FALSE = 30;
+    static final int CMP_LOOP_IF_FALSE = 31;
+
+    // k: constants[k] is the FunctionDeclExpr
+    static final int CLOSURE = 26;
+    // argc: callee is below the arguments on the stack
+    static final int CALL = 27;
+    // argc: a call in tail position, replaces the current frame
+    static final int TAIL_CALL = 32;
+    static final int RETURN = 28;
+    // argc: like CALL, but the call is started on another thread and its
+    // FutureVal pushed, see Spawner
+    static final int SPAWN = 34;
+    // replace the value on top with its result if it is a FutureVal
+    static final int AWAIT = 35;
+
+    // k: constants[k] is an Expression the compiler has no opcode for,
+    // it is evaluated by the tree-walker in the current frame
+    static final int EVAL = 29;
+
+    final int[] code;
+    final Object[] constants;
+    // maximum operand stack depth, so the VM can size its stack up front
+    final int maxStack;
+
+    Chunk(int[] code, Object[] constants, int maxStack) {
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+    }
+}
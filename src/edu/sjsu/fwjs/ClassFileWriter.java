@@ -0,0 +1,308 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a JVM class file writer for the JIT: a constant pool,
+ * methods with a Code attribute, and int-only instructions with labels.
+ *
+ * Classes are written with major version 49 so the verifier infers the
+ * types itself and no StackMapTable has to be computed.
+ */
+class ClassFileWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // opcodes used by the JIT
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int ISTORE = 0x36;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int IXOR = 0x82;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+
+    private List<byte[]> pool = new ArrayList<byte[]>();
+    private Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private List<byte[]> methods = new ArrayList<byte[]>();
+    private int thisClass;
+    private int superClass;
+    private int[] interfaces;
+
+    ClassFileWriter(String name, String superName, String... interfaceNames) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    private int entry(String key, byte[] bytes) {
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            pool.add(bytes);
+            index = pool.size(); // constant pool indexes start at 1
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+
+    int utf8(String s) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(1);
+            out.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return entry("U" + s, bytes.toByteArray());
+    }
+
+    int classRef(String internalName) {
+        return entry("C" + internalName, u1u2(7, utf8(internalName)));
+    }
+
+    int intConst(int value) {
+        return entry("I" + value, new byte[] { 3, (byte) (value >>> 24), (byte) (value >>> 16),
+                (byte) (value >>> 8), (byte) value });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int nameAndType = entry("N" + name + descriptor, u1u2u2(12, utf8(name), utf8(descriptor)));
+        return entry("M" + owner + "." + name + descriptor, u1u2u2(10, classRef(owner), nameAndType));
+    }
+
+    /**
+     * Self-referencing method, resolved against this class.
+     */
+    int ownMethodRef(String name, String descriptor) {
+        int nameAndType = entry("N" + name + descriptor, u1u2u2(12, utf8(name), utf8(descriptor)));
+        return entry("M." + name + descriptor, u1u2u2(10, thisClass, nameAndType));
+    }
+
+    Code method(int access, String name, String descriptor, int maxLocals) {
+        return new Code(access, utf8(name), utf8(descriptor), maxLocals);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(pool.size() + 1);
+            for (byte[] e : pool) {
+                out.write(e);
+            }
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] m : methods) {
+                out.write(m);
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] u1u2(int tag, int a) {
+        return new byte[] { (byte) tag, (byte) (a >> 8), (byte) a };
+    }
+
+    private static byte[] u1u2u2(int tag, int a, int b) {
+        return new byte[] { (byte) tag, (byte) (a >> 8), (byte) a, (byte) (b >> 8), (byte) b };
+    }
+
+    /**
+     * A jump target. Branches to a label that is not placed yet are
+     * patched when it is.
+     */
+    static class Label {
+        private int position = -1;
+        private List<int[]> uses = new ArrayList<int[]>(); // {branch start, offset position}
+    }
+
+    /**
+     * The body of one method. Tracks the operand stack depth as
+     * instructions are added to compute max_stack.
+     */
+    class Code {
+        private int access;
+        private int name;
+        private int descriptor;
+        private int maxLocals;
+        private byte[] code = new byte[128];
+        private int length;
+        private int depth;
+        private int maxDepth;
+
+        Code(int access, int name, int descriptor, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = maxLocals;
+        }
+
+        private void u1(int b) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) b;
+        }
+
+        private void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+
+        /**
+         * Records the effect of the last instruction on the stack depth.
+         */
+        void stack(int delta) {
+            depth += delta;
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+
+        void insn(int opcode, int stackDelta) {
+            u1(opcode);
+            stack(stackDelta);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(intConst(value));
+            }
+            stack(1);
+        }
+
+        void load(int opcode, int local) {
+            u1(opcode);
+            u1(local);
+            stack(1);
+        }
+
+        void store(int local) {
+            u1(ISTORE);
+            u1(local);
+            stack(-1);
+        }
+
+        void invoke(int opcode, int methodRef, int stackDelta) {
+            u1(opcode);
+            u2(methodRef);
+            stack(stackDelta);
+        }
+
+        void jump(int opcode, Label target) {
+            int start = length;
+            u1(opcode);
+            if (target.position >= 0) {
+                u2(target.position - start);
+            } else {
+                target.uses.add(new int[] { start, length });
+                u2(0);
+            }
+            if (opcode == IFEQ || opcode == IFNE) {
+                stack(-1);
+            } else if (opcode != GOTO) {
+                stack(-2);
+            }
+        }
+
+        void place(Label label) {
+            label.position = length;
+            for (int[] use : label.uses) {
+                int offset = length - use[0];
+                code[use[1]] = (byte) (offset >> 8);
+                code[use[1] + 1] = (byte) offset;
+            }
+            label.uses.clear();
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        /**
+         * Resets the tracked depth, for code after an unconditional jump.
+         */
+        void setDepth(int depth) {
+            this.depth = depth;
+        }
+
+        void end() {
+            if (length > 65535) {
+                throw new IllegalStateException("method too large");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + length);
+                out.writeShort(maxDepth);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(code, 0, length);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methods.add(bytes.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A while loop of a function that counts a local up or down by a constant:
+ *
+ *   while (i < n) { ...; i = i + 1; }
+ *
+ * with <, <=, > or >=, a bound that is a constant or a local the loop
+ * does not change, and an increment (or decrement, for > and >=) as the
+ * last statement. The Resolver builds it from the resolved WhileExpr.
+ *
+ * The counter is kept in a Java int, so the condition and the increment
+ * allocate nothing and touch the frame only when the body reads the
+ * counter. Subexpressions of the body that only combine ints the loop does
+ * not change, like a * b, are computed once before the loop into spare
+ * frame slots.
+ *
+ * All of this holds only if the counter, the bound and the hoisted
+ * operands are declared ints when the loop starts; otherwise the original
+ * loop runs. Loops whose body assigns the counter or the bound anywhere
+ * else are not specialized at all. Counter and bound must be plain slots
+ * of the frame, never cells, so no closure can change them either.
+ *
+ * The VM and the JIT compile the original loop, which they already run
+ * on ints.
+ */
+class CountingLoopExpr implements Expression {
+    private WhileExpr loop;
+    private Op cmp;
+    private int counterSlot;
+    private int boundSlot; // -1 when the bound is the constant
+    private int bound;
+    private int step;
+    private Expression body; // without the increment, hoisted parts replaced
+    private boolean readsCounter;
+    private BinOpExpr[] hoisted;
+    private int[] hoistSlots;
+    private int[] operandSlots; // locals the hoisted expressions read
+
+    private CountingLoopExpr(WhileExpr loop) {
+        this.loop = loop;
+    }
+
+    WhileExpr getLoop() {
+        return this.loop;
+    }
+
+    Expression getBody() {
+        return this.body;
+    }
+
+    BinOpExpr[] getHoisted() {
+        return this.hoisted;
+    }
+
+    int[] getHoistSlots() {
+        return this.hoistSlots;
+    }
+
+    /**
+     * A short description of the loop shape for AstPrinter, like
+     * "[slot:2] LT [slot:1] step 1".
+     */
+    String describe() {
+        String b = boundSlot < 0 ? Integer.toString(bound) : "[slot:" + boundSlot + "]";
+        return "[slot:" + counterSlot + "] " + cmp.name() + " " + b + " step " + step;
+    }
+
+    public Value evaluate(Environment env) {
+        Value c = env.getSlot(counterSlot);
+        if (!(c instanceof IntVal) || !operandsReady(env)) {
+            return loop.evaluate(env);
+        }
+        int i = ((IntVal) c).toInt();
+        int n = boundSlot < 0 ? bound : ((IntVal) env.getSlot(boundSlot)).toInt();
+        for (int k = 0; k < hoisted.length; k++) {
+            env.setSlot(hoistSlots[k], hoisted[k].evaluate(env));
+        }
+        Budget budget = env.getContext().getBudget();
+        FunctionProfile profile = loop.getProfile();
+        boolean ran = false;
+        while (test(i, n)) {
+            if (budget != null) {
+                budget.tick();
+            }
+            if (profile != null) {
+                // back-edge counter for the JIT
+                profile.loops++;
+            }
+            if (readsCounter) {
+                env.setSlot(counterSlot, IntVal.of(i));
+            }
+            if (body != null) {
+                body.evaluate(env);
+            }
+            i += step;
+            ran = true;
+        }
+        Value last = IntVal.of(i);
+        env.setSlot(counterSlot, last);
+        // the value of the last body run is the value of the increment
+        return ran ? last : null;
+    }
+
+    private boolean operandsReady(Environment env) {
+        if (boundSlot >= 0 && !(env.getSlot(boundSlot) instanceof IntVal)) {
+            return false;
+        }
+        for (int slot : operandSlots) {
+            if (!(env.getSlot(slot) instanceof IntVal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean test(int i, int n) {
+        switch (cmp) {
+            case LT:
+                return i < n;
+            case LE:
+                return i <= n;
+            case GT:
+                return i > n;
+            default:
+                return i >= n;
+        }
+    }
+
+    /**
+     * Builds the specialized loop for a resolved loop, or returns null if
+     * it does not have the shape. Spare slots for hoisted values are taken
+     * from slots, which declares a fresh name for each.
+     */
+    static CountingLoopExpr of(WhileExpr w, SlotAllocator slots) {
+        if (!(w.getCond() instanceof BinOpExpr)) {
+            return null;
+        }
+        BinOpExpr cond = (BinOpExpr) w.getCond();
+        Op cmp = cond.getOp();
+        if (cmp != Op.LT && cmp != Op.LE && cmp != Op.GT && cmp != Op.GE) {
+            return null;
+        }
+        int counter = ownSlot(cond.getE1());
+        if (counter < 0) {
+            return null;
+        }
+
+        // the increment is the last statement of the body
+        Expression rest = null;
+        Expression last = w.getBody();
+        if (last instanceof SeqExpr) {
+            rest = ((SeqExpr) last).getE1();
+            last = ((SeqExpr) last).getE2();
+        }
+        if (!(last instanceof LocalAssignExpr)) {
+            return null;
+        }
+        LocalAssignExpr inc = (LocalAssignExpr) last;
+        if (inc.getKinds()[0] != Environment.SLOT || inc.getSlots()[0] != counter
+                || !(inc.getE() instanceof BinOpExpr)) {
+            return null;
+        }
+        int step = step((BinOpExpr) inc.getE(), counter);
+        boolean up = cmp == Op.LT || cmp == Op.LE;
+        if (step == 0 || (step > 0) != up) {
+            return null;
+        }
+
+        CountingLoopExpr c = new CountingLoopExpr(w);
+        c.cmp = cmp;
+        c.counterSlot = counter;
+        c.step = step;
+        Expression b = cond.getE2();
+        if (b instanceof ValueExpr && ((ValueExpr) b).getValue() instanceof IntVal) {
+            c.boundSlot = -1;
+            c.bound = ((IntVal) ((ValueExpr) b).getValue()).toInt();
+        } else {
+            c.boundSlot = ownSlot(b);
+            if (c.boundSlot < 0 || c.boundSlot == counter) {
+                return null;
+            }
+        }
+
+        BitSet written = new BitSet();
+        if (!writes(rest, written) || written.get(counter) || (c.boundSlot >= 0 && written.get(c.boundSlot))) {
+            return null;
+        }
+        c.readsCounter = reads(rest, counter);
+
+        Hoister h = new Hoister(written, counter, slots);
+        c.body = h.rewrite(rest);
+        c.hoisted = h.hoisted.toArray(new BinOpExpr[0]);
+        c.hoistSlots = new int[h.slots.size()];
+        for (int k = 0; k < c.hoistSlots.length; k++) {
+            c.hoistSlots[k] = h.slots.get(k);
+        }
+        c.operandSlots = h.operands.stream().toArray();
+        return c;
+    }
+
+    /**
+     * The slot of a variable reference whose first candidate is a plain
+     * slot of the current frame, or -1. Once that slot is declared, the
+     * reference always reads it.
+     */
+    private static int ownSlot(Expression exp) {
+        if (!(exp instanceof LocalVarExpr)) {
+            return -1;
+        }
+        LocalVarExpr v = (LocalVarExpr) exp;
+        return v.getKinds()[0] == Environment.SLOT ? v.getSlots()[0] : -1;
+    }
+
+    /**
+     * The constant added by an increment i + c, c + i or i - c, or 0.
+     */
+    private static int step(BinOpExpr e, int counter) {
+        Expression a = e.getE1();
+        Expression b = e.getE2();
+        if (e.getOp() == Op.ADD && ownSlot(b) == counter) {
+            Expression t = a;
+            a = b;
+            b = t;
+        }
+        if (ownSlot(a) != counter || !(b instanceof ValueExpr)
+                || !(((ValueExpr) b).getValue() instanceof IntVal)) {
+            return 0;
+        }
+        int k = ((IntVal) ((ValueExpr) b).getValue()).toInt();
+        if (e.getOp() == Op.ADD) {
+            return k;
+        }
+        if (e.getOp() == Op.SUBTRACT && k != Integer.MIN_VALUE) {
+            return -k;
+        }
+        return 0;
+    }
+
+    /**
+     * Collects the own slots a body declares or assigns. Returns false for
+     * a node this pass does not know, since it might write anything.
+     * Nested functions can only change cells, so they are skipped.
+     */
+    private static boolean writes(Expression exp, BitSet written) {
+        if (exp == null || exp instanceof ValueExpr || exp instanceof LocalVarExpr
+                || exp instanceof GlobalVarExpr || exp instanceof FunctionDeclExpr) {
+            return true;
+        }
+        if (exp instanceof LocalDeclExpr) {
+            written.set(((LocalDeclExpr) exp).getSlot());
+            return writes(((LocalDeclExpr) exp).getExp(), written);
+        }
+        if (exp instanceof LocalAssignExpr) {
+            LocalAssignExpr a = (LocalAssignExpr) exp;
+            int[] kinds = a.getKinds();
+            for (int i = 0; i < kinds.length; i++) {
+                if (kinds[i] == Environment.SLOT) {
+                    written.set(a.getSlots()[i]);
+                }
+            }
+            return writes(a.getE(), written);
+        }
+        List<Expression> children = children(exp);
+        if (children == null) {
+            return false;
+        }
+        for (Expression child : children) {
+            if (!writes(child, written)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean reads(Expression exp, int slot) {
+        if (exp instanceof LocalVarExpr) {
+            LocalVarExpr v = (LocalVarExpr) exp;
+            return v.getKinds()[0] == Environment.SLOT && v.getSlots()[0] == slot;
+        }
+        if (exp instanceof LocalDeclExpr) {
+            return reads(((LocalDeclExpr) exp).getExp(), slot);
+        }
+        if (exp instanceof LocalAssignExpr) {
+            return reads(((LocalAssignExpr) exp).getE(), slot);
+        }
+        List<Expression> children = children(exp);
+        if (children != null) {
+            for (Expression child : children) {
+                if (reads(child, slot)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The operands of the control and operator nodes, or null for other
+     * nodes.
+     */
+    private static List<Expression> children(Expression exp) {
+        List<Expression> c = new ArrayList<Expression>();
+        if (exp instanceof PrintExpr) {
+            c.add(((PrintExpr) exp).getExp());
+        } else if (exp instanceof BinOpExpr) {
+            c.add(((BinOpExpr) exp).getE1());
+            c.add(((BinOpExpr) exp).getE2());
+        } else if (exp instanceof IfExpr) {
+            c.add(((IfExpr) exp).getCond());
+            c.add(((IfExpr) exp).getThn());
+            c.add(((IfExpr) exp).getEls());
+        } else if (exp instanceof WhileExpr) {
+            c.add(((WhileExpr) exp).getCond());
+            c.add(((WhileExpr) exp).getBody());
+        } else if (exp instanceof CountingLoopExpr) {
+            c.add(((CountingLoopExpr) exp).getLoop());
+        } else if (exp instanceof SeqExpr) {
+            c.add(((SeqExpr) exp).getE1());
+            c.add(((SeqExpr) exp).getE2());
+        } else if (exp instanceof FunctionAppExpr) {
+            c.add(((FunctionAppExpr) exp).getF());
+            c.addAll(((FunctionAppExpr) exp).getArgs());
+        } else if (exp instanceof SpawnExpr) {
+            // the spawned call, like any call, can only change cells
+            c.add(((SpawnExpr) exp).getF());
+            c.addAll(((SpawnExpr) exp).getArgs());
+        } else if (exp instanceof AwaitExpr) {
+            c.add(((AwaitExpr) exp).getExp());
+        } else {
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * Hands out spare slots of the frame being resolved.
+     */
+    interface SlotAllocator {
+        int newSlot();
+    }
+
+    /**
+     * Replaces the largest int expressions of a body that do not depend on
+     * the loop with reads of spare slots.
+     */
+    private static class Hoister {
+        private BitSet written;
+        private int counter;
+        private SlotAllocator allocator;
+        private List<BinOpExpr> hoisted = new ArrayList<BinOpExpr>();
+        private List<Integer> slots = new ArrayList<Integer>();
+        private BitSet operands = new BitSet();
+
+        Hoister(BitSet written, int counter, SlotAllocator allocator) {
+            this.written = written;
+            this.counter = counter;
+            this.allocator = allocator;
+        }
+
+        Expression rewrite(Expression exp) {
+            if (exp instanceof BinOpExpr) {
+                BinOpExpr b = (BinOpExpr) exp;
+                if (isInvariant(b) && hasVariable(b)) {
+                    int slot = allocator.newSlot();
+                    hoisted.add(b);
+                    slots.add(slot);
+                    collectOperands(b);
+                    return new LocalVarExpr("%hoisted" + hoisted.size(), new int[] { Environment.SLOT },
+                            new int[] { slot }, false);
+                }
+                Expression e1 = rewrite(b.getE1());
+                Expression e2 = rewrite(b.getE2());
+                return e1 == b.getE1() && e2 == b.getE2() ? exp : new BinOpExpr(b.getOp(), e1, e2);
+            }
+            if (exp instanceof PrintExpr) {
+                Expression e = rewrite(((PrintExpr) exp).getExp());
+                return e == ((PrintExpr) exp).getExp() ? exp : new PrintExpr(e);
+            }
+            if (exp instanceof IfExpr) {
+                IfExpr i = (IfExpr) exp;
+                Expression cond = rewrite(i.getCond());
+                Expression thn = rewrite(i.getThn());
+                Expression els = rewrite(i.getEls());
+                return cond == i.getCond() && thn == i.getThn() && els == i.getEls()
+                        ? exp : new IfExpr(cond, thn, els);
+            }
+            if (exp instanceof SeqExpr) {
+                SeqExpr s = (SeqExpr) exp;
+                Expression e1 = rewrite(s.getE1());
+                Expression e2 = rewrite(s.getE2());
+                return e1 == s.getE1() && e2 == s.getE2() ? exp : new SeqExpr(e1, e2);
+            }
+            if (exp instanceof LocalDeclExpr) {
+                LocalDeclExpr d = (LocalDeclExpr) exp;
+                Expression e = rewrite(d.getExp());
+                return e == d.getExp() ? exp : new LocalDeclExpr(d.getVarName(), d.getSlot(), e, d.isCell());
+            }
+            if (exp instanceof LocalAssignExpr) {
+                LocalAssignExpr a = (LocalAssignExpr) exp;
+                Expression e = rewrite(a.getE());
+                return e == a.getE() ? exp : new LocalAssignExpr(a.getVarName(), a.getKinds(), a.getSlots(), e);
+            }
+            if (exp instanceof FunctionAppExpr) {
+                FunctionAppExpr app = (FunctionAppExpr) exp;
+                boolean changed = false;
+                List<Expression> args = new ArrayList<Expression>();
+                for (Expression arg : app.getArgs()) {
+                    Expression r = rewrite(arg);
+                    changed |= r != arg;
+                    args.add(r);
+                }
+                return changed ? new FunctionAppExpr(app.getF(), args, app.isTail()) : exp;
+            }
+            // loops keep their nodes: a nested loop may run zero times, but
+            // hoisted values are computed anyway, which is fine since they
+            // can not fail; its own CountingLoopExpr hoists for it
+            return exp;
+        }
+
+        /**
+         * Whether an expression always gives the same int or boolean in
+         * the loop without failing, once its operands are checked to be
+         * ints: only +, -, * and comparisons of constants and unchanged
+         * slots, and / and % by a nonzero constant.
+         */
+        private boolean isInvariant(Expression exp) {
+            if (exp instanceof ValueExpr) {
+                return ((ValueExpr) exp).getValue() instanceof IntVal;
+            }
+            if (exp instanceof LocalVarExpr) {
+                int slot = ownSlot(exp);
+                return slot >= 0 && slot != counter && !written.get(slot);
+            }
+            if (exp instanceof BinOpExpr) {
+                BinOpExpr b = (BinOpExpr) exp;
+                if (b.getOp() == Op.DIVIDE || b.getOp() == Op.MOD) {
+                    Expression d = b.getE2();
+                    if (!(d instanceof ValueExpr) || !(((ValueExpr) d).getValue() instanceof IntVal)
+                            || ((IntVal) ((ValueExpr) d).getValue()).toInt() == 0) {
+                        return false;
+                    }
+                }
+                // comparisons give booleans, which no int operator takes
+                return isArithmetic(b.getE1()) && isArithmetic(b.getE2())
+                        && isInvariant(b.getE1()) && isInvariant(b.getE2());
+            }
+            return false;
+        }
+
+        private static boolean isArithmetic(Expression exp) {
+            if (exp instanceof BinOpExpr) {
+                Op op = ((BinOpExpr) exp).getOp();
+                return op == Op.ADD || op == Op.SUBTRACT || op == Op.MULTIPLY || op == Op.DIVIDE || op == Op.MOD;
+            }
+            return true;
+        }
+
+        private static boolean hasVariable(Expression exp) {
+            if (exp instanceof LocalVarExpr) {
+                return true;
+            }
+            if (exp instanceof BinOpExpr) {
+                return hasVariable(((BinOpExpr) exp).getE1()) || hasVariable(((BinOpExpr) exp).getE2());
+            }
+            return false;
+        }
+
+        private void collectOperands(Expression exp) {
+            if (exp instanceof LocalVarExpr) {
+                operands.set(ownSlot(exp));
+            } else if (exp instanceof BinOpExpr) {
+                collectOperands(((BinOpExpr) exp).getE1());
+                collectOperands(((BinOpExpr) exp).getE2());
+            }
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package edu.sjsu.fwjs;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 // Environment.java handles the resolution of JavaScript variables.  Update the resolveVar and updateVar methods to handle variable lookup correctly.
 // *If a variable is undefined in the current environment, look for it in the outer scope.
 //   (This holds for both updateVar and resolveVar).
@@ -11,22 +13,126 @@ import java.util.HashMap;
 // *When updating a variable that is undefined in the global scope, create a new variable.
 //   (JavaScript follows this behavior; hence, if you forget to type 'var' when creating a new local
 //    variable, you might create a global variable instead).
+//
+// Function frames built from a resolved program (see Resolver) do not use the map at all:
+// their locals live in a Value[] and are addressed by slot. A null slot means the
+// variable has not been declared yet in that frame. Locals that nested functions capture
+// and may change live in a Cell instead, shared with the closures. Variables of
+// enclosing functions are not reached through outer frames, but through the captured
+// array of the closure being run, see ClosureVal.
+//
+// Calls started by spawn run on other threads, so the variables they can share with
+// the rest of the run are safe to read and write at the same time: named scopes are
+// ConcurrentHashMaps, and a Cell's value is volatile. Slots are only ever used by the
+// thread running their frame. See Spawner for the guarantees.
 
 public class Environment {
-    private Map<String, Value> env = new HashMap<String, Value>();
+    // where a resolved reference points, see lookup
+    static final int SLOT = 0; // a slot of this frame
+    static final int CELL = 1; // the cell of a slot of this frame
+    static final int CAPTURED = 2; // a captured value, never changed after capture
+    static final int CAPTURED_CELL = 3; // a captured cell
+
+    private Map<String, Value> env;
+    private Value[] slots;
+    private Cell[] cells; // by slot, null where the slot is not a cell
+    private Object[] captured; // of the closure this frame runs
     private Environment outerEnv;
+    private Environment global;
+    private ExecutionContext context; // only set on the global environment
+    private Environment prelude; // read-only scope behind the global one
+    private boolean frozen;
+    private boolean pooled; // a local frame, see FramePool
 
     /**
      * Constructor for global environment
      */
     public Environment() {
+        this(new ExecutionContext());
+    }
+
+    /**
+     * Constructor for a global environment with its own output etc.
+     * A null context means the context of the running thread is used,
+     * see ExecutionContext.current.
+     */
+    public Environment(ExecutionContext context) {
+        this(context, null);
+    }
+
+    /**
+     * Constructor for a global environment on top of a frozen prelude
+     * scope. Names not found in the global scope are looked up in the
+     * prelude; assignments always go to the global scope.
+     */
+    public Environment(ExecutionContext context, Environment prelude) {
+        this.env = new ConcurrentHashMap<String, Value>();
+        this.global = this;
+        this.context = context;
+        this.prelude = prelude;
     }
 
     /**
      * Constructor for local environment of a function
      */
     public Environment(Environment outerEnv) {
+        this.env = new ConcurrentHashMap<String, Value>();
         this.outerEnv = outerEnv;
+        this.global = outerEnv.global;
+    }
+
+    /**
+     * Constructor for a frame of a resolved function, see ClosureVal.
+     * Locals are stored in an array instead of a map, and the variables
+     * of enclosing functions are the ones the closure captured.
+     */
+    Environment(ClosureVal closure) {
+        FunctionDeclExpr decl = closure.getDecl();
+        this.slots = new Value[decl.getFrameSize()];
+        int[] cellSlots = decl.getCellSlots();
+        if (cellSlots.length > 0) {
+            this.cells = new Cell[slots.length];
+            for (int slot : cellSlots) {
+                cells[slot] = new Cell();
+            }
+        }
+        this.captured = closure.getCaptured();
+        this.outerEnv = closure.getOuterEnv();
+        this.global = outerEnv.global;
+        this.pooled = decl.hasLocalFrame();
+    }
+
+    /**
+     * Makes a pooled frame, cleared by release, the frame of a call of
+     * closure, as the constructor would. See FramePool.
+     */
+    void reuse(ClosureVal closure) {
+        this.captured = closure.getCaptured();
+        this.outerEnv = closure.getOuterEnv();
+        this.global = outerEnv.global;
+    }
+
+    /**
+     * Forgets the variables of a frame whose call returned, so it can be
+     * pooled without keeping them alive.
+     */
+    void release() {
+        Arrays.fill(this.slots, null);
+        this.captured = null;
+        this.outerEnv = null;
+        this.global = null;
+    }
+
+    int getFrameSize() {
+        return this.slots.length;
+    }
+
+    /**
+     * Whether this is the frame of a function with a local frame, which
+     * may be given back to a FramePool.
+     */
+    boolean isPooled() {
+        return this.pooled;
     }
 
     /**
@@ -37,14 +143,20 @@ public class Environment {
      * null is returned
      */
     public Value resolveVar(String varName) {
-        // If the variable name is in the current scope, it is returned.
-        if (this.env.containsKey(varName)) {
-            return env.get(varName);
+        // array-backed frames never hold named variables
+        if (this.env != null) {
+            Value v = env.get(varName);
+            if (v != null) {
+                return v;
+            }
         }
         if (outerEnv != null) {
             // outerEnv is an object of Environment => can call method in Environment class
             return outerEnv.resolveVar(varName);
         }
+        if (prelude != null) {
+            return prelude.resolveVar(varName);
+        }
         return null;
     }
 
@@ -54,13 +166,15 @@ public class Environment {
      */
     public void updateVar(String key, Value v) {
         // updating current scope
-        if (this.env.containsKey(key)) {
-            env.put(key, v);
+        if (this.env != null && this.env.containsKey(key)) {
+            checkWritable();
+            env.put(key, orNull(v));
         } else if (outerEnv != null) {
             outerEnv.updateVar(key, v);
         } else {
             // put in global scope
-            env.put(key, v);
+            checkWritable();
+            env.put(key, orNull(v));
         }
     }
 
@@ -74,6 +188,265 @@ public class Environment {
         if (this.env.containsKey(key)) {
             throw new RuntimeException("Variable already in current scope");
         }
-        this.env.put(key, v);
+        checkWritable();
+        if (this.env.putIfAbsent(key, orNull(v)) != null) {
+            // declared by another thread in the meantime
+            throw new RuntimeException("Variable already in current scope");
+        }
+    }
+
+    /**
+     * The map can not hold a Java null (the value of a loop that never
+     * ran), which reads as FWJS null anyway.
+     */
+    private static Value orNull(Value v) {
+        return (v == null) ? NullVal.NULL : v;
+    }
+
+    /**
+     * Makes this scope read-only, so it can be shared between threads
+     * as a prelude. Changing a variable in it throws a RuntimeException.
+     */
+    public void freeze() {
+        this.frozen = true;
+    }
+
+    private void checkWritable() {
+        if (this.frozen) {
+            throw new RuntimeException("Prelude variables are read-only");
+        }
+    }
+
+    /**
+     * The global environment at the end of this scope chain.
+     */
+    public Environment getGlobal() {
+        return this.global;
+    }
+
+    /**
+     * The ExecutionContext of the run this scope belongs to.
+     */
+    public ExecutionContext getContext() {
+        ExecutionContext c = this.global.context;
+        return c != null ? c : ExecutionContext.current();
+    }
+
+    /**
+     * The variables stored by name in this scope. Array-backed frames have
+     * none. The map is read-only.
+     */
+    public Map<String, Value> getVars() {
+        if (this.env == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(this.env);
+    }
+
+    /**
+     * Value stored in a slot of this frame, or null if the
+     * variable has not been declared yet.
+     */
+    public Value getSlot(int slot) {
+        return this.slots[slot];
+    }
+
+    /**
+     * Stores a value in a slot of this frame.
+     */
+    public void setSlot(int slot, Value v) {
+        // a null slot means "undeclared", so keep FWJS null distinct from it
+        this.slots[slot] = (v == null) ? NullVal.NULL : v;
+    }
+
+    /**
+     * Binds a parameter, which may live in a cell.
+     */
+    void bindParam(int slot, Value v) {
+        if (cells != null && cells[slot] != null) {
+            cells[slot].set(v);
+        } else {
+            setSlot(slot, v);
+        }
+    }
+
+    /**
+     * Slot counterpart of createVar: a RuntimeException is thrown
+     * if the variable has already been declared in this frame.
+     */
+    public void declareSlot(int slot, Value v) {
+        if (this.slots[slot] != null) {
+            throw new RuntimeException("Variable already in current scope");
+        }
+        setSlot(slot, v);
+    }
+
+    /**
+     * declareSlot for a slot that lives in a cell.
+     */
+    void declareCell(int slot, Value v) {
+        Cell c = cells[slot];
+        if (c.get() != null) {
+            throw new RuntimeException("Variable already in current scope");
+        }
+        c.set(v);
+    }
+
+    /**
+     * The value of a resolved reference (kind is SLOT, CELL, CAPTURED or
+     * CAPTURED_CELL), or null if the variable has not been declared yet.
+     */
+    Value lookup(int kind, int index) {
+        switch (kind) {
+            case SLOT:
+                return slots[index];
+            case CELL:
+                return cells[index].get();
+            case CAPTURED:
+                return (Value) captured[index];
+            default:
+                return ((Cell) captured[index]).get();
+        }
+    }
+
+    /**
+     * Stores through a resolved reference if its variable has been
+     * declared, and returns whether it had.
+     */
+    boolean update(int kind, int index, Value v) {
+        switch (kind) {
+            case SLOT:
+                if (slots[index] == null) {
+                    return false;
+                }
+                setSlot(index, v);
+                return true;
+            case CELL:
+                return cells[index].update(v);
+            case CAPTURED:
+                // captured values are parameters nobody assigns to
+                throw new IllegalStateException("Captured value assigned");
+            default:
+                return ((Cell) captured[index]).update(v);
+        }
+    }
+
+    /**
+     * Stores through a reference to this frame, declared or not.
+     */
+    void store(int kind, int index, Value v) {
+        if (kind == CELL) {
+            cells[index].set(v);
+        } else {
+            setSlot(index, v);
+        }
+    }
+
+    /**
+     * What a closure created in this frame keeps of a variable: the value
+     * itself, or the cell it lives in.
+     */
+    Object capture(int kind, int index) {
+        switch (kind) {
+            case SLOT:
+                return slots[index];
+            case CELL:
+                return cells[index];
+            default:
+                return captured[index];
+        }
+    }
+}
+
+/**
+ * A local variable shared between the frame that declares it and the
+ * closures that captured it. A null value means it has not been declared
+ * yet, like a null slot.
+ */
+final class Cell {
+    // volatile, since closures running on other threads may share it
+    private volatile Value value;
+
+    Value get() {
+        return this.value;
+    }
+
+    void set(Value v) {
+        this.value = (v == null) ? NullVal.NULL : v;
+    }
+
+    /**
+     * Sets the value if the variable has been declared, and returns
+     * whether it had.
+     */
+    boolean update(Value v) {
+        if (this.value == null) {
+            return false;
+        }
+        set(v);
+        return true;
+    }
+}
+
+/**
+ * Frames of the functions the Resolver found to have local frames (see
+ * FunctionDeclExpr.hasLocalFrame), kept for reuse by the calls that run
+ * on the same thread. Such a frame has no Cell, so no closure or other
+ * call can see it once its own call has returned, and it may be cleared
+ * and handed to the next call of a function with as many slots.
+ *
+ * Every acquire is paired with a release in a finally block, so recursive
+ * calls take frames from the pool and put them back in stack order, and
+ * a call that failed gives its frame back too. The pool keeps a bounded
+ * number of small frames; anything else is left to the garbage collector.
+ */
+final class FramePool {
+    // frames with more slots are not pooled
+    private static final int MAX_SLOTS = 16;
+    // frames kept per size, about the depth of recursion that is reused
+    private static final int MAX_FREE = 64;
+
+    private static final ThreadLocal<FramePool> POOL = ThreadLocal.withInitial(FramePool::new);
+
+    private Environment[][] free = new Environment[MAX_SLOTS + 1][MAX_FREE];
+    private int[] count = new int[MAX_SLOTS + 1];
+
+    /**
+     * The pool of the running thread.
+     */
+    static FramePool current() {
+        return POOL.get();
+    }
+
+    /**
+     * A frame for a call of closure: a pooled one if the function has a
+     * local frame and one of its size is free, a new one otherwise.
+     */
+    Environment acquire(ClosureVal closure) {
+        FunctionDeclExpr decl = closure.getDecl();
+        int size = decl.getFrameSize();
+        if (decl.hasLocalFrame() && size <= MAX_SLOTS && count[size] > 0) {
+            int n = --count[size];
+            Environment frame = free[size][n];
+            free[size][n] = null;
+            frame.reuse(closure);
+            return frame;
+        }
+        return new Environment(closure);
+    }
+
+    /**
+     * Gives back a frame once its call has returned; frames that are not
+     * local are left alone.
+     */
+    void release(Environment frame) {
+        if (!frame.isPooled()) {
+            return;
+        }
+        int size = frame.getFrameSize();
+        if (size <= MAX_SLOTS && count[size] < MAX_FREE) {
+            frame.release();
+            free[size][count[size]++] = frame;
+        }
     }
 }
@@ -0,0 +1,152 @@
+package edu.sjsu.fwjs;
+
+import java.io.Writer;
+
+/**
+ * Per-run state that is not a variable: the OutputSink print writes to,
+ * the Budget, Profiler, Memoizer and ForkJoiner of the run if it has
+ * them, and the calls it spawned (see Spawner).
+ * It hangs off the global Environment, so every frame of a run shares it,
+ * and two runs with their own global environments do not interfere.
+ *
+ * Functions of a shared Prelude have no run of their own; they use the
+ * context of the thread calling them, which an Isolate sets while it runs.
+ */
+public class ExecutionContext {
+    private static final ThreadLocal<ExecutionContext> CURRENT = ThreadLocal.withInitial(ExecutionContext::new);
+
+    private OutputSink sink;
+    private Budget budget; // null means no limits
+    private Profiler profiler; // null means not profiling
+    private Memoizer memoizer; // null means pure functions are not memoized
+    private ForkJoiner forkJoiner; // null means operands are evaluated in order
+    private volatile Spawner spawner; // created by the first spawn
+
+    /**
+     * A context that prints to System.out, through OutputSink.stdout.
+     */
+    public ExecutionContext() {
+        this(OutputSink.stdout());
+    }
+
+    /**
+     * A context that prints to the given writer; null means System.out.
+     */
+    public ExecutionContext(Writer out) {
+        this(out == null ? OutputSink.stdout() : new WriterSink(out));
+    }
+
+    public ExecutionContext(OutputSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * The context of the run on this thread, printing to System.out
+     * if no run has set one.
+     */
+    static ExecutionContext current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(ExecutionContext context) {
+        if (context == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(context);
+        }
+    }
+
+    public OutputSink getSink() {
+        return this.sink;
+    }
+
+    public void setSink(OutputSink sink) {
+        this.sink = sink;
+    }
+
+    public Budget getBudget() {
+        return this.budget;
+    }
+
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    public Profiler getProfiler() {
+        return this.profiler;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Memoizer getMemoizer() {
+        return this.memoizer;
+    }
+
+    public void setMemoizer(Memoizer memoizer) {
+        this.memoizer = memoizer;
+    }
+
+    public ForkJoiner getForkJoiner() {
+        return this.forkJoiner;
+    }
+
+    public void setForkJoiner(ForkJoiner forkJoiner) {
+        this.forkJoiner = forkJoiner;
+    }
+
+    /**
+     * The Spawner of the run's spawn expressions.
+     */
+    Spawner getSpawner() {
+        Spawner s = this.spawner;
+        if (s == null) {
+            synchronized (this) {
+                s = this.spawner;
+                if (s == null) {
+                    s = new Spawner();
+                    this.spawner = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Waits for the calls the run spawned and nobody awaited, and rethrows
+     * the error of the first one of them that failed. Called when a run is
+     * done.
+     */
+    public void joinSpawned() {
+        Spawner s = this.spawner;
+        if (s != null) {
+            s.joinAll();
+        }
+    }
+
+    /**
+     * Drops the spawned calls that have not started and waits for the
+     * ones running. Called when a run fails.
+     */
+    public void cancelSpawned() {
+        Spawner s = this.spawner;
+        if (s != null) {
+            s.cancelAll();
+        }
+    }
+
+    /**
+     * Prints a value on a line of its own.
+     */
+    void print(Value v) {
+        sink.print(v);
+    }
+
+    /**
+     * Writes out what the run has printed so far.
+     */
+    public void flush() {
+        sink.flush();
+    }
+}
@@ -1,6 +1,7 @@
 package edu.sjsu.fwjs;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -11,6 +12,30 @@ public interface Expression {
      * Evaluate the expression in the context of the specified environment.
      */
     public Value evaluate(Environment env);
+
+    /**
+     * Evaluate the expression where an int is expected, without creating
+     * an IntVal when the expression can compute the int directly.
+     * Throws UnexpectedResultException holding the value if it is not an int.
+     */
+    default int evaluateInt(Environment env) throws UnexpectedResultException {
+        Value v = evaluate(env);
+        if (v instanceof IntVal) {
+            return ((IntVal) v).toInt();
+        }
+        throw new UnexpectedResultException(v);
+    }
+
+    /**
+     * Like evaluateInt, for booleans.
+     */
+    default boolean evaluateBoolean(Environment env) throws UnexpectedResultException {
+        Value v = evaluate(env);
+        if (v instanceof BoolVal) {
+            return ((BoolVal) v).toBoolean();
+        }
+        throw new UnexpectedResultException(v);
+    }
 }
 
 // NOTE: Using package access so that all implementations of Expression
@@ -20,12 +45,16 @@ public interface Expression {
  * Constant literal
  */
 class ValueExpr implements Expression {
-    private Value val;
+    private final Value val;
 
     public ValueExpr(Value v) {
         this.val = v;
     }
 
+    Value getValue() {
+        return this.val;
+    }
+
     public Value evaluate(Environment env) {
         return this.val;
     }
@@ -35,16 +64,20 @@ class ValueExpr implements Expression {
  * Expressions that are a FWJS variable.
  */
 class VarExpr implements Expression {
-    private String varName;
+    private final String varName;
 
     public VarExpr(String varName) {
         this.varName = varName;
     }
 
+    String getVarName() {
+        return this.varName;
+    }
+
     public Value evaluate(Environment env) {
         Value r = env.resolveVar(varName);
         if (r == null) {
-            return new NullVal();
+            return NullVal.NULL;
         } else {
             return r;
         }
@@ -55,15 +88,19 @@ class VarExpr implements Expression {
  * A print expression.
  */
 class PrintExpr implements Expression {
-    private Expression exp;
+    private final Expression exp;
 
     public PrintExpr(Expression exp) {
         this.exp = exp;
     }
 
+    Expression getExp() {
+        return this.exp;
+    }
+
     public Value evaluate(Environment env) {
         Value v = exp.evaluate(env);
-        System.out.println(v.toString());
+        env.getContext().print(v);
         return v;
     }
 }
@@ -73,9 +110,12 @@ class PrintExpr implements Expression {
  * Currently only numbers are supported.
  */
 class BinOpExpr implements Expression {
-    private Op op;
-    private Expression e1;
-    private Expression e2;
+    private final Op op;
+    private final Expression e1;
+    private final Expression e2;
+    // rewritten as operand types are observed, see BinOpNode
+    private BinOpNode node = BinOpNode.UNINITIALIZED;
+    private boolean fork; // operands may run in parallel, see ForkJoiner
 
     public BinOpExpr(Op op, Expression e1, Expression e2) {
         this.op = op;
@@ -83,35 +123,135 @@ class BinOpExpr implements Expression {
         this.e2 = e2;
     }
 
-    @SuppressWarnings("incomplete-switch")
+    Op getOp() {
+        return this.op;
+    }
+
+    Expression getE1() {
+        return this.e1;
+    }
+
+    Expression getE2() {
+        return this.e2;
+    }
+
+    BinOpNode getNode() {
+        return this.node;
+    }
+
+    boolean isFork() {
+        return this.fork;
+    }
+
+    void setFork(boolean fork) {
+        this.fork = fork;
+    }
+
     public Value evaluate(Environment env) {
-        Value varE1 = e1.evaluate(env);
-        Value varE2 = e2.evaluate(env);
+        if (fork) {
+            Value v = forked(env);
+            if (v != null) {
+                return v;
+            }
+        }
+        return node.execute(this, env);
+    }
+
+    @Override
+    public int evaluateInt(Environment env) throws UnexpectedResultException {
+        if (fork) {
+            Value v = forked(env);
+            if (v instanceof IntVal) {
+                return ((IntVal) v).toInt();
+            } else if (v != null) {
+                throw new UnexpectedResultException(v);
+            }
+        }
+        return node.executeInt(this, env);
+    }
 
+    @Override
+    public boolean evaluateBoolean(Environment env) throws UnexpectedResultException {
+        if (fork) {
+            Value v = forked(env);
+            if (v instanceof BoolVal) {
+                return ((BoolVal) v).toBoolean();
+            } else if (v != null) {
+                throw new UnexpectedResultException(v);
+            }
+        }
+        return node.executeBoolean(this, env);
+    }
+
+    /**
+     * Evaluates both operands in parallel and applies the operator, or
+     * returns null if this run does not fork here.
+     */
+    private Value forked(Environment env) {
+        ForkJoiner forker = ForkJoiner.of(env.getContext());
+        if (forker == null || !forker.wantsFork()) {
+            return null;
+        }
+        Value[] v = forker.evaluate(e1, e2, env);
+        return apply(op, v[0], v[1]);
+    }
+
+    /**
+     * Replaces the uninitialized node with one for the given operand types.
+     */
+    void specialize(Value varE1, Value varE2) {
+        node = BinOpNode.forOperands(op, varE1, varE2);
+    }
+
+    /**
+     * Installs the node for operand types known before the first
+     * execution, see TypeInference.
+     */
+    void specialize(BinOpNode node) {
+        if (this.node == BinOpNode.UNINITIALIZED) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Called by a specialized node that got operands it does not handle.
+     * The site falls back to the generic operation from now on.
+     */
+    Value generalize(Value varE1, Value varE2) {
+        node = BinOpNode.POLYMORPHIC;
+        return apply(op, varE1, varE2);
+    }
+
+    /**
+     * Applies the operator to two already evaluated operands.
+     * Shared with the bytecode VM so both engines agree on the semantics.
+     */
+    @SuppressWarnings("incomplete-switch")
+    static Value apply(Op op, Value varE1, Value varE2) {
         // Handle EQ for all types first (before the IntVal check)
         if (op == Op.EQ) {
             // Check if both are null
             if (varE1 instanceof NullVal && varE2 instanceof NullVal) {
-                return new BoolVal(true);
+                return BoolVal.of(true);
             }
             // Check if one is null and the other isn't
             if (varE1 instanceof NullVal || varE2 instanceof NullVal) {
-                return new BoolVal(false);
+                return BoolVal.of(false);
             }
             // For IntVals, compare their values
             if (varE1 instanceof IntVal && varE2 instanceof IntVal) {
                 int num1 = ((IntVal) varE1).toInt();
                 int num2 = ((IntVal) varE2).toInt();
-                return new BoolVal(num1 == num2);
+                return BoolVal.of(num1 == num2);
             }
             // For BoolVals, compare their values
             if (varE1 instanceof BoolVal && varE2 instanceof BoolVal) {
                 boolean bool1 = ((BoolVal) varE1).toBoolean();
                 boolean bool2 = ((BoolVal) varE2).toBoolean();
-                return new BoolVal(bool1 == bool2);
+                return BoolVal.of(bool1 == bool2);
             }
             // For other types (ClosureVal, etc.), use reference equality
-            return new BoolVal(varE1 == varE2);
+            return BoolVal.of(varE1 == varE2);
         }
 
         // Rest of your code for numeric operations
@@ -121,26 +261,26 @@ class BinOpExpr implements Expression {
 
             switch (op) {
                 case ADD:
-                    return new IntVal(num1 + num2);
+                    return IntVal.of(num1 + num2);
                 case SUBTRACT:
-                    return new IntVal(num1 - num2);
+                    return IntVal.of(num1 - num2);
                 case MULTIPLY:
-                    return new IntVal(num1 * num2);
+                    return IntVal.of(num1 * num2);
                 case DIVIDE:
                     if (num2 == 0) {
                         throw new RuntimeException("Division by zero");
                     }
-                    return new IntVal(num1 / num2);
+                    return IntVal.of(num1 / num2);
                 case MOD:
-                    return new IntVal(num1 % num2);
+                    return IntVal.of(num1 % num2);
                 case GT:
-                    return new BoolVal(num1 > num2);
+                    return BoolVal.of(num1 > num2);
                 case GE:
-                    return new BoolVal(num1 >= num2);
+                    return BoolVal.of(num1 >= num2);
                 case LT:
-                    return new BoolVal(num1 < num2);
+                    return BoolVal.of(num1 < num2);
                 case LE:
-                    return new BoolVal(num1 <= num2);
+                    return BoolVal.of(num1 <= num2);
             }
         }
 
@@ -153,9 +293,9 @@ class BinOpExpr implements Expression {
  * Unlike JS, if expressions return a value.
  */
 class IfExpr implements Expression {
-    private Expression cond;
-    private Expression thn;
-    private Expression els; // can be null
+    private final Expression cond;
+    private final Expression thn;
+    private final Expression els; // can be null
 
     public IfExpr(Expression cond, Expression thn, Expression els) {
         this.cond = cond;
@@ -163,16 +303,27 @@ class IfExpr implements Expression {
         this.els = els;
     }
 
-    @Override
-    public Value evaluate(Environment env) {
+    Expression getCond() {
+        return this.cond;
+    }
 
-        Value c = cond.evaluate(env);
+    Expression getThn() {
+        return this.thn;
+    }
+
+    Expression getEls() {
+        return this.els;
+    }
 
-        if (!(c instanceof BoolVal)) {
+    @Override
+    public Value evaluate(Environment env) {
+        boolean b;
+        try {
+            // comparisons of ints are tested without creating a BoolVal
+            b = cond.evaluateBoolean(env);
+        } catch (UnexpectedResultException e) {
             throw new RuntimeException("Condition in if expression must be a boolean");
         }
-
-        boolean b = ((BoolVal) c).toBoolean();
         if (b) {
             return thn.evaluate(env);
         } else if (els != null) {
@@ -180,7 +331,7 @@ class IfExpr implements Expression {
             return els.evaluate(env);
         } else {
             // If there's no else clause, just return NullVal
-            return new NullVal();
+            return NullVal.NULL;
         }
     }
 }
@@ -189,46 +340,80 @@ class IfExpr implements Expression {
  * While statements (treated as expressions in FWJS, unlike JS).
  */
 class WhileExpr implements Expression {
-    private Expression cond;
-    private Expression body;
+    private final Expression cond;
+    private final Expression body;
+    private final FunctionProfile profile; // of the enclosing function, null at top level
 
     public WhileExpr(Expression cond, Expression body) {
+        this(cond, body, null);
+    }
+
+    public WhileExpr(Expression cond, Expression body, FunctionProfile profile) {
         this.cond = cond;
         this.body = body;
+        this.profile = profile;
+    }
+
+    Expression getCond() {
+        return this.cond;
+    }
+
+    Expression getBody() {
+        return this.body;
+    }
+
+    FunctionProfile getProfile() {
+        return this.profile;
     }
 
     public Value evaluate(Environment env) {
-        Value c = cond.evaluate(env);
-        if (!(c instanceof BoolVal)) {
-            throw new RuntimeException("Condition should be boolean type");
-        }
-        boolean b = ((BoolVal) c).toBoolean();
+        boolean b = test(env);
         Value lastStep = null;
+        Budget budget = env.getContext().getBudget();
         while (b) {
+            if (budget != null) {
+                budget.tick();
+            }
+            if (profile != null) {
+                // back-edge counter for the JIT
+                profile.loops++;
+            }
             lastStep = body.evaluate(env);
             // updating condition
-            c = cond.evaluate(env);
-            if (!(c instanceof BoolVal)) {
-                throw new RuntimeException("Condition should be boolean type");
-            }
-            b = ((BoolVal) c).toBoolean();
+            b = test(env);
         }
         return lastStep;
     }
+
+    private boolean test(Environment env) {
+        try {
+            return cond.evaluateBoolean(env);
+        } catch (UnexpectedResultException e) {
+            throw new RuntimeException("Condition should be boolean type");
+        }
+    }
 }
 
 /**
  * Sequence expressions (i.e. 2 back-to-back expressions).
  */
 class SeqExpr implements Expression {
-    private Expression e1;
-    private Expression e2;
+    private final Expression e1;
+    private final Expression e2;
 
     public SeqExpr(Expression e1, Expression e2) {
         this.e1 = e1;
         this.e2 = e2;
     }
 
+    Expression getE1() {
+        return this.e1;
+    }
+
+    Expression getE2() {
+        return this.e2;
+    }
+
     public Value evaluate(Environment env) {
         e1.evaluate(env);
         Value result2 = e2.evaluate(env);
@@ -240,14 +425,22 @@ class SeqExpr implements Expression {
  * Declaring a variable in the local scope.
  */
 class VarDeclExpr implements Expression {
-    private String varName;
-    private Expression exp;
+    private final String varName;
+    private final Expression exp;
 
     public VarDeclExpr(String varName, Expression exp) {
         this.varName = varName;
         this.exp = exp;
     }
 
+    String getVarName() {
+        return this.varName;
+    }
+
+    Expression getExp() {
+        return this.exp;
+    }
+
     public Value evaluate(Environment env) {
         Value v = exp.evaluate(env);
         env.createVar(varName, v);
@@ -261,16 +454,32 @@ class VarDeclExpr implements Expression {
  * to the global scope.
  */
 class AssignExpr implements Expression {
-    private String varName;
-    private Expression e;
+    private final String varName;
+    private final Expression e;
 
     public AssignExpr(String varName, Expression e) {
         this.varName = varName;
         this.e = e;
     }
 
+    String getVarName() {
+        return this.varName;
+    }
+
+    Expression getE() {
+        return this.e;
+    }
+
     public Value evaluate(Environment env) {
         Value val = e.evaluate(env);
+        assign(env, val);
+        return val;
+    }
+
+    /**
+     * Stores an already evaluated value.
+     */
+    void assign(Environment env, Value val) {
         // Updating an existing variable.
         if (env.resolveVar(varName) != null) {
             env.updateVar(varName, val);
@@ -278,8 +487,6 @@ class AssignExpr implements Expression {
             // create new one in global scope
             env.createVar(varName, val);
         }
-
-        return val;
     }
 }
 
@@ -288,17 +495,145 @@ class AssignExpr implements Expression {
  * the environment used when it was defined.
  */
 class FunctionDeclExpr implements Expression {
-    private List<String> params;
-    private Expression body;
+    private final List<String> params;
+    private final Expression body;
+    // number of local slots once resolved, -1 means locals are looked up by name
+    private final int frameSize;
+    private final FunctionProfile profile; // JIT counters, only for resolved functions
+    // where the function starts in the source, -1 if unknown
+    private int line = -1;
+    private int column = -1;
+    private String name; // variable it was first stored in, if any
+    private boolean pure; // set by PurityAnalysis
+    private boolean forks; // the body has fork points, see ForkJoiner
+    private boolean localFrame; // no frame outlives its call, see FramePool
+    // variables of enclosing functions a closure keeps, as (kind, index)
+    // references in the frame the closure is created in, see Environment
+    private int[] captureKinds = NONE;
+    private int[] captureIndices = NONE;
+    private int[] cellSlots = NONE; // slots of the frame that live in a Cell
+
+    private static final int[] NONE = new int[0];
 
     public FunctionDeclExpr(List<String> params, Expression body) {
+        this(params, body, -1, null);
+    }
+
+    public FunctionDeclExpr(List<String> params, Expression body, int frameSize, FunctionProfile profile) {
         this.params = params;
         this.body = body;
+        this.frameSize = frameSize;
+        this.profile = profile;
+    }
+
+    List<String> getParams() {
+        return this.params;
+    }
+
+    Expression getBody() {
+        return this.body;
+    }
+
+    int getFrameSize() {
+        return this.frameSize;
+    }
+
+    FunctionProfile getProfile() {
+        return this.profile;
+    }
+
+    int getLine() {
+        return this.line;
+    }
+
+    int getColumn() {
+        return this.column;
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    void setPosition(int line, int column) {
+        this.line = line;
+        this.column = column;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    boolean isPure() {
+        return this.pure;
+    }
+
+    int[] getCaptureKinds() {
+        return this.captureKinds;
+    }
+
+    int[] getCaptureIndices() {
+        return this.captureIndices;
+    }
+
+    int[] getCellSlots() {
+        return this.cellSlots;
+    }
+
+    void setCaptures(int[] kinds, int[] indices) {
+        this.captureKinds = kinds;
+        this.captureIndices = indices;
+    }
+
+    void setCellSlots(int[] cellSlots) {
+        this.cellSlots = cellSlots;
+    }
+
+    void setPure(boolean pure) {
+        this.pure = pure;
+    }
+
+    boolean hasForks() {
+        return this.forks;
+    }
+
+    void setForks(boolean forks) {
+        this.forks = forks;
+    }
+
+    /**
+     * Whether the frames of calls are only seen by the calls themselves,
+     * as the Resolver decides, so they can be pooled.
+     */
+    boolean hasLocalFrame() {
+        return this.localFrame;
+    }
+
+    void setLocalFrame(boolean localFrame) {
+        this.localFrame = localFrame;
+    }
+
+    /**
+     * Takes the position and name of the function this one was rebuilt
+     * from, e.g. by an optimizer pass. Returns this.
+     */
+    FunctionDeclExpr copySource(FunctionDeclExpr from) {
+        this.line = from.line;
+        this.column = from.column;
+        this.name = from.name;
+        return this;
+    }
+
+    /**
+     * A label for reports, like fib@3:11 or function@7:5.
+     */
+    String describe() {
+        String label = name != null ? name : "function";
+        return line < 0 ? label : label + "@" + line + ":" + column;
     }
 
     public Value evaluate(Environment env) {
         // evaluate function body
-        ClosureVal closure = new ClosureVal(params, body, env);
+        ClosureVal closure = new ClosureVal(this, env);
         return closure;
     }
 }
@@ -307,12 +642,47 @@ class FunctionDeclExpr implements Expression {
  * Function application/ Call function
  */
 class FunctionAppExpr implements Expression {
-    private Expression f;
-    private List<Expression> args;
+    // number of different functions the inline cache keeps
+    static final int MAX_CACHED = 4;
+
+    private final Expression f;
+    private final List<Expression> args;
+    private final boolean tail; // last thing the enclosing function does, see TailCall
+    private boolean forkArgs; // arguments may run in parallel, see ForkJoiner
+    // inline cache: functions called here whose arity and frame are known
+    // to fit, so their frames are filled in directly. Null until the first
+    // call, and null again with megamorphic set once too many were seen.
+    private FunctionDeclExpr[] cached;
+    private boolean megamorphic;
 
     public FunctionAppExpr(Expression f, List<Expression> args) {
+        this(f, args, false);
+    }
+
+    public FunctionAppExpr(Expression f, List<Expression> args, boolean tail) {
         this.f = f;
         this.args = args;
+        this.tail = tail;
+    }
+
+    Expression getF() {
+        return this.f;
+    }
+
+    List<Expression> getArgs() {
+        return this.args;
+    }
+
+    boolean isTail() {
+        return this.tail;
+    }
+
+    boolean isForkArgs() {
+        return this.forkArgs;
+    }
+
+    void setForkArgs(boolean forkArgs) {
+        this.forkArgs = forkArgs;
     }
 
     public Value evaluate(Environment env) {
@@ -323,12 +693,422 @@ class FunctionAppExpr implements Expression {
             throw new RuntimeException("Should be a function to be called");
         }
         ClosureVal closure = (ClosureVal) v;
-        // convert from a list of Expression to a list of Value
-        // which means evaluating expressions
+        ExecutionContext context = env.getContext();
+        Budget budget = context.getBudget();
+        if (budget != null) {
+            budget.tick();
+        }
+        Memoizer memoizer = context.getMemoizer();
+        if (forkArgs) {
+            ForkJoiner forker = ForkJoiner.of(context);
+            if (forker != null && forker.wantsFork()) {
+                List<Value> val_args = Arrays.asList(forker.evaluate(args, env));
+                if (tail) {
+                    return new TailCall(closure, val_args);
+                }
+                if (memoizer != null && closure.getDecl().isPure()) {
+                    return memoizedCall(closure, val_args, env, memoizer);
+                }
+                return closure.apply(val_args);
+            }
+        }
+        if (memoizer != null && !tail && closure.getDecl().isPure()) {
+            return memoizedCall(closure, evaluateArgs(env), env, memoizer);
+        }
+        Profiler profiler = context.getProfiler();
+        if (profiler != null) {
+            return profiledCall(closure, env, profiler);
+        }
+        if (!megamorphic && isCached(closure.getDecl())) {
+            CompiledFunction compiled = closure.compiledCode();
+            if (compiled == null) {
+                FramePool pool = FramePool.current();
+                Environment frame = bindCached(closure, env, pool);
+                if (tail) {
+                    return new TailCall(closure, frame);
+                }
+                Value result;
+                try {
+                    result = closure.getDecl().getBody().evaluate(frame);
+                } finally {
+                    pool.release(frame);
+                }
+                return ClosureVal.runTailCalls(result);
+            }
+            List<Value> val_args = evaluateArgs(env);
+            if (tail) {
+                return new TailCall(closure, val_args);
+            }
+            Value result = compiled.invoke(closure.getDecl(), closure.getOuterEnv(), val_args);
+            if (result != null) {
+                return result;
+            }
+            return ClosureVal.runTailCalls(closure.interpret(val_args));
+        }
+        List<Value> val_args = evaluateArgs(env);
+        if (tail) {
+            // the caller's ClosureVal.apply makes the call
+            return new TailCall(closure, val_args);
+        }
+        return closure.apply(val_args);
+    }
+
+    /**
+     * A call of a pure function while a Memoizer is on. Calls in tail
+     * position are not memoized themselves, so they still run in constant
+     * stack space; their result is stored for the call that started them.
+     */
+    private Value memoizedCall(ClosureVal closure, List<Value> val_args, Environment env, Memoizer memoizer) {
+        Object key = memoizer.key(closure.getDecl(), val_args);
+        if (key == null) {
+            return closure.apply(val_args);
+        }
+        Value result = memoizer.get(key);
+        if (result == null) {
+            Profiler profiler = env.getContext().getProfiler();
+            if (profiler != null) {
+                profiler.enter(closure.getDecl());
+            }
+            try {
+                result = closure.apply(val_args);
+            } finally {
+                if (profiler != null) {
+                    profiler.exit();
+                }
+            }
+            memoizer.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * A call while a Profiler is on. It always goes through ClosureVal.apply
+     * (or its trampoline, for a tail call), where the profiler is told when
+     * the function starts and ends.
+     */
+    private Value profiledCall(ClosureVal closure, Environment env, Profiler profiler) {
+        List<Value> val_args = evaluateArgs(env);
+        if (tail) {
+            return new TailCall(closure, val_args);
+        }
+        profiler.enter(closure.getDecl());
+        try {
+            return closure.apply(val_args);
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    // convert from a list of Expression to a list of Value
+    // which means evaluating expressions
+    private List<Value> evaluateArgs(Environment env) {
         List<Value> val_args = new ArrayList<>();
         for (int i = 0; i < args.size(); i++) {
             val_args.add(args.get(i).evaluate(env));
         }
-        return closure.apply(val_args);
+        return val_args;
+    }
+
+    /**
+     * Looks the function up in the inline cache, adding it if there is room
+     * and the call fits: the function is resolved and gets enough arguments.
+     */
+    private boolean isCached(FunctionDeclExpr decl) {
+        FunctionDeclExpr[] seen = this.cached;
+        if (seen != null) {
+            for (FunctionDeclExpr d : seen) {
+                if (d == decl) {
+                    return true;
+                }
+            }
+        }
+        if (decl.getFrameSize() < 0 || args.size() < decl.getParams().size()) {
+            // the generic path reports the missing arguments
+            return false;
+        }
+        if (seen == null) {
+            this.cached = new FunctionDeclExpr[] { decl };
+        } else if (seen.length < MAX_CACHED) {
+            FunctionDeclExpr[] more = Arrays.copyOf(seen, seen.length + 1);
+            more[seen.length] = decl;
+            this.cached = more;
+        } else {
+            // too many different functions, stop caching here
+            this.megamorphic = true;
+            this.cached = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A call through the inline cache: the arguments go straight into the
+     * slots of a frame from the pool, without the list. If an argument
+     * fails, the frame is just not given back.
+     */
+    private Environment bindCached(ClosureVal closure, Environment env, FramePool pool) {
+        FunctionDeclExpr decl = closure.getDecl();
+        int numParams = decl.getParams().size();
+        Environment frame = pool.acquire(closure);
+        for (int i = 0; i < args.size(); i++) {
+            Value arg = args.get(i).evaluate(env);
+            if (i < numParams) {
+                frame.bindParam(i, arg);
+            }
+        }
+        return frame;
+    }
+}
+
+/**
+ * spawn f(args): evaluates the function and its arguments here, then makes
+ * the call on another thread and evaluates to its FutureVal right away.
+ * See Spawner for what spawned calls see of each other.
+ */
+class SpawnExpr implements Expression {
+    private final Expression f;
+    private final List<Expression> args;
+
+    public SpawnExpr(Expression f, List<Expression> args) {
+        this.f = f;
+        this.args = args;
+    }
+
+    Expression getF() {
+        return this.f;
+    }
+
+    List<Expression> getArgs() {
+        return this.args;
+    }
+
+    public Value evaluate(Environment env) {
+        Value v = f.evaluate(env);
+        if (!(v instanceof ClosureVal)) {
+            throw new RuntimeException("Should be a function to be called");
+        }
+        List<Value> val_args = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            val_args.add(args.get(i).evaluate(env));
+        }
+        ExecutionContext context = env.getContext();
+        Budget budget = context.getBudget();
+        if (budget != null) {
+            budget.tick();
+        }
+        return context.getSpawner().spawn((ClosureVal) v, val_args, context);
+    }
+}
+
+/**
+ * await e: waits for the spawned call e evaluates to, and evaluates to its
+ * result, or throws its error. Any other value is its own result.
+ */
+class AwaitExpr implements Expression {
+    private final Expression exp;
+
+    public AwaitExpr(Expression exp) {
+        this.exp = exp;
+    }
+
+    Expression getExp() {
+        return this.exp;
+    }
+
+    public Value evaluate(Environment env) {
+        return await(exp.evaluate(env));
+    }
+
+    static Value await(Value v) {
+        if (v instanceof FutureVal) {
+            return Spawner.await((FutureVal) v);
+        }
+        return v;
+    }
+}
+
+/**
+ * A variable that the Resolver found in an enclosing function scope.
+ * Candidates are (kind, index) references into the current frame or the
+ * variables its closure captured (see Environment.lookup), from the
+ * innermost scope out; the first one where the variable has been
+ * declared wins. If none has it yet, the lookup continues in the global
+ * scope (unless the outermost candidate is a parameter, which is always
+ * bound).
+ */
+class LocalVarExpr implements Expression {
+    private final String varName;
+    private final int[] kinds;
+    private final int[] slots;
+    private final boolean checkGlobal;
+
+    public LocalVarExpr(String varName, int[] kinds, int[] slots, boolean checkGlobal) {
+        this.varName = varName;
+        this.kinds = kinds;
+        this.slots = slots;
+        this.checkGlobal = checkGlobal;
+    }
+
+    String getVarName() {
+        return this.varName;
+    }
+
+    int[] getKinds() {
+        return this.kinds;
+    }
+
+    int[] getSlots() {
+        return this.slots;
+    }
+
+    boolean checksGlobal() {
+        return this.checkGlobal;
+    }
+
+    public Value evaluate(Environment env) {
+        for (int i = 0; i < kinds.length; i++) {
+            Value v = env.lookup(kinds[i], slots[i]);
+            if (v != null) {
+                return v;
+            }
+        }
+        Value r = checkGlobal ? env.getGlobal().resolveVar(varName) : null;
+        if (r == null) {
+            return NullVal.NULL;
+        } else {
+            return r;
+        }
+    }
+}
+
+/**
+ * A variable that is not declared in any enclosing function,
+ * so it can only live in the global scope.
+ */
+class GlobalVarExpr implements Expression {
+    private final String varName;
+
+    public GlobalVarExpr(String varName) {
+        this.varName = varName;
+    }
+
+    String getVarName() {
+        return this.varName;
+    }
+
+    public Value evaluate(Environment env) {
+        Value r = env.getGlobal().resolveVar(varName);
+        if (r == null) {
+            return NullVal.NULL;
+        } else {
+            return r;
+        }
+    }
+}
+
+/**
+ * Declaring a variable in a slot of the current function frame.
+ */
+class LocalDeclExpr implements Expression {
+    private final String varName;
+    private final int slot;
+    private final Expression exp;
+    private final boolean cell; // the slot lives in a Cell
+
+    public LocalDeclExpr(String varName, int slot, Expression exp) {
+        this(varName, slot, exp, false);
+    }
+
+    public LocalDeclExpr(String varName, int slot, Expression exp, boolean cell) {
+        this.varName = varName;
+        this.slot = slot;
+        this.exp = exp;
+        this.cell = cell;
+    }
+
+    String getVarName() {
+        return this.varName;
+    }
+
+    int getSlot() {
+        return this.slot;
+    }
+
+    Expression getExp() {
+        return this.exp;
+    }
+
+    boolean isCell() {
+        return this.cell;
+    }
+
+    public Value evaluate(Environment env) {
+        Value v = exp.evaluate(env);
+        if (cell) {
+            env.declareCell(slot, v);
+        } else {
+            env.declareSlot(slot, v);
+        }
+        return v;
+    }
+}
+
+/**
+ * Assignment inside a function. The candidates are the same as for
+ * LocalVarExpr and the first one is always the current frame (index 0 of
+ * the arrays), so the whole chain is walked only once:
+ * update the nearest declared binding, otherwise a global of that name,
+ * otherwise create the variable in the current frame (as AssignExpr does).
+ */
+class LocalAssignExpr implements Expression {
+    private final String varName;
+    private final int[] kinds;
+    private final int[] slots;
+    private final Expression e;
+
+    public LocalAssignExpr(String varName, int[] kinds, int[] slots, Expression e) {
+        this.varName = varName;
+        this.kinds = kinds;
+        this.slots = slots;
+        this.e = e;
+    }
+
+    String getVarName() {
+        return this.varName;
+    }
+
+    int[] getKinds() {
+        return this.kinds;
+    }
+
+    int[] getSlots() {
+        return this.slots;
+    }
+
+    Expression getE() {
+        return this.e;
+    }
+
+    public Value evaluate(Environment env) {
+        Value val = e.evaluate(env);
+        assign(env, val);
+        return val;
+    }
+
+    /**
+     * Stores an already evaluated value.
+     */
+    void assign(Environment env, Value val) {
+        for (int i = 0; i < kinds.length; i++) {
+            if (env.update(kinds[i], slots[i], val)) {
+                return;
+            }
+        }
+        Environment global = env.getGlobal();
+        if (global.resolveVar(varName) != null) {
+            global.updateVar(varName, val);
+        } else {
+            env.store(kinds[0], slots[0], val);
+        }
     }
 }
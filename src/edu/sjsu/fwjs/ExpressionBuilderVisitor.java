@@ -6,7 +6,25 @@ import java.util.List;
 import edu.sjsu.fwjs.parser.FeatherweightJavaScriptBaseVisitor;
 import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
 
+/**
+ * Builds the expression tree of a parse tree. Nodes come from an
+ * ExpressionFactory, so equal subtrees of the program are built once.
+ */
 public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor<Expression> {
+    private ExpressionFactory factory;
+
+    public ExpressionBuilderVisitor() {
+        this(new ExpressionFactory());
+    }
+
+    public ExpressionBuilderVisitor(ExpressionFactory factory) {
+        this.factory = factory;
+    }
+
+    public ExpressionFactory getFactory() {
+        return this.factory;
+    }
+
     @Override
     public Expression visitProg(FeatherweightJavaScriptParser.ProgContext ctx) {
         List<Expression> stmts = new ArrayList<Expression>();
@@ -28,21 +46,21 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
         Expression cond = visit(ctx.expr());
         Expression thn = visit(ctx.block(0));
         Expression els = visit(ctx.block(1));
-        return new IfExpr(cond, thn, els);
+        return factory.ifExpr(cond, thn, els);
     }
 
     @Override
     public Expression visitIfThen(FeatherweightJavaScriptParser.IfThenContext ctx) {
         Expression cond = visit(ctx.expr());
         Expression thn = visit(ctx.block());
-        return new IfExpr(cond, thn, null);
+        return factory.ifExpr(cond, thn, null);
     }
 
     @Override
     public Expression visitWhileStatement(FeatherweightJavaScriptParser.WhileStatementContext ctx) {
         Expression cond = visit(ctx.expr());
         Expression body = visit(ctx.block());
-        return new WhileExpr(cond, body);
+        return factory.whileExpr(cond, body);
     }
 
     @Override
@@ -52,21 +70,33 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
 
     @Override
     public Expression visitPrintStatement(FeatherweightJavaScriptParser.PrintStatementContext ctx) {
-        return new PrintExpr(visit(ctx.expr()));
+        return factory.print(visit(ctx.expr()));
     }
 
     @Override
     public Expression visitVarDeclaration(FeatherweightJavaScriptParser.VarDeclarationContext ctx) {
         String name = ctx.ID().getText();
         Expression value = visit(ctx.assignment());
-        return new VarDeclExpr(name, value);
+        nameFunction(value, name);
+        return factory.varDecl(name, value);
     }
 
     @Override
     public Expression visitVarReference(FeatherweightJavaScriptParser.VarReferenceContext ctx) {
         String name = ctx.ID().getText();
         Expression value = visit(ctx.assignment());
-        return new AssignExpr(name, value);
+        nameFunction(value, name);
+        return factory.assign(name, value);
+    }
+
+    /**
+     * Names a function literal after the variable it is stored in,
+     * for profiler reports.
+     */
+    private void nameFunction(Expression value, String name) {
+        if (value instanceof FunctionDeclExpr && ((FunctionDeclExpr) value).getName() == null) {
+            ((FunctionDeclExpr) value).setName(name);
+        }
     }
 
     @Override
@@ -108,7 +138,7 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
         for (int i = 1; i < ctx.addSub().size(); i++) {
             Expression right = visit(ctx.addSub(i));
             String opText = ctx.getChild(2 * i - 1).getText(); // operator between terms
-            left = new BinOpExpr(op_to_text(opText), left, right);
+            left = factory.binOp(op_to_text(opText), left, right);
         }
         return left;
     }
@@ -119,32 +149,53 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
         for (int i = 1; i < ctx.mulDiv().size(); i++) {
             Expression right = visit(ctx.mulDiv(i));
             String opText = ctx.getChild(2 * i - 1).getText();
-            left = new BinOpExpr(op_to_text(opText), left, right);
+            left = factory.binOp(op_to_text(opText), left, right);
         }
         return left;
     }
 
     @Override
     public Expression visitMulDiv(FeatherweightJavaScriptParser.MulDivContext ctx) {
-        Expression left = visit(ctx.callExpr(0));
-        for (int i = 1; i < ctx.callExpr().size(); i++) {
-            Expression right = visit(ctx.callExpr(i));
+        Expression left = visit(ctx.unary(0));
+        for (int i = 1; i < ctx.unary().size(); i++) {
+            Expression right = visit(ctx.unary(i));
             String opText = ctx.getChild(2 * i - 1).getText();
-            left = new BinOpExpr(op_to_text(opText), left, right);
+            left = factory.binOp(op_to_text(opText), left, right);
         }
         return left;
     }
 
+    @Override
+    public Expression visitSpawnExpr(FeatherweightJavaScriptParser.SpawnExprContext ctx) {
+        // the last call is the one spawned: spawn f(1)(2) calls f(1) here
+        Expression call = visit(ctx.callExpr());
+        if (!(call instanceof FunctionAppExpr)) {
+            throw new RuntimeException("spawn needs a function call");
+        }
+        FunctionAppExpr app = (FunctionAppExpr) call;
+        return factory.spawn(app.getF(), app.getArgs());
+    }
+
+    @Override
+    public Expression visitAwaitExpr(FeatherweightJavaScriptParser.AwaitExprContext ctx) {
+        return factory.await(visit(ctx.unary()));
+    }
+
+    @Override
+    public Expression visitPlainExpr(FeatherweightJavaScriptParser.PlainExprContext ctx) {
+        return visit(ctx.callExpr());
+    }
+
     @Override
     public Expression visitPrimary(FeatherweightJavaScriptParser.PrimaryContext ctx) {
         if (ctx.INT() != null)
-            return new ValueExpr(new IntVal(Integer.parseInt(ctx.INT().getText())));
+            return factory.value(IntVal.of(Integer.parseInt(ctx.INT().getText())));
         if (ctx.BOOL() != null)
-            return new ValueExpr(new BoolVal(Boolean.parseBoolean(ctx.BOOL().getText())));
+            return factory.value(BoolVal.of(Boolean.parseBoolean(ctx.BOOL().getText())));
         if (ctx.NULL() != null)
-            return new ValueExpr(new NullVal());
+            return factory.value(NullVal.NULL);
         if (ctx.ID() != null)
-            return new VarExpr(ctx.ID().getText());
+            return factory.var(ctx.ID().getText());
         if (ctx.expr() != null)
             return visit(ctx.expr());
         if (ctx.funcExpr() != null)
@@ -168,7 +219,7 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
                 }
             }
 
-            first = new FunctionAppExpr(first, args);
+            first = factory.call(first, args);
         }
         return first;
     }
@@ -182,7 +233,9 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
             }
         }
         Expression body = visit(ctx.block());
-        return new FunctionDeclExpr(params, body);
+        FunctionDeclExpr f = factory.function(params, body);
+        f.setPosition(ctx.getStart().getLine(), ctx.getStart().getCharPositionInLine() + 1);
+        return f;
     }
 
     @Override
@@ -204,7 +257,7 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
             return null;
         Expression exp = stmts.get(0);
         for (int i = 1; i < stmts.size(); i++) {
-            exp = new SeqExpr(exp, stmts.get(i));
+            exp = factory.seq(exp, stmts.get(i));
         }
         return exp;
     }
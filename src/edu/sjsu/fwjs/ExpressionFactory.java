@@ -0,0 +1,323 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates expression nodes, handing out one shared node for structurally
+ * equal subtrees (hash-consing): the second `x + 1` of a program is the
+ * same BinOpExpr as the first. Children are compared by identity, since
+ * they come from the same factory and are shared already.
+ *
+ * Sharing is safe because the structure of a node never changes after it
+ * is created. What evaluation does update, like BinOpNode specializations
+ * and inline caches, are hints a shared node merges from all its uses.
+ * Function literals are never shared: each has its own position, name,
+ * profile and closure analysis, and neither is a subtree containing one.
+ *
+ * The factory counts the nodes it was asked for and estimates the heap the
+ * shared ones saved (shallow sizes on a 64-bit JVM with compressed
+ * references). A factory only grows, so use one per program.
+ */
+public class ExpressionFactory {
+    private Map<Key, Expression> nodes = new HashMap<Key, Expression>();
+    private long requested;
+    private long savedBytes;
+
+    /**
+     * A node kind and its parts; parts that are expressions are compared
+     * by identity, int arrays by content, anything else with equals.
+     */
+    private static final class Key {
+        private Object[] parts;
+        private int hash;
+
+        Key(Object... parts) {
+            this.parts = parts;
+            int h = 1;
+            for (Object p : parts) {
+                h = 31 * h + partHash(p);
+            }
+            this.hash = h;
+        }
+
+        private static int partHash(Object p) {
+            if (p == null) {
+                return 0;
+            }
+            if (p instanceof Expression) {
+                return System.identityHashCode(p);
+            }
+            if (p instanceof int[]) {
+                return Arrays.hashCode((int[]) p);
+            }
+            return p.hashCode();
+        }
+
+        private static boolean partEquals(Object a, Object b) {
+            if (a instanceof Expression || a == null) {
+                return a == b;
+            }
+            if (a instanceof int[]) {
+                return (b instanceof int[]) && Arrays.equals((int[]) a, (int[]) b);
+            }
+            return a.equals(b);
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (!(that instanceof Key)) {
+                return false;
+            }
+            Object[] other = ((Key) that).parts;
+            if (other.length != parts.length) {
+                return false;
+            }
+            for (int i = 0; i < parts.length; i++) {
+                if (!partEquals(parts[i], other[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public Expression value(Value v) {
+        Key key = new Key("value", v);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new ValueExpr(v));
+    }
+
+    public Expression var(String name) {
+        Key key = new Key("var", name);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new VarExpr(name));
+    }
+
+    public Expression print(Expression exp) {
+        Key key = new Key("print", exp);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new PrintExpr(exp));
+    }
+
+    public Expression binOp(Op op, Expression e1, Expression e2) {
+        Key key = new Key("binop", op, e1, e2);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new BinOpExpr(op, e1, e2));
+    }
+
+    public Expression ifExpr(Expression cond, Expression thn, Expression els) {
+        Key key = new Key("if", cond, thn, els);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new IfExpr(cond, thn, els));
+    }
+
+    public Expression whileExpr(Expression cond, Expression body) {
+        return whileExpr(cond, body, null);
+    }
+
+    /**
+     * A loop counting for the JIT profile of the function it is in; loops
+     * are only shared within one function.
+     */
+    WhileExpr whileExpr(Expression cond, Expression body, FunctionProfile profile) {
+        Key key = new Key("while", cond, body, profile == null ? null : new IdentityPart(profile));
+        Expression e = shared(key);
+        return (WhileExpr) (e != null ? e : add(key, new WhileExpr(cond, body, profile)));
+    }
+
+    public Expression seq(Expression e1, Expression e2) {
+        Key key = new Key("seq", e1, e2);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new SeqExpr(e1, e2));
+    }
+
+    public Expression varDecl(String name, Expression exp) {
+        Key key = new Key("vardecl", name, exp);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new VarDeclExpr(name, exp));
+    }
+
+    public Expression assign(String name, Expression exp) {
+        Key key = new Key("assign", name, exp);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new AssignExpr(name, exp));
+    }
+
+    public Expression call(Expression f, List<Expression> args) {
+        return call(f, args, false);
+    }
+
+    public Expression call(Expression f, List<Expression> args, boolean tail) {
+        Object[] parts = new Object[args.size() + 3];
+        parts[0] = "call";
+        parts[1] = tail;
+        parts[2] = f;
+        for (int i = 0; i < args.size(); i++) {
+            parts[i + 3] = args.get(i);
+        }
+        Key key = new Key(parts);
+        Expression e = shared(key);
+        // the copy is immutable, like the rest of the node
+        return e != null ? e : add(key, new FunctionAppExpr(f, List.copyOf(args), tail));
+    }
+
+    public Expression spawn(Expression f, List<Expression> args) {
+        Object[] parts = new Object[args.size() + 2];
+        parts[0] = "spawn";
+        parts[1] = f;
+        for (int i = 0; i < args.size(); i++) {
+            parts[i + 2] = args.get(i);
+        }
+        Key key = new Key(parts);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new SpawnExpr(f, List.copyOf(args)));
+    }
+
+    public Expression await(Expression exp) {
+        Key key = new Key("await", exp);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new AwaitExpr(exp));
+    }
+
+    /**
+     * A function literal, which is never shared.
+     */
+    public FunctionDeclExpr function(List<String> params, Expression body) {
+        requested++;
+        return new FunctionDeclExpr(List.copyOf(params), body);
+    }
+
+    Expression globalVar(String name) {
+        Key key = new Key("global", name);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new GlobalVarExpr(name));
+    }
+
+    Expression localVar(String name, int[] kinds, int[] slots, boolean checkGlobal) {
+        Key key = new Key("local", name, kinds, slots, checkGlobal);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new LocalVarExpr(name, kinds, slots, checkGlobal));
+    }
+
+    Expression localDecl(String name, int slot, Expression exp, boolean cell) {
+        Key key = new Key("localdecl", name, slot, exp, cell);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new LocalDeclExpr(name, slot, exp, cell));
+    }
+
+    Expression localAssign(String name, int[] kinds, int[] slots, Expression exp) {
+        Key key = new Key("localassign", name, kinds, slots, exp);
+        Expression e = shared(key);
+        return e != null ? e : add(key, new LocalAssignExpr(name, kinds, slots, exp));
+    }
+
+    /**
+     * Wraps an object so a Key compares it by identity.
+     */
+    private static final class IdentityPart {
+        private Object o;
+
+        IdentityPart(Object o) {
+            this.o = o;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return (that instanceof IdentityPart) && ((IdentityPart) that).o == this.o;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(o);
+        }
+    }
+
+    private Expression shared(Key key) {
+        requested++;
+        Expression e = nodes.get(key);
+        if (e != null) {
+            savedBytes += sizeOf(e);
+        }
+        return e;
+    }
+
+    private Expression add(Key key, Expression node) {
+        nodes.put(key, node);
+        return node;
+    }
+
+    /**
+     * Number of nodes asked for.
+     */
+    public long getRequested() {
+        return this.requested;
+    }
+
+    /**
+     * Number of distinct nodes created; function literals are not counted.
+     */
+    public int getCreated() {
+        return nodes.size();
+    }
+
+    /**
+     * Estimated bytes of the nodes that did not have to be created.
+     */
+    public long getSavedBytes() {
+        return this.savedBytes;
+    }
+
+    /**
+     * Rough shallow size of a node with what it alone holds: 12 bytes of
+     * header and 4 per reference or int, rounded up to 8.
+     */
+    static long sizeOf(Expression e) {
+        if (e instanceof BinOpExpr) {
+            return 32;
+        }
+        if (e instanceof FunctionAppExpr) {
+            // the node, and the list of its arguments
+            return 32 + align(16 + 4 * ((FunctionAppExpr) e).getArgs().size());
+        }
+        if (e instanceof SpawnExpr) {
+            return 16 + align(16 + 4 * ((SpawnExpr) e).getArgs().size());
+        }
+        if (e instanceof LocalVarExpr) {
+            int n = ((LocalVarExpr) e).getKinds().length;
+            return 32 + 2 * align(16 + 4 * n);
+        }
+        if (e instanceof LocalAssignExpr) {
+            int n = ((LocalAssignExpr) e).getKinds().length;
+            return 32 + 2 * align(16 + 4 * n);
+        }
+        if (e instanceof LocalDeclExpr) {
+            return 32;
+        }
+        if (e instanceof IfExpr || e instanceof WhileExpr || e instanceof SeqExpr
+                || e instanceof VarDeclExpr || e instanceof AssignExpr) {
+            return 24;
+        }
+        // ValueExpr, VarExpr, GlobalVarExpr, PrintExpr, AwaitExpr
+        return 16;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    @Override
+    public String toString() {
+        long shared = requested - nodes.size();
+        return String.format("nodes: %d requested, %d created, %d shared (%.1f%%), about %d KB saved",
+                requested, nodes.size(), shared, requested == 0 ? 0.0 : 100.0 * shared / requested,
+                savedBytes / 1024);
+    }
+}
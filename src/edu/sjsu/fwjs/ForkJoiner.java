@@ -0,0 +1,203 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates independent operands of the tree-walker in parallel on a
+ * ForkJoinPool. PurityAnalysis.analyzeForks marks the fork points: binary
+ * operations whose two operands, and calls at least two of whose
+ * arguments, call pure functions and have no effects of their own. Since
+ * neither side can change anything the other reads, running them at the
+ * same time gives the same values as running them in order.
+ *
+ * Errors stay deterministic as well: operands are joined from left to
+ * right, and the first one that failed is rethrown as it was, so the
+ * script stops with the error the sequential order would have given.
+ *
+ * Forking does not pay off for small operands, so a fork point evaluates
+ * its operands in order once the current thread is nested more than
+ * maxDepth fork points deep, or once its worker already has enough
+ * queued tasks for idle workers to steal. Below that cutoff, functions
+ * may be JIT-compiled again (see ClosureVal.compiledCode).
+ *
+ * Parallel evaluation is enabled by setting a ForkJoiner on the
+ * ExecutionContext of a run. It is off while the run has a Budget or a
+ * Profiler, which count per thread of the run. The VM ignores fork
+ * points.
+ */
+public class ForkJoiner {
+    // queued tasks of a worker beyond which it stops forking
+    private static final int MAX_SURPLUS = 3;
+
+    private ForkJoinPool pool;
+    private int maxDepth;
+    // fork points the current thread is nested in, as an array to change it in place
+    private ThreadLocal<int[]> depth = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * A ForkJoiner with a thread per available processor.
+     */
+    public ForkJoiner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ForkJoiner(int parallelism) {
+        this(new ForkJoinPool(parallelism), defaultDepth(parallelism));
+    }
+
+    public ForkJoiner(ForkJoinPool pool, int maxDepth) {
+        this.pool = pool;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Enough levels of binary forks for a few tasks per thread.
+     */
+    private static int defaultDepth(int parallelism) {
+        return 32 - Integer.numberOfLeadingZeros(parallelism) + 3;
+    }
+
+    public ForkJoinPool getPool() {
+        return this.pool;
+    }
+
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+
+    /**
+     * The ForkJoiner of a run, or null if the run should not fork.
+     */
+    static ForkJoiner of(ExecutionContext context) {
+        ForkJoiner f = context.getForkJoiner();
+        if (f == null || context.getBudget() != null || context.getProfiler() != null) {
+            return null;
+        }
+        return f;
+    }
+
+    /**
+     * Whether a fork point reached on this thread now should fork.
+     */
+    boolean wantsFork() {
+        if (depth.get()[0] >= maxDepth) {
+            return false;
+        }
+        return ForkJoinTask.getPool() != pool || ForkJoinTask.getSurplusQueuedTaskCount() <= MAX_SURPLUS;
+    }
+
+    /**
+     * Evaluates two operands, the second one on another thread if a
+     * worker is free to take it.
+     */
+    Value[] evaluate(Expression e1, Expression e2, Environment env) {
+        return evaluate(new Expression[] { e1, e2 }, env);
+    }
+
+    Value[] evaluate(List<Expression> exps, Environment env) {
+        return evaluate(exps.toArray(new Expression[0]), env);
+    }
+
+    /**
+     * Evaluates operands in the same environment: the first one on this
+     * thread, the others as tasks. Values come back in order.
+     */
+    private Value[] evaluate(Expression[] exps, Environment env) {
+        Value[] values = new Value[exps.length];
+        int[] d = depth.get();
+        int outer = d[0];
+        ExecutionContext context = env.getContext();
+        Operand[] tasks = new Operand[exps.length];
+        d[0] = outer + 1;
+        try {
+            // fork the last one first, so this thread takes them back in order
+            for (int i = exps.length - 1; i > 0; i--) {
+                tasks[i] = new Operand(exps[i], env, context, outer + 1);
+                if (ForkJoinTask.getPool() == pool) {
+                    tasks[i].fork();
+                } else {
+                    pool.execute(tasks[i]);
+                }
+            }
+            try {
+                values[0] = exps[0].evaluate(env);
+            } catch (RuntimeException | Error e) {
+                // in order, the other operands would never have run; the
+                // ones a worker took are waited for, since they read the
+                // frame, which may be pooled once this call fails
+                for (int i = 1; i < tasks.length; i++) {
+                    if (!tasks[i].tryUnfork()) {
+                        tasks[i].quietlyJoin();
+                    }
+                }
+                throw e;
+            }
+            for (int i = 1; i < tasks.length; i++) {
+                Operand t = tasks[i];
+                if (t.tryUnfork()) {
+                    // nobody took it
+                    t.compute();
+                } else {
+                    t.quietlyJoin();
+                }
+                values[i] = t.result();
+            }
+            return values;
+        } finally {
+            d[0] = outer;
+        }
+    }
+
+    /**
+     * An operand evaluated by a worker. It keeps its error instead of
+     * leaving it to ForkJoinTask, which would wrap it.
+     */
+    private final class Operand extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private transient Expression exp;
+        private transient Environment env;
+        private transient ExecutionContext context;
+        private int level;
+        private transient Value value;
+        private transient Throwable failure;
+
+        Operand(Expression exp, Environment env, ExecutionContext context, int level) {
+            this.exp = exp;
+            this.env = env;
+            this.context = context;
+            this.level = level;
+        }
+
+        @Override
+        protected void compute() {
+            int[] d = depth.get();
+            int saved = d[0];
+            d[0] = level;
+            // functions of a prelude print through the context of the thread
+            ExecutionContext savedContext = ExecutionContext.current();
+            ExecutionContext.setCurrent(context);
+            try {
+                value = exp.evaluate(env);
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                ExecutionContext.setCurrent(savedContext);
+                d[0] = saved;
+            }
+        }
+
+        Value result() {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package edu.sjsu.fwjs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a script on a running FwjsServer and exits with the status of the
+ * run. Output appears as the server sends it.
+ *
+ * Usage: FwjsClient [-socket=path] [-engine=tree|vm] [-opt=off] [-fuel=n]
+ *                   [-timeout=ms] [file]
+ * The script is read here, from the file or stdin, and its source is sent,
+ * so relative paths and the server's working directory do not matter.
+ */
+public class FwjsClient {
+
+    public static void main(String[] args) throws IOException {
+        Path socket = FwjsServer.defaultSocket();
+        String inputFile = null;
+        List<String> options = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("-socket=")) {
+                socket = Paths.get(arg.substring("-socket=".length()));
+            } else if (arg.startsWith("-")) {
+                // checked by the server
+                options.add(arg);
+            } else {
+                inputFile = arg;
+            }
+        }
+        byte[] source;
+        if (inputFile != null) {
+            source = Files.readAllBytes(Paths.get(inputFile));
+        } else {
+            source = System.in.readAllBytes();
+        }
+        System.exit(run(socket, options, source));
+    }
+
+    /**
+     * Sends a script to the server, copies its output to System.out and
+     * System.err, and returns the exit status.
+     */
+    static int run(Path socket, List<String> options, byte[] source) throws IOException {
+        try (SocketChannel c = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            c.connect(UnixDomainSocketAddress.of(socket));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(c));
+            FwjsServer.writeRequest(out, options, source);
+            DataInputStream in = new DataInputStream(Channels.newInputStream(c));
+            byte[] kind = new byte[1];
+            while (true) {
+                byte[] payload = FwjsServer.readFrame(in, kind);
+                switch (kind[0]) {
+                    case FwjsServer.OUT:
+                        System.out.write(payload);
+                        break;
+                    case FwjsServer.ERR:
+                        System.out.flush();
+                        System.err.write(payload);
+                        System.err.flush();
+                        break;
+                    case FwjsServer.EXIT:
+                        System.out.flush();
+                        return ByteBuffer.wrap(payload).getInt();
+                    default:
+                        throw new IOException("Unexpected frame from the daemon: " + kind[0]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * JSR-223 engine for FWJS.
+ *
+ * compile parses, optimizes and resolves a script once, like
+ * Interpreter.compile; the CompiledScript can then be evaluated any number
+ * of times. Each evaluation runs in a fresh global Environment on top of a
+ * read-only scope holding the global and engine scope bindings of the
+ * ScriptContext, like a Prelude: the script sees the bindings, and its own
+ * `var x` shadows a binding x. When it is done, the global variables of
+ * the script are written back to the engine scope. print goes to the
+ * writer of the ScriptContext.
+ *
+ * Values are mapped as follows: Integer (and other integral types that fit
+ * in an int) to IntVal, Boolean to BoolVal, null to NullVal, and back.
+ * Functions are handed out as the FWJS values themselves, so they can be
+ * passed in again. Bindings of any other type, and bindings whose names
+ * are not identifiers, are not visible to scripts.
+ *
+ * The attributes FUEL and TIMEOUT (in milliseconds) of the ScriptContext
+ * put a Budget on each evaluation.
+ */
+public class FwjsScriptEngine extends AbstractScriptEngine implements Compilable {
+    public static final String FUEL = "fwjs.fuel";
+    public static final String TIMEOUT = "fwjs.timeout";
+
+    private ScriptEngineFactory factory;
+
+    public FwjsScriptEngine() {
+        this(new FwjsScriptEngineFactory());
+    }
+
+    FwjsScriptEngine(ScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return compile(reader).eval(context);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[8192];
+        try {
+            for (int n = script.read(buf); n >= 0; n = script.read(buf)) {
+                sb.append(buf, 0, n);
+            }
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return compile(sb.toString());
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        SyntaxErrors errors = new SyntaxErrors(false);
+        Expression prog;
+        try {
+            prog = Interpreter.compile(script.getBytes(StandardCharsets.UTF_8), true, new ExpressionFactory(),
+                    errors);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        if (errors.getMessage() != null) {
+            Object file = getContext().getAttribute(ScriptEngine.FILENAME);
+            throw new ScriptException(errors.getMessage(), file == null ? null : file.toString(),
+                    errors.getLine(), errors.getColumn());
+        }
+        return new FwjsCompiledScript(this, prog);
+    }
+
+    /**
+     * Converts an FWJS value to the Java value handed to the embedder.
+     */
+    public static Object toJava(Value v) {
+        if (v == null || v instanceof NullVal) {
+            return null;
+        }
+        if (v instanceof IntVal) {
+            return ((IntVal) v).toInt();
+        }
+        if (v instanceof BoolVal) {
+            return ((BoolVal) v).toBoolean();
+        }
+        return v;
+    }
+
+    /**
+     * Converts a Java value to an FWJS value. Throws IllegalArgumentException
+     * if there is no FWJS counterpart.
+     */
+    public static Value fromJava(Object o) {
+        if (o == null) {
+            return NullVal.NULL;
+        }
+        if (o instanceof Value) {
+            return (Value) o;
+        }
+        if (o instanceof Integer || o instanceof Short || o instanceof Byte) {
+            return IntVal.of(((Number) o).intValue());
+        }
+        if (o instanceof Long && (Long) o == ((Long) o).intValue()) {
+            return IntVal.of(((Long) o).intValue());
+        }
+        if (o instanceof Boolean) {
+            return BoolVal.of((Boolean) o);
+        }
+        throw new IllegalArgumentException("No FWJS value for " + o.getClass().getName());
+    }
+}
+
+/**
+ * A parsed, optimized and resolved script. Running it specializes the tree
+ * in place (see BinOpNode and the JIT), so repeated evaluations get faster.
+ * Like any compiled program (see Isolate), it may be evaluated by several
+ * threads at once, as long as each uses a ScriptContext of its own: the
+ * globals of a run are written back to the bindings of its context.
+ */
+class FwjsCompiledScript extends CompiledScript {
+    private FwjsScriptEngine engine;
+    private Expression prog;
+
+    FwjsCompiledScript(FwjsScriptEngine engine, Expression prog) {
+        this.engine = engine;
+        this.prog = prog;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        ExecutionContext exec = new ExecutionContext(context.getWriter());
+        exec.setBudget(budget(context));
+        Environment bindings = new Environment((ExecutionContext) null);
+        bind(bindings, context.getBindings(ScriptContext.GLOBAL_SCOPE));
+        bind(bindings, context.getBindings(ScriptContext.ENGINE_SCOPE));
+        bindings.freeze();
+        Environment env = new Environment(exec, bindings);
+
+        Value result;
+        try {
+            result = Interpreter.run(prog, "tree", env);
+        } catch (RuntimeException e) {
+            throw (ScriptException) new ScriptException(e.getMessage()).initCause(e);
+        } finally {
+            flush(exec);
+        }
+
+        Bindings engineScope = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (engineScope != null) {
+            for (Map.Entry<String, Value> var : env.getVars().entrySet()) {
+                engineScope.put(var.getKey(), FwjsScriptEngine.toJava(var.getValue()));
+            }
+        }
+        return FwjsScriptEngine.toJava(result);
+    }
+
+    @Override
+    public FwjsScriptEngine getEngine() {
+        return engine;
+    }
+
+    private static Budget budget(ScriptContext context) {
+        Object fuel = context.getAttribute(FwjsScriptEngine.FUEL);
+        Object timeout = context.getAttribute(FwjsScriptEngine.TIMEOUT);
+        if (!(fuel instanceof Number) && !(timeout instanceof Number)) {
+            return null;
+        }
+        Budget budget = new Budget();
+        if (fuel instanceof Number) {
+            budget.setFuel(((Number) fuel).longValue());
+        }
+        if (timeout instanceof Number) {
+            budget.setTimeout(((Number) timeout).longValue());
+        }
+        return budget;
+    }
+
+    private static void bind(Environment env, Bindings bindings) {
+        if (bindings == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> b : bindings.entrySet()) {
+            if (!isIdentifier(b.getKey())) {
+                continue; // e.g. javax.script.filename
+            }
+            Value v;
+            try {
+                v = FwjsScriptEngine.fromJava(b.getValue());
+            } catch (IllegalArgumentException e) {
+                continue; // not an FWJS value
+            }
+            env.updateVar(b.getKey(), v);
+        }
+    }
+
+    private static boolean isIdentifier(String name) {
+        if (name.isEmpty() || !(Character.isLetter(name.charAt(0)) || name.charAt(0) == '_')) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void flush(ExecutionContext exec) throws ScriptException {
+        try {
+            exec.flush();
+        } catch (UncheckedIOException e) {
+            throw new ScriptException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Makes FWJS available through javax.script, e.g.
+ *   new ScriptEngineManager().getEngineByName("fwjs")
+ * The factory is registered in META-INF/services.
+ */
+public class FwjsScriptEngineFactory implements ScriptEngineFactory {
+    private static final List<String> NAMES = Collections.unmodifiableList(
+            Arrays.asList("fwjs", "FWJS", "FeatherweightJavaScript"));
+    private static final List<String> EXTENSIONS = Collections.singletonList("fwjs");
+
+    @Override
+    public String getEngineName() {
+        return "FeatherweightJavaScript";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return Interpreter.VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return EXTENSIONS;
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return NAMES;
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "FeatherweightJavaScript";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return "1";
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.NAME:
+                return NAMES.get(0);
+            case ScriptEngine.ENGINE:
+                return getEngineName();
+            case ScriptEngine.ENGINE_VERSION:
+                return getEngineVersion();
+            case ScriptEngine.LANGUAGE:
+                return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION:
+                return getLanguageVersion();
+            default:
+                // includes THREADING: a run writes its globals back to the
+                // bindings of the context, which are shared by default
+                return null;
+        }
+    }
+
+    /**
+     * FWJS has no objects, so this is a plain function call.
+     */
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        return m + "(" + String.join(", ", args) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print(" + toDisplay + ");";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        StringBuilder sb = new StringBuilder();
+        for (String statement : statements) {
+            sb.append(statement);
+            if (!statement.trim().endsWith(";") && !statement.trim().endsWith("}")) {
+                sb.append(';');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new FwjsScriptEngine(this);
+    }
+}
@@ -0,0 +1,310 @@
+package edu.sjsu.fwjs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A long-lived interpreter listening on a Unix domain socket, so running a
+ * script does not pay for starting a JVM, loading classes and warming up
+ * the JIT every time. FwjsClient is the matching command line client;
+ * `Interpreter -daemon` starts a server.
+ *
+ * Every connection carries one request and is served on its own thread
+ * (see Isolate.newExecutor), in an Isolate of its own, so requests run at
+ * the same time without seeing each other's variables. Compiled programs
+ * are kept by the SHA-256 of their source (see ScriptCache.key), so a
+ * script sent again skips parsing too; the trees are shared between the
+ * isolates running them.
+ *
+ * Anyone who can connect can run scripts as the user of the server, so the
+ * socket is only accessible to that user: a directory created for it is
+ * rwx------, and the socket itself is made rw------- right after bind.
+ *
+ * The protocol, in DataOutputStream encoding:
+ * - request: the number of options, each option as UTF (-engine=, -opt=off,
+ *   -fuel=, -timeout=), then the length of the source and its bytes, at
+ *   most MAX_SOURCE of them.
+ * - response: frames of a kind byte and a length-prefixed payload: OUT for
+ *   printed output, ERR for an error message, and a last EXIT frame with
+ *   the exit status as its 4-byte payload. A request the server can not
+ *   use gets an ERR frame and status 2.
+ */
+public class FwjsServer {
+    static final byte OUT = 'o';
+    static final byte ERR = 'e';
+    static final byte EXIT = 'x';
+
+    // compiled programs kept, least recently used ones are dropped first
+    private static final int MAX_PROGRAMS = 256;
+    // longest source accepted, so a bad length can not exhaust the heap
+    static final int MAX_SOURCE = 16 << 20;
+
+    private Path socket;
+    private Map<String, Expression> programs;
+
+    public FwjsServer(Path socket) {
+        this.socket = socket;
+        this.programs = new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+                return size() > MAX_PROGRAMS;
+            }
+        };
+    }
+
+    /**
+     * The socket used when none is given: ~/.fwjs/daemon.sock, next to the
+     * default ScriptCache.
+     */
+    public static Path defaultSocket() {
+        return Paths.get(System.getProperty("user.home"), ".fwjs", "daemon.sock");
+    }
+
+    /**
+     * Accepts requests until the JVM is stopped. A socket file left behind
+     * by a server that did not stop cleanly is replaced.
+     */
+    public void serve() throws IOException {
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            FileAttribute<?> ownerOnly = PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------"));
+            Files.createDirectories(socket.toAbsolutePath().getParent(), ownerOnly);
+        } else {
+            Files.createDirectories(socket.toAbsolutePath().getParent());
+        }
+        Files.deleteIfExists(socket);
+        ExecutorService executor = Isolate.newExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            if (posix) {
+                Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }));
+            System.err.println("fwjs daemon listening on " + socket);
+            while (true) {
+                SocketChannel client = server.accept();
+                executor.execute(() -> serve(client));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try (SocketChannel c = client) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(c));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(c));
+            int status;
+            try {
+                status = handle(in, out);
+            } catch (EOFException | UTFDataFormatException e) {
+                // cut short, or not a request at all
+                writeFrame(out, ERR, "Bad request for the daemon: " + e + "\n");
+                status = 2;
+            }
+            out.writeByte(EXIT);
+            out.writeInt(4);
+            out.writeInt(status);
+            out.flush();
+        } catch (IOException e) {
+            // the client went away; its run is over anyway
+        }
+    }
+
+    /**
+     * Runs one request and returns its exit status: 0 when the script ran,
+     * 1 when it failed, 2 for a bad request.
+     */
+    private int handle(DataInputStream in, DataOutputStream out) throws IOException {
+        String engine = "tree";
+        boolean optimize = true;
+        long fuel = -1;
+        long timeout = -1;
+        // the first problem with the options, reported once the request is read
+        String error = null;
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String arg = in.readUTF();
+            if (arg.startsWith("-engine=")) {
+                engine = arg.substring("-engine=".length());
+                if (!engine.equals("tree") && !engine.equals("vm") && error == null) {
+                    error = "Unknown engine for the daemon: " + engine;
+                }
+            } else if (arg.equals("-opt=off")) {
+                optimize = false;
+            } else if (arg.startsWith("-fuel=")) {
+                fuel = limit(arg, "-fuel=");
+                if (fuel < 0 && error == null) {
+                    error = "Bad value for the daemon: " + arg;
+                }
+            } else if (arg.startsWith("-timeout=")) {
+                timeout = limit(arg, "-timeout=");
+                if (timeout < 0 && error == null) {
+                    error = "Bad value for the daemon: " + arg;
+                }
+            } else if (error == null) {
+                error = "Unknown option for the daemon: " + arg;
+            }
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_SOURCE) {
+            // the rest of the request can not be read
+            writeFrame(out, ERR, "Bad source length for the daemon: " + length + "\n");
+            return 2;
+        }
+        byte[] source = new byte[length];
+        in.readFully(source);
+        if (error != null) {
+            writeFrame(out, ERR, error + "\n");
+            return 2;
+        }
+
+        OutputSink sink = new BufferedSink(new FrameOutputStream(out));
+        try {
+            Expression prog = compile(source, optimize);
+            Budget budget = null;
+            if (fuel >= 0 || timeout >= 0) {
+                budget = new Budget();
+                if (fuel >= 0) {
+                    budget.setFuel(fuel);
+                }
+                if (timeout >= 0) {
+                    budget.setTimeout(timeout);
+                }
+            }
+            new Isolate(null, sink, engine).run(prog, budget);
+            return 0;
+        } catch (RuntimeException | StackOverflowError e) {
+            // what the script printed is flushed by Isolate.run
+            writeFrame(out, ERR, e + "\n");
+            return 1;
+        }
+    }
+
+    /**
+     * The number of a -fuel= or -timeout= option, or -1 if it is not a
+     * number of at least 0.
+     */
+    private static long limit(String arg, String prefix) {
+        try {
+            return Math.max(Long.parseLong(arg.substring(prefix.length())), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The compiled tree of a source (see Interpreter.compile), kept for
+     * later requests. Two requests for the same new source may both compile
+     * it; the trees are equal, so the second one just replaces the first.
+     */
+    private Expression compile(byte[] source, boolean optimize) throws IOException {
+        String key = toHex(ScriptCache.key(source, optimize));
+        synchronized (programs) {
+            Expression prog = programs.get(key);
+            if (prog != null) {
+                return prog;
+            }
+        }
+        Expression prog = Interpreter.compile(source, optimize, new ExpressionFactory());
+        synchronized (programs) {
+            programs.put(key, prog);
+        }
+        return prog;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void writeFrame(DataOutputStream out, byte kind, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeFrame(out, kind, bytes, 0, bytes.length);
+    }
+
+    private static void writeFrame(DataOutputStream out, byte kind, byte[] b, int off, int len) throws IOException {
+        out.writeByte(kind);
+        out.writeInt(len);
+        out.write(b, off, len);
+        out.flush();
+    }
+
+    /**
+     * Sends what a BufferedSink writes as OUT frames.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private DataOutputStream out;
+
+        FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                writeFrame(out, OUT, b, off, len);
+            }
+        }
+    }
+
+    /**
+     * Reads one frame from a server: its kind, then its payload.
+     */
+    static byte[] readFrame(DataInputStream in, byte[] kind) throws IOException {
+        kind[0] = in.readByte();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Writes a request: its options and the source of the script.
+     */
+    static void writeRequest(DataOutputStream out, List<String> options, byte[] source) throws IOException {
+        out.writeInt(options.size());
+        for (String o : options) {
+            out.writeUTF(o);
+        }
+        out.writeInt(source.length);
+        out.write(source);
+        out.flush();
+    }
+}
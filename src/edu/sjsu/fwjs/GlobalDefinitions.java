@@ -0,0 +1,168 @@
+package edu.sjsu.fwjs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the global variables of a resolved program may be defined, for
+ * analyses that need to know which global names always stand for the same
+ * function (see PurityAnalysis and TypeInference).
+ *
+ * A global is defined by a var or an assignment in top-level code, and
+ * counts as defined more than once if that is in a loop. An assignment in
+ * a function only updates a global if none of the slots it may go to is
+ * declared when it runs (see LocalAssignExpr), so it counts as a
+ * definition unless the name is certainly declared by then, in the
+ * function or one enclosing it: it is a parameter, or its var comes before
+ * the assignment in code that always runs, outside branches and loops.
+ * The same goes for reading a local, which may read the global instead.
+ */
+final class GlobalDefinitions {
+    // how often each global name may be (re)defined, 2 meaning "more than once"
+    private Map<String, Integer> definitions = new HashMap<String, Integer>();
+    private Map<String, FunctionDeclExpr> globalFunctions = new HashMap<String, FunctionDeclExpr>();
+    // variables and assignments of each function that may use a global
+    private Map<FunctionDeclExpr, Set<Expression>> globalUses =
+            new IdentityHashMap<FunctionDeclExpr, Set<Expression>>();
+
+    private GlobalDefinitions() {
+    }
+
+    static GlobalDefinitions of(Expression prog) {
+        GlobalDefinitions g = new GlobalDefinitions();
+        g.collect(prog, false, null, new HashSet<String>());
+        return g;
+    }
+
+    /**
+     * Walks exp in the order it runs. fn is the innermost enclosing
+     * function, null at top level, and declared the names certainly
+     * declared in it and the functions enclosing it at this point.
+     */
+    private void collect(Expression exp, boolean inLoop, FunctionDeclExpr fn, Set<String> declared) {
+        if (exp instanceof LocalVarExpr) {
+            LocalVarExpr v = (LocalVarExpr) exp;
+            if (v.checksGlobal() && !declared.contains(v.getVarName())) {
+                addGlobalUse(fn, v);
+            }
+        } else if (exp instanceof VarDeclExpr) {
+            VarDeclExpr d = (VarDeclExpr) exp;
+            collect(d.getExp(), inLoop, fn, declared);
+            define(d.getVarName(), d.getExp(), inLoop || fn != null);
+        } else if (exp instanceof AssignExpr) {
+            AssignExpr a = (AssignExpr) exp;
+            collect(a.getE(), inLoop, fn, declared);
+            define(a.getVarName(), a.getE(), inLoop || fn != null);
+        } else if (exp instanceof LocalAssignExpr) {
+            LocalAssignExpr a = (LocalAssignExpr) exp;
+            collect(a.getE(), inLoop, fn, declared);
+            if (!declared.contains(a.getVarName())) {
+                define(a.getVarName(), null, true);
+                addGlobalUse(fn, a);
+            }
+        } else if (exp instanceof LocalDeclExpr) {
+            LocalDeclExpr d = (LocalDeclExpr) exp;
+            collect(d.getExp(), inLoop, fn, declared);
+            declared.add(d.getVarName());
+        } else if (exp instanceof PrintExpr) {
+            collect(((PrintExpr) exp).getExp(), inLoop, fn, declared);
+        } else if (exp instanceof BinOpExpr) {
+            collect(((BinOpExpr) exp).getE1(), inLoop, fn, declared);
+            collect(((BinOpExpr) exp).getE2(), inLoop, fn, declared);
+        } else if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            collect(i.getCond(), inLoop, fn, declared);
+            // declarations in one branch may not have run
+            collect(i.getThn(), inLoop, fn, new HashSet<String>(declared));
+            collect(i.getEls(), inLoop, fn, new HashSet<String>(declared));
+        } else if (exp instanceof CountingLoopExpr) {
+            collect(((CountingLoopExpr) exp).getLoop(), inLoop, fn, declared);
+        } else if (exp instanceof WhileExpr) {
+            collect(((WhileExpr) exp).getCond(), true, fn, declared);
+            collect(((WhileExpr) exp).getBody(), true, fn, new HashSet<String>(declared));
+        } else if (exp instanceof SeqExpr) {
+            collect(((SeqExpr) exp).getE1(), inLoop, fn, declared);
+            collect(((SeqExpr) exp).getE2(), inLoop, fn, declared);
+        } else if (exp instanceof FunctionAppExpr) {
+            collect(((FunctionAppExpr) exp).getF(), inLoop, fn, declared);
+            for (Expression arg : ((FunctionAppExpr) exp).getArgs()) {
+                collect(arg, inLoop, fn, declared);
+            }
+        } else if (exp instanceof SpawnExpr) {
+            collect(((SpawnExpr) exp).getF(), inLoop, fn, declared);
+            for (Expression arg : ((SpawnExpr) exp).getArgs()) {
+                collect(arg, inLoop, fn, declared);
+            }
+        } else if (exp instanceof AwaitExpr) {
+            collect(((AwaitExpr) exp).getExp(), inLoop, fn, declared);
+        } else if (exp instanceof FunctionDeclExpr) {
+            FunctionDeclExpr f = (FunctionDeclExpr) exp;
+            // the closure runs after what was declared when it was created
+            Set<String> inner = new HashSet<String>(declared);
+            inner.addAll(f.getParams());
+            collect(f.getBody(), false, f, inner);
+        }
+    }
+
+    private void define(String name, Expression value, boolean many) {
+        Integer n = definitions.get(name);
+        definitions.put(name, many || n != null ? 2 : 1);
+        if (value instanceof FunctionDeclExpr) {
+            globalFunctions.put(name, (FunctionDeclExpr) value);
+        }
+    }
+
+    private void addGlobalUse(FunctionDeclExpr fn, Expression exp) {
+        globalUses.computeIfAbsent(fn, k -> Collections.newSetFromMap(
+                new IdentityHashMap<Expression, Boolean>())).add(exp);
+    }
+
+    /**
+     * Whether the program may define a global of that name.
+     */
+    boolean isDefined(String name) {
+        return definitions.containsKey(name);
+    }
+
+    /**
+     * The function a global name stands for while the program runs, or null
+     * if it may stand for different values.
+     */
+    FunctionDeclExpr stableFunction(String name) {
+        Integer n = definitions.get(name);
+        return n != null && n == 1 ? globalFunctions.get(name) : null;
+    }
+
+    /**
+     * The global name a function literal is stored under for the whole
+     * run, or null if there is none.
+     */
+    String stableName(FunctionDeclExpr f) {
+        for (Map.Entry<String, FunctionDeclExpr> e : globalFunctions.entrySet()) {
+            if (e.getValue() == f) {
+                return definitions.get(e.getKey()) == 1 ? e.getKey() : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether a variable in the body of fn may read a global.
+     */
+    boolean readsGlobal(FunctionDeclExpr fn, LocalVarExpr var) {
+        Set<Expression> uses = globalUses.get(fn);
+        return uses != null && uses.contains(var);
+    }
+
+    /**
+     * Whether an assignment in the body of fn may update a global.
+     */
+    boolean writesGlobal(FunctionDeclExpr fn, LocalAssignExpr assign) {
+        Set<Expression> uses = globalUses.get(fn);
+        return uses != null && uses.contains(assign);
+    }
+}
@@ -6,28 +6,499 @@ import edu.sjsu.fwjs.ExpressionBuilderVisitor;
 import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
 import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Interpreter {
 
+    /**
+     * Part of the ScriptCache key; change it when the meaning of a cached
+     * tree changes, e.g. the parser or the optimizer passes.
+     */
+    public static final String VERSION = "0.11";
+
+    /**
+     * Usage: Interpreter [-engine=tree|vm] [-jit=off] [-opt=off] [-dump-ast]
+     *                    [-cache=on|off|warm|clear] [-cache-dir=dir] [-stream]
+     *                    [-fuel=n] [-timeout=ms] [-profile] [-profile-folded=file]
+     *                    [-async-output] [-memo[=entries]] [-parallel[=threads]]
+     *                    [-daemon[=socket]] [-typecheck] [file]
+     * The tree-walker is the default engine; vm compiles the program to
+     * bytecode first. The tree-walker compiles hot numeric functions to JVM
+     * bytecode unless -jit=off is given. -opt=off skips the Optimizer, and
+     * -dump-ast prints the tree before and after optimization to stderr,
+     * and how many of its nodes were shared (see ExpressionFactory).
+     *
+     * Parsed and optimized scripts are kept in a ScriptCache (by default in
+     * ~/.fwjs/cache), so running an unchanged script again skips parsing.
+     * -cache=off bypasses the cache, -cache=warm only fills it without
+     * running the script, and -cache=clear empties it and exits.
+     *
+     * -stream parses and runs one top-level statement at a time, see
+     * runStream. It is meant for huge or endless input, so the cache is not
+     * used in that mode.
+     *
+     * -fuel limits the number of function calls plus loop iterations, and
+     * -timeout the running time in milliseconds (see Budget); when either
+     * runs out the script stops with a BudgetExceededException.
+     *
+     * -profile prints the time spent in each function to stderr when the
+     * script is done, and -profile-folded writes the call stacks in the
+     * folded format of flame graph tools (see Profiler). Profiling works
+     * with the tree-walker only.
+     *
+     * print output is buffered (see BufferedSink) and flushed when the script
+     * ends or fails. -async-output writes it from a thread of its own
+     * instead (see AsyncSink).
+     *
+     * -memo stores the results of calls to pure functions (see
+     * PurityAnalysis) in a Memoizer of the given size, and prints its hit
+     * and miss counts to stderr at the end. It needs the whole program, so
+     * it can not be combined with -stream.
+     *
+     * -parallel lets the tree-walker evaluate independent calls to pure
+     * functions in parallel, on the given number of threads (see
+     * ForkJoiner). Like -memo, it does not work with -stream.
+     *
+     * Types are inferred before a whole program runs (see TypeInference),
+     * and -typecheck reports the type errors found instead of running the
+     * script, which then exits with status 1.
+     *
+     * -daemon does not run a script but serves FwjsClient requests on a Unix
+     * domain socket (by default ~/.fwjs/daemon.sock) until it is killed, see
+     * FwjsServer. Of the other options only -jit=off applies to it.
+     *
+     * Without a file the script is read from stdin.
+     */
     public static void main(String[] args) throws Exception {
         String inputFile = null;
-        if (args.length > 0)
-            inputFile = args[0];
+        String engine = "tree";
+        boolean optimize = true;
+        boolean dumpAst = false;
+        boolean typecheck = false;
+        String cacheMode = "on";
+        Path cacheDir = ScriptCache.defaultDir();
+        boolean stream = false;
+        long fuel = -1;
+        long timeout = -1;
+        boolean profile = false;
+        String foldedFile = null;
+        boolean asyncOutput = false;
+        Memoizer memoizer = null;
+        ForkJoiner forkJoiner = null;
+        Path daemonSocket = null;
+        for (String arg : args) {
+            if (arg.startsWith("-engine=")) {
+                engine = arg.substring("-engine=".length());
+            } else if (arg.equals("-jit=off")) {
+                JitCompiler.setEnabled(false);
+            } else if (arg.equals("-opt=off")) {
+                optimize = false;
+            } else if (arg.equals("-dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("-typecheck")) {
+                typecheck = true;
+            } else if (arg.startsWith("-cache=")) {
+                cacheMode = arg.substring("-cache=".length());
+            } else if (arg.startsWith("-cache-dir=")) {
+                cacheDir = Paths.get(arg.substring("-cache-dir=".length()));
+            } else if (arg.equals("-stream")) {
+                stream = true;
+            } else if (arg.startsWith("-fuel=")) {
+                fuel = Long.parseLong(arg.substring("-fuel=".length()));
+            } else if (arg.startsWith("-timeout=")) {
+                timeout = Long.parseLong(arg.substring("-timeout=".length()));
+            } else if (arg.equals("-profile")) {
+                profile = true;
+            } else if (arg.startsWith("-profile-folded=")) {
+                foldedFile = arg.substring("-profile-folded=".length());
+            } else if (arg.equals("-async-output")) {
+                asyncOutput = true;
+            } else if (arg.equals("-memo")) {
+                memoizer = new Memoizer();
+            } else if (arg.startsWith("-memo=")) {
+                memoizer = new Memoizer(Integer.parseInt(arg.substring("-memo=".length())));
+            } else if (arg.equals("-parallel")) {
+                forkJoiner = new ForkJoiner();
+            } else if (arg.startsWith("-parallel=")) {
+                forkJoiner = new ForkJoiner(Integer.parseInt(arg.substring("-parallel=".length())));
+            } else if (arg.equals("-daemon")) {
+                daemonSocket = FwjsServer.defaultSocket();
+            } else if (arg.startsWith("-daemon=")) {
+                daemonSocket = Paths.get(arg.substring("-daemon=".length()));
+            } else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                inputFile = arg;
+            }
+        }
+        if (daemonSocket != null) {
+            new FwjsServer(daemonSocket).serve();
+            return;
+        }
+        Profiler profiler = null;
+        if (profile || foldedFile != null) {
+            if (!engine.equals("tree")) {
+                throw new IllegalArgumentException("The profiler only works with -engine=tree");
+            }
+            profiler = new Profiler();
+        }
+        if (memoizer != null && stream) {
+            throw new IllegalArgumentException("-memo needs the whole program and does not work with -stream");
+        }
+        if (forkJoiner != null && stream) {
+            throw new IllegalArgumentException("-parallel needs the whole program and does not work with -stream");
+        }
+        if (typecheck && stream) {
+            throw new IllegalArgumentException("-typecheck needs the whole program and does not work with -stream");
+        }
+        ScriptCache cache = null;
+        switch (cacheMode) {
+            case "on":
+            case "warm":
+                cache = new ScriptCache(cacheDir);
+                break;
+            case "off":
+                break;
+            case "clear":
+                int count = new ScriptCache(cacheDir).clear();
+                System.err.println("Removed " + count + " cached scripts from " + cacheDir);
+                return;
+            default:
+                throw new IllegalArgumentException("Unknown cache mode: " + cacheMode);
+        }
+
         InputStream is = System.in;
         if (inputFile != null)
             is = new FileInputStream(inputFile);
+        if (stream) {
+            ExecutionContext context = newContext(fuel, timeout, profiler, asyncOutput);
+            try {
+                runStream(is, engine, optimize, new Environment(context));
+            } finally {
+                is.close();
+                finish(context, profiler, profile, foldedFile);
+            }
+            return;
+        }
+        byte[] source;
+        try {
+            source = is.readAllBytes();
+        } finally {
+            is.close();
+        }
+
+        // one factory for every node of the run, cached, parsed or resolved
+        ExpressionFactory factory = new ExpressionFactory();
+        Expression prog = null;
+        byte[] key = null;
+        if (cache != null) {
+            key = ScriptCache.key(source, optimize);
+            if (!cacheMode.equals("warm")) {
+                prog = cache.load(key, factory);
+            }
+            if (prog != null && dumpAst) {
+                System.err.print("== cached\n" + AstPrinter.print(prog));
+            }
+        }
+        if (prog == null) {
+            SyntaxErrors errors = new SyntaxErrors(true);
+            prog = parse(source, factory, errors);
+            if (dumpAst) {
+                System.err.print("== parsed\n" + AstPrinter.print(prog));
+            }
+            if (optimize) {
+                prog = Optimizer.standard().optimize(prog);
+                if (dumpAst) {
+                    System.err.print("== optimized\n" + AstPrinter.print(prog));
+                }
+            }
+            // a tree ANTLR recovered from errors must not be run again silently
+            if (cache != null && errors.getCount() == 0) {
+                cache.store(key, prog);
+            }
+        }
+        if (cacheMode.equals("warm")) {
+            return;
+        }
+        List<String> typeErrors = new ArrayList<String>();
+        prog = resolve(prog, factory, typeErrors);
+        if (dumpAst) {
+            System.err.println(factory);
+        }
+        if (typecheck && !typeErrors.isEmpty()) {
+            for (String error : typeErrors) {
+                System.err.println(error);
+            }
+            System.exit(1);
+        }
+        ExecutionContext context = newContext(fuel, timeout, profiler, asyncOutput);
+        if (forkJoiner != null) {
+            // marks the pure functions as well
+            PurityAnalysis.analyzeForks(prog);
+            context.setForkJoiner(forkJoiner);
+        } else if (memoizer != null) {
+            PurityAnalysis.analyze(prog);
+        }
+        context.setMemoizer(memoizer);
+        try {
+            run(prog, engine, new Environment(context));
+        } finally {
+            finish(context, profiler, profile, foldedFile);
+        }
+    }
+
+    /**
+     * A context printing to System.out, with a Budget if a limit was given
+     * and the profiler if there is one. The clock of a timeout and the
+     * profiler start now.
+     */
+    private static ExecutionContext newContext(long fuel, long timeout, Profiler profiler,
+            boolean asyncOutput) {
+        ExecutionContext context = new ExecutionContext();
+        if (asyncOutput) {
+            context.setSink(new AsyncSink(System.out));
+        }
+        if (profiler != null) {
+            context.setProfiler(profiler);
+            profiler.start();
+        }
+        if (fuel >= 0 || timeout >= 0) {
+            Budget budget = new Budget();
+            if (fuel >= 0) {
+                budget.setFuel(fuel);
+            }
+            if (timeout >= 0) {
+                budget.setTimeout(timeout);
+            }
+            context.setBudget(budget);
+        }
+        return context;
+    }
+
+    /**
+     * Flushes the output of a finished run, before an error or the profile
+     * is written to stderr, then writes the memoizer counts and the profile
+     * if there are any.
+     */
+    private static void finish(ExecutionContext context, Profiler profiler, boolean text, String foldedFile)
+            throws IOException {
+        OutputSink sink = context.getSink();
+        if (sink instanceof AsyncSink) {
+            ((AsyncSink) sink).close();
+        } else {
+            sink.flush();
+        }
+        if (context.getMemoizer() != null) {
+            System.err.println(context.getMemoizer());
+        }
+        report(profiler, text, foldedFile);
+    }
+
+    private static void report(Profiler profiler, boolean text, String foldedFile) throws IOException {
+        if (profiler == null) {
+            return;
+        }
+        profiler.stop();
+        if (text) {
+            Writer err = new OutputStreamWriter(System.err);
+            profiler.writeReport(err);
+        }
+        if (foldedFile != null) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(foldedFile))) {
+                profiler.writeFolded(out);
+            }
+        }
+    }
+
+    /**
+     * Everything main does to a script before running it: parses it,
+     * optimizes it if optimize is set, resolves it and runs TypeInference
+     * on it, creating all nodes with the given factory. Syntax errors are
+     * printed to stderr.
+     */
+    static Expression compile(byte[] source, boolean optimize, ExpressionFactory factory) throws IOException {
+        return compile(source, optimize, factory, new SyntaxErrors(true));
+    }
+
+    /**
+     * Like compile, but reports syntax errors to errors. The tree is built
+     * anyway, see SyntaxErrors.
+     */
+    static Expression compile(byte[] source, boolean optimize, ExpressionFactory factory, SyntaxErrors errors)
+            throws IOException {
+        Expression prog = parse(source, factory, errors);
+        if (optimize) {
+            prog = Optimizer.standard().optimize(prog);
+        }
+        return resolve(prog, factory, new ArrayList<String>());
+    }
+
+    /**
+     * Binds the local variables of a parsed (and optimized) program to
+     * frame slots, then runs TypeInference on it, adding the type errors it
+     * finds to typeErrors.
+     */
+    static Expression resolve(Expression prog, ExpressionFactory factory, List<String> typeErrors) {
+        prog = new Resolver(factory).resolve(prog);
+        typeErrors.addAll(TypeInference.check(prog));
+        return prog;
+    }
 
-        CharStream stream = CharStreams.fromStream(is);
+    /**
+     * Parses a script into an (unresolved) expression tree.
+     */
+    static Expression parse(byte[] source) throws IOException {
+        return parse(source, new ExpressionFactory());
+    }
+
+    /**
+     * Parses a script, creating its nodes with the given factory. Syntax
+     * errors are printed to stderr.
+     */
+    static Expression parse(byte[] source, ExpressionFactory factory) throws IOException {
+        return parse(source, factory, new SyntaxErrors(true));
+    }
+
+    /**
+     * Parses a script, creating its nodes with the given factory and
+     * reporting syntax errors to errors instead of stderr.
+     */
+    static Expression parse(byte[] source, ExpressionFactory factory, SyntaxErrors errors) throws IOException {
+        CharStream stream = CharStreams.fromStream(new ByteArrayInputStream(source));
         FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(stream);
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(errors);
         CommonTokenStream tokens = new CommonTokenStream(lexer);
         FeatherweightJavaScriptParser parser = new FeatherweightJavaScriptParser(tokens);
+        parser.removeErrorListeners();
+        parser.addErrorListener(errors);
         ParseTree tree = parser.prog(); // parse
 
-        ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor();
-        Expression prog = builder.visit(tree);
-        prog.evaluate(new Environment());
+        ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor(factory);
+        return builder.visit(tree);
     }
 
-}
\ No newline at end of file
+    /**
+     * Parses and runs a script one top-level statement at a time, against
+     * the given global environment. Characters and tokens are read through
+     * unbuffered streams, and the parse tree and AST of a statement are
+     * dropped once it has run, so memory does not grow with the length of
+     * the input, and output starts before the end of the input is reached:
+     * what has been printed is flushed whenever reading more input could
+     * block.
+     */
+    static void runStream(InputStream in, String engine, boolean optimize, Environment env)
+            throws IOException {
+        StatementRunner runner = new StatementRunner(engine, optimize, env);
+        FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(new UnbufferedCharStream(in));
+        // the char stream forgets consumed input, so tokens keep their own text
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        TokenStream tokens = new UnbufferedTokenStream<Token>(lexer);
+        FeatherweightJavaScriptParser parser = new FeatherweightJavaScriptParser(tokens);
+        ExecutionContext context = env.getContext();
+        try {
+            while (true) {
+                if (in.available() == 0) {
+                    context.flush();
+                }
+                if (tokens.LA(1) == Token.EOF) {
+                    break;
+                }
+                // a factory per statement, so it does not grow
+                ExpressionFactory factory = new ExpressionFactory();
+                runner.run(new ExpressionBuilderVisitor(factory).visit(parser.stat()), factory);
+            }
+        } catch (RuntimeException | Error e) {
+            context.cancelSpawned();
+            throw e;
+        }
+        // calls spawned by one statement may be awaited by a later one
+        context.joinSpawned();
+    }
+
+    /**
+     * Evaluates a resolved program with the chosen engine, then waits for
+     * the calls it spawned.
+     */
+    static Value run(Expression prog, String engine, Environment env) {
+        ExecutionContext context = env.getContext();
+        Value result;
+        try {
+            result = evaluate(prog, engine, env);
+        } catch (RuntimeException | Error e) {
+            context.cancelSpawned();
+            throw e;
+        }
+        context.joinSpawned();
+        return result;
+    }
+
+    private static Value evaluate(Expression prog, String engine, Environment env) {
+        switch (engine) {
+            case "tree":
+                return prog.evaluate(env);
+            case "vm":
+                BytecodeCompiler compiler = new BytecodeCompiler();
+                Chunk main = compiler.compile(prog);
+                return new VirtualMachine(compiler).run(main, env);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+}
+
+/**
+ * Runs top-level statements one by one in the same global environment,
+ * for Interpreter.runStream. Each statement goes through the optimizer and
+ * the Resolver on its own, but not TypeInference, which needs the whole
+ * program; with the vm engine, all statements share one compiler and VM,
+ * so functions declared earlier stay compiled.
+ */
+class StatementRunner {
+    private String engine;
+    private Optimizer optimizer;
+    private Environment env;
+    private BytecodeCompiler compiler;
+    private VirtualMachine vm;
+
+    StatementRunner(String engine, boolean optimize, Environment env) {
+        if (!engine.equals("tree") && !engine.equals("vm")) {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+        this.engine = engine;
+        this.optimizer = optimize ? Optimizer.standard() : null;
+        this.env = env;
+        if (engine.equals("vm")) {
+            compiler = new BytecodeCompiler();
+            vm = new VirtualMachine(compiler);
+        }
+    }
+
+    /**
+     * Runs one statement, as built by ExpressionBuilderVisitor with the
+     * given factory. An empty statement is null and does nothing.
+     */
+    Value run(Expression stat, ExpressionFactory factory) {
+        if (stat == null) {
+            return null;
+        }
+        if (optimizer != null) {
+            stat = optimizer.optimize(stat);
+        }
+        stat = new Resolver(factory).resolve(stat);
+        if (vm != null) {
+            return vm.run(compiler.compile(stat), env);
+        }
+        return stat.evaluate(env);
+    }
+}
@@ -0,0 +1,103 @@
+package edu.sjsu.fwjs;
+
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * One tenant of a multi-tenant JVM: a global Environment of its own, with
+ * its own output, optionally on top of a shared read-only Prelude. Scripts
+ * running in different isolates can not see each other's variables, so
+ * they can run at the same time.
+ *
+ * A compiled program (a parsed, optimized and resolved tree) can be run by
+ * any number of isolates at once. Evaluation never changes the structure
+ * of a tree; what its nodes do update (BinOpNode specializations, inline
+ * caches, JIT profiles) are hints, and a lost update between threads only
+ * costs speed, never changes a result.
+ *
+ * An isolate itself is used by one thread at a time.
+ */
+public class Isolate {
+    private Environment global;
+    private ExecutionContext context;
+    private String engine;
+
+    /**
+     * An isolate running programs with the tree-walker.
+     * prelude may be null, and a null writer means System.out.
+     */
+    public Isolate(Prelude prelude, Writer out) {
+        this(prelude, out, "tree");
+    }
+
+    public Isolate(Prelude prelude, Writer out, String engine) {
+        this(prelude, new ExecutionContext(out), engine);
+    }
+
+    /**
+     * An isolate printing to the given sink, e.g. a MemorySink.
+     */
+    public Isolate(Prelude prelude, OutputSink sink, String engine) {
+        this(prelude, new ExecutionContext(sink), engine);
+    }
+
+    private Isolate(Prelude prelude, ExecutionContext context, String engine) {
+        this.context = context;
+        this.global = new Environment(context, prelude == null ? null : prelude.getEnvironment());
+        this.engine = engine;
+    }
+
+    /**
+     * Runs a resolved program in this isolate's global scope.
+     */
+    public Value run(Expression prog) {
+        return run(prog, null);
+    }
+
+    /**
+     * Runs a resolved program under a Budget; null means no limits.
+     * What it printed is flushed when it returns.
+     */
+    public Value run(Expression prog, Budget budget) {
+        ExecutionContext previous = ExecutionContext.current();
+        ExecutionContext.setCurrent(context);
+        context.setBudget(budget);
+        try {
+            return Interpreter.run(prog, engine, global);
+        } finally {
+            context.setBudget(null);
+            ExecutionContext.setCurrent(previous);
+            context.flush();
+        }
+    }
+
+    public Environment getGlobal() {
+        return this.global;
+    }
+
+    /**
+     * An executor that starts a virtual thread per task where the JVM has
+     * them (Java 21 and later), and otherwise a pool with a platform thread
+     * per core.
+     */
+    public static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Whether newExecutor gives virtual threads on this JVM.
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package edu.sjsu.fwjs;
+
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many scripts at the same time, each in its own Isolate, and reports
+ * the aggregate throughput.
+ *
+ * Usage: IsolateHarness [-runs=N] [-engine=tree|vm] [-prelude=file] script...
+ * Every script is compiled once. Then N runs (default 1000), going round
+ * the scripts, are started on the executor from Isolate.newExecutor.
+ * Output of the scripts is counted and thrown away.
+ */
+public class IsolateHarness {
+
+    public static void main(String[] args) throws Exception {
+        int runs = 1000;
+        String engine = "tree";
+        String preludeFile = null;
+        List<String> files = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("-runs=")) {
+                runs = Integer.parseInt(arg.substring("-runs=".length()));
+            } else if (arg.startsWith("-engine=")) {
+                engine = arg.substring("-engine=".length());
+            } else if (arg.startsWith("-prelude=")) {
+                preludeFile = arg.substring("-prelude=".length());
+            } else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No scripts given");
+        }
+
+        Prelude prelude = null;
+        if (preludeFile != null) {
+            prelude = new Prelude(compile(preludeFile));
+        }
+        List<Expression> progs = new ArrayList<Expression>();
+        for (String file : files) {
+            progs.add(compile(file));
+        }
+
+        Report report = run(progs, prelude, engine, runs);
+        System.out.println(report);
+    }
+
+    /**
+     * Runs the programs runs times in total, in parallel, each run in a
+     * new isolate.
+     */
+    static Report run(List<Expression> progs, Prelude prelude, String engine, int runs)
+            throws InterruptedException {
+        AtomicLong chars = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        List<Future<?>> pending = new ArrayList<Future<?>>(runs);
+        ExecutorService executor = Isolate.newExecutor();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < runs; i++) {
+                Expression prog = progs.get(i % progs.size());
+                pending.add(executor.submit(() -> {
+                    CountingWriter out = new CountingWriter();
+                    try {
+                        new Isolate(prelude, out, engine).run(prog);
+                    } catch (RuntimeException | StackOverflowError e) {
+                        failed.incrementAndGet();
+                    }
+                    chars.addAndGet(out.count);
+                }));
+            }
+            for (Future<?> f : pending) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    failed.incrementAndGet();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return new Report(runs, failed.get(), chars.get(), System.nanoTime() - start);
+    }
+
+    private static Expression compile(String file) throws Exception {
+        return Interpreter.compile(Files.readAllBytes(Paths.get(file)), true, new ExpressionFactory());
+    }
+
+    /**
+     * The outcome of a harness run.
+     */
+    static class Report {
+        private int runs;
+        private long failed;
+        private long chars;
+        private long nanos;
+
+        Report(int runs, long failed, long chars, long nanos) {
+            this.runs = runs;
+            this.failed = failed;
+            this.chars = chars;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("%d runs (%d failed) on %s threads in %.3f s: %.1f runs/s, %d chars printed",
+                    runs, failed, Isolate.hasVirtualThreads() ? "virtual" : "platform",
+                    seconds, runs / seconds, chars);
+        }
+    }
+
+    /**
+     * A writer that only counts what is written to it.
+     */
+    private static class CountingWriter extends Writer {
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str) {
+            count += str.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package edu.sjsu.fwjs;
+
+import java.lang.invoke.MethodHandles;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Second tier for hot closures: compiles the body of a resolved function
+ * to JVM bytecode in a hidden class, so HotSpot's own JIT takes over.
+ *
+ * Only int/boolean functions are compiled: parameters and locals of the
+ * function's own frame, literals, operators, if, while, var and assignment,
+ * and recursive calls to the function itself through a global name.
+ * Such a body has no side effects outside its frame, which is what makes
+ * the fallback simple: compiled code assumes every parameter is an IntVal
+ * (checked on entry) and that the global name still refers to this function
+ * (also checked on entry); if either guard fails, or the compiled code hits
+ * a division by zero, the call is run again by the tree-walker.
+ *
+ * Functions are counted in ClosureVal.apply (calls) and WhileExpr
+ * (loop back-edges); compilation happens at the next call after a
+ * counter crosses its threshold.
+ */
+public class JitCompiler {
+    static int callThreshold = Integer.getInteger("fwjs.jit.calls", 1000);
+    static int loopThreshold = Integer.getInteger("fwjs.jit.loops", 100000);
+    static boolean enabled = !Boolean.getBoolean("fwjs.jit.disable");
+
+    private static final String CLASS_NAME = "edu/sjsu/fwjs/JitCompiled";
+    private static final String INTERFACE_NAME = "edu/sjsu/fwjs/JitCode";
+
+    /**
+     * Turns the JIT on or off, e.g. from the Interpreter command line.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Called by ClosureVal.apply once a function is hot. Returns the
+     * compiled code, or null if the function cannot be compiled.
+     */
+    static CompiledFunction compile(FunctionDeclExpr decl, Environment outerEnv) {
+        FunctionProfile profile = decl.getProfile();
+        profile.attempted = true;
+        try {
+            // the result type is needed for recursive calls, so try both
+            JitCompiler jit = new JitCompiler(decl, outerEnv.getGlobal(), Type.INT);
+            if (!jit.compileBody()) {
+                jit = new JitCompiler(decl, outerEnv.getGlobal(), Type.BOOL);
+                if (!jit.compileBody()) {
+                    return null;
+                }
+            }
+            Class<?> c = MethodHandles.lookup().defineHiddenClass(jit.writer.toByteArray(), true).lookupClass();
+            JitCode code = (JitCode) c.getDeclaredConstructor().newInstance();
+            CompiledFunction compiled = new CompiledFunction(code, jit.resultType == Type.BOOL, jit.selfName);
+            profile.compiled = compiled;
+            return compiled;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // anything the writer or verifier rejects just stays interpreted
+            return null;
+        }
+    }
+
+    /**
+     * Static types of compiled expressions. VOID is an expression whose
+     * value is not available, e.g. a while loop.
+     */
+    private enum Type {
+        INT, BOOL, VOID
+    }
+
+    /**
+     * Thrown while compiling when the body uses something the JIT
+     * does not support.
+     */
+    private static class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private FunctionDeclExpr decl;
+    private Environment global;
+    private Type resultType;
+    private int numParams;
+    private String selfName;
+    private String descriptor;
+
+    private ClassFileWriter writer;
+    private ClassFileWriter.Code code;
+    private Type[] slotTypes;
+    // slots that are declared on every path so far / on some path so far
+    private BitSet declared = new BitSet();
+    private BitSet maybeDeclared = new BitSet();
+    private int loopDepth;
+    private ClassFileWriter.Label start; // beginning of run, for self tail calls
+
+    private JitCompiler(FunctionDeclExpr decl, Environment global, Type resultType) {
+        this.decl = decl;
+        this.global = global;
+        this.resultType = resultType;
+        this.numParams = decl.getParams().size();
+        this.slotTypes = new Type[decl.getFrameSize()];
+        for (int i = 0; i < numParams; i++) {
+            slotTypes[i] = Type.INT;
+            declared.set(i);
+            maybeDeclared.set(i);
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < numParams; i++) {
+            sb.append('I');
+        }
+        this.descriptor = sb.append(")I").toString();
+    }
+
+    private boolean compileBody() {
+        if (decl.getFrameSize() > 255 || decl.getBody() == null) {
+            return false;
+        }
+        writer = new ClassFileWriter(CLASS_NAME, "java/lang/Object", INTERFACE_NAME);
+        code = writer.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "run", descriptor,
+                Math.max(1, decl.getFrameSize()));
+        start = new ClassFileWriter.Label();
+        code.place(start);
+        try {
+            if (compile(decl.getBody(), true) != resultType) {
+                return false;
+            }
+        } catch (Unsupported e) {
+            return false;
+        }
+        code.insn(ClassFileWriter.IRETURN, -1);
+        code.end();
+
+        // constructor
+        ClassFileWriter.Code init = writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1);
+        init.load(ClassFileWriter.ALOAD, 0);
+        init.invoke(ClassFileWriter.INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"), -1);
+        init.insn(ClassFileWriter.RETURN, 0);
+        init.end();
+
+        // JitCode.call(int[]) unpacks the arguments for run
+        ClassFileWriter.Code call = writer.method(ClassFileWriter.ACC_PUBLIC, "call", "([I)I", 2);
+        for (int i = 0; i < numParams; i++) {
+            call.load(ClassFileWriter.ALOAD, 1);
+            call.pushInt(i);
+            call.insn(ClassFileWriter.IALOAD, -1);
+        }
+        call.invoke(ClassFileWriter.INVOKESTATIC, writer.ownMethodRef("run", descriptor), 1 - numParams);
+        call.insn(ClassFileWriter.IRETURN, -1);
+        call.end();
+        return true;
+    }
+
+    /**
+     * Compiles an expression, leaving its value on the JVM stack
+     * if needValue is set. Returns its type.
+     */
+    private Type compile(Expression exp, boolean needValue) throws Unsupported {
+        if (exp instanceof ValueExpr) {
+            Value v = ((ValueExpr) exp).getValue();
+            Type t;
+            if (v instanceof IntVal) {
+                t = Type.INT;
+                if (needValue) {
+                    code.pushInt(((IntVal) v).toInt());
+                }
+            } else if (v instanceof BoolVal) {
+                t = Type.BOOL;
+                if (needValue) {
+                    code.pushInt(((BoolVal) v).toBoolean() ? 1 : 0);
+                }
+            } else {
+                throw new Unsupported();
+            }
+            return t;
+        }
+        if (exp instanceof LocalVarExpr) {
+            int slot = ownSlot(((LocalVarExpr) exp).getKinds(), ((LocalVarExpr) exp).getSlots());
+            if (!declared.get(slot)) {
+                // may still fall back to an outer scope
+                throw new Unsupported();
+            }
+            if (needValue) {
+                code.load(ClassFileWriter.ILOAD, slot);
+            }
+            return slotTypes[slot];
+        }
+        if (exp instanceof BinOpExpr) {
+            return compileBinOp((BinOpExpr) exp, needValue);
+        }
+        if (exp instanceof IfExpr) {
+            return compileIf((IfExpr) exp, needValue);
+        }
+        if (exp instanceof CountingLoopExpr) {
+            exp = ((CountingLoopExpr) exp).getLoop();
+        }
+        if (exp instanceof WhileExpr) {
+            if (needValue) {
+                // the value of a loop may be a Java null
+                throw new Unsupported();
+            }
+            WhileExpr w = (WhileExpr) exp;
+            ClassFileWriter.Label start = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            code.place(start);
+            // a loop body may run any number of times, so anything
+            // it declares is only maybe declared afterwards
+            BitSet before = (BitSet) declared.clone();
+            compileCondition(w.getCond(), end);
+            loopDepth++;
+            compile(w.getBody(), false);
+            loopDepth--;
+            code.jump(ClassFileWriter.GOTO, start);
+            code.place(end);
+            declared = before;
+            return Type.VOID;
+        }
+        if (exp instanceof SeqExpr) {
+            compile(((SeqExpr) exp).getE1(), false);
+            return compile(((SeqExpr) exp).getE2(), needValue);
+        }
+        if (exp instanceof LocalDeclExpr) {
+            LocalDeclExpr d = (LocalDeclExpr) exp;
+            int slot = d.getSlot();
+            if (d.isCell() || maybeDeclared.get(slot) || loopDepth > 0) {
+                // shared with closures, or could throw "already in current scope"
+                throw new Unsupported();
+            }
+            Type t = compileValue(d.getExp());
+            setType(slot, t);
+            if (needValue) {
+                code.insn(ClassFileWriter.DUP, 1);
+            }
+            code.store(slot);
+            declared.set(slot);
+            maybeDeclared.set(slot);
+            return t;
+        }
+        if (exp instanceof LocalAssignExpr) {
+            LocalAssignExpr a = (LocalAssignExpr) exp;
+            int slot = ownSlot(a.getKinds(), a.getSlots());
+            if (!declared.get(slot)) {
+                throw new Unsupported();
+            }
+            Type t = compileValue(a.getE());
+            setType(slot, t);
+            if (needValue) {
+                code.insn(ClassFileWriter.DUP, 1);
+            }
+            code.store(slot);
+            return t;
+        }
+        if (exp instanceof FunctionAppExpr) {
+            return compileSelfCall((FunctionAppExpr) exp, needValue);
+        }
+        throw new Unsupported();
+    }
+
+    private Type compileValue(Expression exp) throws Unsupported {
+        Type t = compile(exp, true);
+        if (t == Type.VOID) {
+            throw new Unsupported();
+        }
+        return t;
+    }
+
+    private void setType(int slot, Type t) throws Unsupported {
+        if (slotTypes[slot] != null && slotTypes[slot] != t) {
+            throw new Unsupported();
+        }
+        slotTypes[slot] = t;
+    }
+
+    /**
+     * The slot of a variable that lives in the function's own frame.
+     */
+    private int ownSlot(int[] kinds, int[] slots) throws Unsupported {
+        if (kinds.length == 0 || kinds[0] != Environment.SLOT) {
+            throw new Unsupported();
+        }
+        return slots[0];
+    }
+
+    private Type compileBinOp(BinOpExpr b, boolean needValue) throws Unsupported {
+        Op op = b.getOp();
+        Type t1 = compileValue(b.getE1());
+        Type t2 = compileValue(b.getE2());
+        Type result;
+        switch (op) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case MOD:
+                if (t1 != Type.INT || t2 != Type.INT) {
+                    throw new Unsupported();
+                }
+                code.insn(arithmetic(op), -1);
+                result = Type.INT;
+                break;
+            case EQ:
+                if (t1 != t2) {
+                    throw new Unsupported();
+                }
+                booleanOf(ClassFileWriter.IF_ICMPEQ);
+                result = Type.BOOL;
+                break;
+            default:
+                if (t1 != Type.INT || t2 != Type.INT) {
+                    throw new Unsupported();
+                }
+                booleanOf(comparison(op));
+                result = Type.BOOL;
+        }
+        if (!needValue) {
+            code.insn(ClassFileWriter.POP, -1);
+        }
+        return result;
+    }
+
+    /**
+     * Turns the two ints on the stack into 0 or 1 with a compare-and-branch.
+     */
+    private void booleanOf(int ifCmp) {
+        ClassFileWriter.Label yes = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        code.jump(ifCmp, yes);
+        code.pushInt(0);
+        code.jump(ClassFileWriter.GOTO, end);
+        code.setDepth(code.depth() - 1);
+        code.place(yes);
+        code.pushInt(1);
+        code.place(end);
+    }
+
+    /**
+     * Compiles a boolean condition as a jump to ifFalse.
+     */
+    private void compileCondition(Expression cond, ClassFileWriter.Label ifFalse) throws Unsupported {
+        if (cond instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) cond;
+            Op op = b.getOp();
+            if (op == Op.LT || op == Op.LE || op == Op.GT || op == Op.GE || op == Op.EQ) {
+                Type t1 = compileValue(b.getE1());
+                Type t2 = compileValue(b.getE2());
+                if (op == Op.EQ ? t1 != t2 : (t1 != Type.INT || t2 != Type.INT)) {
+                    throw new Unsupported();
+                }
+                code.jump(negated(op == Op.EQ ? ClassFileWriter.IF_ICMPEQ : comparison(op)), ifFalse);
+                return;
+            }
+        }
+        if (compileValue(cond) != Type.BOOL) {
+            throw new Unsupported();
+        }
+        code.jump(ClassFileWriter.IFEQ, ifFalse);
+    }
+
+    private Type compileIf(IfExpr i, boolean needValue) throws Unsupported {
+        if (needValue && (i.getThn() == null || i.getEls() == null)) {
+            // a missing branch evaluates to FWJS null
+            throw new Unsupported();
+        }
+        ClassFileWriter.Label els = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        compileCondition(i.getCond(), els);
+
+        BitSet before = (BitSet) declared.clone();
+        Type t1 = i.getThn() == null ? Type.VOID : compile(i.getThn(), needValue);
+        BitSet afterThen = declared;
+        code.jump(ClassFileWriter.GOTO, end);
+        if (needValue) {
+            code.setDepth(code.depth() - 1);
+        }
+
+        code.place(els);
+        declared = (BitSet) before.clone();
+        Type t2 = i.getEls() == null ? Type.VOID : compile(i.getEls(), needValue);
+        code.place(end);
+        declared.and(afterThen);
+
+        if (needValue && (t1 != t2 || t1 == Type.VOID)) {
+            throw new Unsupported();
+        }
+        return needValue ? t1 : Type.VOID;
+    }
+
+    /**
+     * A call of the function being compiled, through a global name
+     * that currently refers to it.
+     */
+    private Type compileSelfCall(FunctionAppExpr app, boolean needValue) throws Unsupported {
+        if (!(app.getF() instanceof GlobalVarExpr)) {
+            throw new Unsupported();
+        }
+        String name = ((GlobalVarExpr) app.getF()).getVarName();
+        Value callee = global.resolveVar(name);
+        if (!(callee instanceof ClosureVal) || ((ClosureVal) callee).getDecl() != decl) {
+            throw new Unsupported();
+        }
+        if (selfName != null && !selfName.equals(name)) {
+            throw new Unsupported();
+        }
+        selfName = name;
+        List<Expression> args = app.getArgs();
+        if (args.size() != numParams) {
+            throw new Unsupported();
+        }
+        boolean jump = app.isTail() && needValue && code.depth() == 0;
+        for (Expression arg : args) {
+            if (compileValue(arg) != Type.INT) {
+                throw new Unsupported();
+            }
+        }
+        if (jump) {
+            // a self call in tail position is a loop: rebind the
+            // parameters and start over
+            for (int i = numParams - 1; i >= 0; i--) {
+                code.store(i);
+            }
+            code.jump(ClassFileWriter.GOTO, start);
+            // the code after this is unreachable, but keep the depth
+            // as if the call had pushed its result
+            code.setDepth(1);
+            return resultType;
+        }
+        code.invoke(ClassFileWriter.INVOKESTATIC, writer.ownMethodRef("run", descriptor), 1 - numParams);
+        if (!needValue) {
+            code.insn(ClassFileWriter.POP, -1);
+        }
+        return resultType;
+    }
+
+    private static int arithmetic(Op op) {
+        switch (op) {
+            case ADD:
+                return ClassFileWriter.IADD;
+            case SUBTRACT:
+                return ClassFileWriter.ISUB;
+            case MULTIPLY:
+                return ClassFileWriter.IMUL;
+            case DIVIDE:
+                return ClassFileWriter.IDIV;
+            default:
+                return ClassFileWriter.IREM;
+        }
+    }
+
+    private static int comparison(Op op) {
+        switch (op) {
+            case GT:
+                return ClassFileWriter.IF_ICMPGT;
+            case GE:
+                return ClassFileWriter.IF_ICMPGE;
+            case LT:
+                return ClassFileWriter.IF_ICMPLT;
+            default:
+                return ClassFileWriter.IF_ICMPLE;
+        }
+    }
+
+    private static int negated(int ifCmp) {
+        switch (ifCmp) {
+            case ClassFileWriter.IF_ICMPEQ:
+                return ClassFileWriter.IF_ICMPNE;
+            case ClassFileWriter.IF_ICMPLT:
+                return ClassFileWriter.IF_ICMPGE;
+            case ClassFileWriter.IF_ICMPGE:
+                return ClassFileWriter.IF_ICMPLT;
+            case ClassFileWriter.IF_ICMPGT:
+                return ClassFileWriter.IF_ICMPLE;
+            default:
+                return ClassFileWriter.IF_ICMPGT;
+        }
+    }
+}
+
+/**
+ * Implemented by the hidden classes the JIT generates.
+ */
+interface JitCode {
+    int call(int[] args);
+}
+
+/**
+ * Call and loop counters of one function, and its compiled code once hot.
+ * Counters are not synchronized; they only need to be roughly right.
+ */
+class FunctionProfile {
+    int calls;
+    int loops;
+    boolean attempted;
+    volatile CompiledFunction compiled;
+
+    boolean isHot() {
+        return !attempted && (calls >= JitCompiler.callThreshold || loops >= JitCompiler.loopThreshold);
+    }
+}
+
+/**
+ * Compiled code of a function together with the guards it needs.
+ */
+class CompiledFunction {
+    private JitCode code;
+    private boolean returnsBool;
+    private String selfName; // global name of recursive calls, or null
+
+    CompiledFunction(JitCode code, boolean returnsBool, String selfName) {
+        this.code = code;
+        this.returnsBool = returnsBool;
+        this.selfName = selfName;
+    }
+
+    /**
+     * Runs the compiled code, or returns null if a guard fails
+     * and the call has to be interpreted.
+     */
+    Value invoke(FunctionDeclExpr decl, Environment outerEnv, List<Value> argVals) {
+        int numParams = decl.getParams().size();
+        if (argVals.size() < numParams) {
+            return null;
+        }
+        int[] ints = new int[numParams];
+        for (int i = 0; i < numParams; i++) {
+            Value v = argVals.get(i);
+            if (!(v instanceof IntVal)) {
+                return null;
+            }
+            ints[i] = ((IntVal) v).toInt();
+        }
+        if (selfName != null) {
+            Value self = outerEnv.getGlobal().resolveVar(selfName);
+            if (!(self instanceof ClosureVal) || ((ClosureVal) self).getDecl() != decl) {
+                return null;
+            }
+        }
+        int result;
+        try {
+            result = code.call(ints);
+        } catch (ArithmeticException e) {
+            // division by zero, let the interpreter report it
+            return null;
+        }
+        if (returnsBool) {
+            return BoolVal.of(result != 0);
+        }
+        return IntVal.of(result);
+    }
+}
@@ -0,0 +1,160 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of calls to pure functions (see PurityAnalysis), by function and
+ * arguments, so a repeated call returns the stored result instead of
+ * running the body again. Only calls whose arguments and result are all
+ * ints, booleans or null are stored; a closure may have state of its own.
+ *
+ * The cache holds at most a fixed number of results, dropping the least
+ * recently used one when it is full. Memoization is enabled by setting a
+ * Memoizer on the ExecutionContext of a run; it belongs to that run. It is
+ * synchronized, since a ForkJoiner may call pure functions from several
+ * threads at once.
+ */
+public class Memoizer {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * A function and its arguments.
+     */
+    private static final class Key {
+        private FunctionDeclExpr decl;
+        private Value[] args;
+        private int hash;
+
+        Key(FunctionDeclExpr decl, Value[] args) {
+            this.decl = decl;
+            this.args = args;
+            this.hash = System.identityHashCode(decl) * 31 + Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (!(that instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) that;
+            return decl == k.decl && Arrays.equals(args, k.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private int capacity;
+    private Map<Key, Value> results;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public Memoizer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Memoizer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        // access order, so the eldest entry is the least recently used
+        this.results = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+                if (size() > Memoizer.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The key of a call, or null if an argument can not be part of one.
+     */
+    Object key(FunctionDeclExpr decl, List<Value> args) {
+        Value[] a = new Value[args.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = args.get(i);
+            if (!isPrimitive(a[i])) {
+                return null;
+            }
+        }
+        return new Key(decl, a);
+    }
+
+    /**
+     * The key of a call whose arguments are on a VM stack.
+     */
+    Object key(FunctionDeclExpr decl, Object[] stack, int from, int count) {
+        Value[] a = new Value[count];
+        for (int i = 0; i < count; i++) {
+            a[i] = (Value) stack[from + i];
+            if (!isPrimitive(a[i])) {
+                return null;
+            }
+        }
+        return new Key(decl, a);
+    }
+
+    /**
+     * The stored result of a call, or null if there is none.
+     */
+    synchronized Value get(Object key) {
+        Value v = results.get(key);
+        if (v == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return v;
+    }
+
+    /**
+     * Stores the result of a call, if it is a value that can be shared.
+     */
+    synchronized void put(Object key, Value result) {
+        if (isPrimitive(result)) {
+            results.put((Key) key, result);
+        }
+    }
+
+    private static boolean isPrimitive(Value v) {
+        return v instanceof IntVal || v instanceof BoolVal || v instanceof NullVal;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public synchronized void clear() {
+        results.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long calls = hits + misses;
+        return String.format("memo: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d of %d entries used",
+                hits, misses, calls == 0 ? 0.0 : 100.0 * hits / calls, evictions, results.size(), capacity);
+    }
+}
@@ -0,0 +1,30 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Keeps everything printed in memory, for embedders and tests that want
+ * the output as a string.
+ */
+public class MemorySink implements OutputSink {
+    private StringBuilder text = new StringBuilder();
+
+    @Override
+    public synchronized void print(Value v) {
+        ValueText.append(text, v);
+        text.append(ValueText.NEWLINE);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Everything printed so far.
+     */
+    public synchronized String getText() {
+        return text.toString();
+    }
+
+    public synchronized void clear() {
+        text.setLength(0);
+    }
+}
@@ -0,0 +1,277 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites the tree built by ExpressionBuilderVisitor before it is resolved
+ * and run. The optimizer is a list of passes applied in order; standard()
+ * gives the default pipeline, and more passes can be added with addPass.
+ *
+ * Passes must not change what a program prints or which error it stops
+ * with, so anything that might throw at run time is left alone.
+ */
+public class Optimizer {
+    private List<OptimizerPass> passes = new ArrayList<OptimizerPass>();
+
+    /**
+     * Constant folding, then dead branch removal, then sequence cleanup.
+     */
+    public static Optimizer standard() {
+        Optimizer o = new Optimizer();
+        o.addPass(new ConstantFolding());
+        o.addPass(new DeadBranchElimination());
+        o.addPass(new SequenceSimplification());
+        return o;
+    }
+
+    public Optimizer addPass(OptimizerPass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    public Expression optimize(Expression exp) {
+        for (OptimizerPass pass : passes) {
+            exp = pass.apply(exp);
+        }
+        return exp;
+    }
+}
+
+/**
+ * One optimization. The tree is rebuilt bottom-up, and rewrite is called
+ * on every node after its children were rewritten.
+ *
+ * A node whose children did not change is kept rather than copied, and a
+ * subtree shared by several parents (see ExpressionFactory) is rewritten
+ * once, so the result shares it the same way.
+ *
+ * Passes run before the Resolver, so only the node types the parser
+ * creates are visited; anything else is returned as is.
+ */
+abstract class OptimizerPass {
+
+    abstract Expression rewrite(Expression exp);
+
+    Expression apply(Expression exp) {
+        return apply(exp, new IdentityHashMap<Expression, Expression>());
+    }
+
+    /**
+     * Rewrites a subtree; done maps the subtrees already rewritten in this
+     * run to their result.
+     */
+    private Expression apply(Expression exp, Map<Expression, Expression> done) {
+        if (exp == null) {
+            return null;
+        }
+        Expression result = done.get(exp);
+        if (result == null) {
+            result = rewrite(rebuild(exp, done));
+            done.put(exp, result);
+        }
+        return result;
+    }
+
+    /**
+     * The node with its children rewritten.
+     */
+    private Expression rebuild(Expression exp, Map<Expression, Expression> done) {
+        if (exp instanceof PrintExpr) {
+            PrintExpr p = (PrintExpr) exp;
+            Expression e = apply(p.getExp(), done);
+            return e == p.getExp() ? exp : new PrintExpr(e);
+        } else if (exp instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) exp;
+            Expression e1 = apply(b.getE1(), done);
+            Expression e2 = apply(b.getE2(), done);
+            return e1 == b.getE1() && e2 == b.getE2() ? exp : new BinOpExpr(b.getOp(), e1, e2);
+        } else if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            Expression cond = apply(i.getCond(), done);
+            Expression thn = apply(i.getThn(), done);
+            Expression els = apply(i.getEls(), done);
+            return cond == i.getCond() && thn == i.getThn() && els == i.getEls()
+                    ? exp : new IfExpr(cond, thn, els);
+        } else if (exp instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) exp;
+            Expression cond = apply(w.getCond(), done);
+            Expression body = apply(w.getBody(), done);
+            return cond == w.getCond() && body == w.getBody() ? exp : new WhileExpr(cond, body, w.getProfile());
+        } else if (exp instanceof SeqExpr) {
+            SeqExpr s = (SeqExpr) exp;
+            Expression e1 = apply(s.getE1(), done);
+            Expression e2 = apply(s.getE2(), done);
+            return e1 == s.getE1() && e2 == s.getE2() ? exp : new SeqExpr(e1, e2);
+        } else if (exp instanceof VarDeclExpr) {
+            VarDeclExpr d = (VarDeclExpr) exp;
+            Expression e = apply(d.getExp(), done);
+            return e == d.getExp() ? exp : new VarDeclExpr(d.getVarName(), e);
+        } else if (exp instanceof AssignExpr) {
+            AssignExpr a = (AssignExpr) exp;
+            Expression e = apply(a.getE(), done);
+            return e == a.getE() ? exp : new AssignExpr(a.getVarName(), e);
+        } else if (exp instanceof FunctionDeclExpr) {
+            FunctionDeclExpr f = (FunctionDeclExpr) exp;
+            Expression body = apply(f.getBody(), done);
+            return body == f.getBody() ? exp
+                    : new FunctionDeclExpr(f.getParams(), body, f.getFrameSize(), f.getProfile()).copySource(f);
+        } else if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            Expression f = apply(app.getF(), done);
+            boolean same = f == app.getF();
+            List<Expression> args = new ArrayList<Expression>();
+            for (Expression arg : app.getArgs()) {
+                Expression a = apply(arg, done);
+                same &= a == arg;
+                args.add(a);
+            }
+            return same ? exp : new FunctionAppExpr(f, args, app.isTail());
+        } else if (exp instanceof SpawnExpr) {
+            SpawnExpr sp = (SpawnExpr) exp;
+            Expression f = apply(sp.getF(), done);
+            boolean same = f == sp.getF();
+            List<Expression> args = new ArrayList<Expression>();
+            for (Expression arg : sp.getArgs()) {
+                Expression a = apply(arg, done);
+                same &= a == arg;
+                args.add(a);
+            }
+            return same ? exp : new SpawnExpr(f, args);
+        } else if (exp instanceof AwaitExpr) {
+            AwaitExpr w = (AwaitExpr) exp;
+            Expression e = apply(w.getExp(), done);
+            return e == w.getExp() ? exp : new AwaitExpr(e);
+        }
+        return exp;
+    }
+
+    static boolean isConstant(Expression exp) {
+        return exp instanceof ValueExpr;
+    }
+}
+
+/**
+ * Computes binary operations on two constants, e.g. 3 * 4 becomes 12.
+ * Operations that fail (type errors, division by zero) are kept so the
+ * error still happens when, and only if, they run.
+ */
+class ConstantFolding extends OptimizerPass {
+    @Override
+    Expression rewrite(Expression exp) {
+        if (exp instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) exp;
+            if (isConstant(b.getE1()) && isConstant(b.getE2())) {
+                try {
+                    return new ValueExpr(BinOpExpr.apply(b.getOp(),
+                            ((ValueExpr) b.getE1()).getValue(), ((ValueExpr) b.getE2()).getValue()));
+                } catch (RuntimeException e) {
+                    return exp;
+                }
+            }
+        }
+        return exp;
+    }
+}
+
+/**
+ * Removes the branch of an if that can never run, and the body of
+ * a while whose condition is the constant false.
+ */
+class DeadBranchElimination extends OptimizerPass {
+    @Override
+    Expression rewrite(Expression exp) {
+        if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            if (!(i.getCond() instanceof ValueExpr)) {
+                return exp;
+            }
+            Value c = ((ValueExpr) i.getCond()).getValue();
+            if (!(c instanceof BoolVal)) {
+                // still has to fail at run time
+                return exp;
+            }
+            Expression taken = ((BoolVal) c).toBoolean() ? i.getThn() : i.getEls();
+            if (taken != null) {
+                return taken;
+            }
+            if (!((BoolVal) c).toBoolean()) {
+                // false with no else branch
+                return new ValueExpr(NullVal.NULL);
+            }
+            // an empty then branch can not be replaced by an expression
+            return exp;
+        }
+        if (exp instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) exp;
+            if (isFalse(w.getCond()) && w.getBody() != null) {
+                return new WhileExpr(w.getCond(), null, w.getProfile());
+            }
+        }
+        return exp;
+    }
+
+    static boolean isFalse(Expression exp) {
+        return exp instanceof ValueExpr && BoolVal.FALSE.equals(((ValueExpr) exp).getValue());
+    }
+}
+
+/**
+ * Drops statements of a sequence whose value is thrown away and that
+ * have no effect: constants, variable reads, function literals and loops
+ * that never run.
+ */
+class SequenceSimplification extends OptimizerPass {
+    @Override
+    Expression rewrite(Expression exp) {
+        if (exp instanceof SeqExpr) {
+            SeqExpr s = (SeqExpr) exp;
+            if (s.getE2() == null) {
+                return exp;
+            }
+            Expression first = dropValue(s.getE1());
+            if (first == null) {
+                return s.getE2();
+            }
+            if (first != s.getE1()) {
+                return new SeqExpr(first, s.getE2());
+            }
+        }
+        return exp;
+    }
+
+    /**
+     * Simplifies an expression whose value is not used. Returns null if
+     * nothing is left. Sequences nest to the left, so the last statement
+     * of the inner sequence is the one to check.
+     */
+    private static Expression dropValue(Expression exp) {
+        if (isPure(exp)) {
+            return null;
+        }
+        if (exp instanceof SeqExpr) {
+            SeqExpr s = (SeqExpr) exp;
+            Expression second = dropValue(s.getE2());
+            if (second == null) {
+                return s.getE1();
+            }
+            if (second != s.getE2()) {
+                return new SeqExpr(s.getE1(), second);
+            }
+        }
+        return exp;
+    }
+
+    static boolean isPure(Expression exp) {
+        if (exp instanceof ValueExpr || exp instanceof VarExpr || exp instanceof FunctionDeclExpr) {
+            return true;
+        }
+        if (exp instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) exp;
+            return DeadBranchElimination.isFalse(w.getCond());
+        }
+        return false;
+    }
+}
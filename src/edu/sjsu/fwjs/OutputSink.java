@@ -0,0 +1,99 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Where print writes to. A run gets its sink from its ExecutionContext.
+ *
+ * Sinks may buffer; what is printed is only guaranteed to be out after
+ * flush. Errors of the underlying stream are thrown as
+ * UncheckedIOException.
+ */
+public interface OutputSink {
+
+    /**
+     * Writes a value on a line of its own.
+     */
+    void print(Value v);
+
+    /**
+     * Writes out everything printed so far.
+     */
+    void flush();
+
+    /**
+     * The shared sink for standard output: a BufferedSink on whatever
+     * System.out is when it is written to. It is flushed when the JVM exits.
+     */
+    static OutputSink stdout() {
+        return BufferedSink.STDOUT;
+    }
+}
+
+/**
+ * Text of values, without building intermediate strings for ints and
+ * booleans.
+ */
+final class ValueText {
+    static final String NEWLINE = System.lineSeparator();
+
+    private ValueText() {
+    }
+
+    static void append(StringBuilder sb, Value v) {
+        if (v instanceof IntVal) {
+            sb.append(((IntVal) v).toInt());
+        } else if (v instanceof BoolVal) {
+            sb.append(((BoolVal) v).toBoolean());
+        } else {
+            sb.append(v.toString());
+        }
+    }
+}
+
+/**
+ * Prints to a Writer, for embedders that bring their own (see
+ * FwjsScriptEngine). Buffering is left to the writer. Methods are
+ * synchronized, since calls started by spawn print from other threads.
+ */
+class WriterSink implements OutputSink {
+    private Writer out;
+    private StringBuilder line = new StringBuilder();
+    private char[] chars = new char[64];
+
+    WriterSink(Writer out) {
+        this.out = out;
+    }
+
+    Writer getWriter() {
+        return this.out;
+    }
+
+    @Override
+    public synchronized void print(Value v) {
+        line.setLength(0);
+        ValueText.append(line, v);
+        line.append(ValueText.NEWLINE);
+        int n = line.length();
+        if (n > chars.length) {
+            chars = new char[Math.max(n, chars.length * 2)];
+        }
+        line.getChars(0, n, chars, 0);
+        try {
+            out.write(chars, 0, n);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Library code shared by many isolates. The prelude program is run once,
+ * and the scope it leaves behind is frozen: isolates can read its
+ * variables and call its functions without locking, and assigning to one
+ * of its variables from an isolate creates a variable of the isolate's own.
+ *
+ * Prelude functions may not change prelude variables; that throws a
+ * RuntimeException. What they print goes to the calling isolate.
+ */
+public class Prelude {
+    private Environment env;
+
+    /**
+     * Runs a resolved program with the tree-walker to build the prelude.
+     */
+    public Prelude(Expression prog) {
+        this.env = new Environment((ExecutionContext) null);
+        if (prog != null) {
+            Interpreter.run(prog, "tree", env);
+        }
+        env.freeze();
+    }
+
+    Environment getEnvironment() {
+        return this.env;
+    }
+}
@@ -0,0 +1,235 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records, per FWJS function, how often it was called, the time spent in
+ * it with and without its callees, and the bytes it allocated (where the
+ * JVM can count them per thread). Functions are told apart by their
+ * FunctionDeclExpr, and shown with the name and source position of the
+ * literal (see FunctionDeclExpr.describe).
+ *
+ * The profiler is enabled by setting it on the ExecutionContext of a run;
+ * when it is not set, calls only pay for a null check. While it is set,
+ * calls go through ClosureVal.apply and functions are not JIT-compiled,
+ * so every call is seen. Only the tree-walker reports calls.
+ *
+ * Calls are also recorded in a calling context tree, from which
+ * writeFolded produces the folded-stack format read by flame graph tools.
+ * A call in tail position replaces its caller there, like it does on the
+ * (trampolined) stack.
+ *
+ * A profiler belongs to one thread.
+ */
+public class Profiler {
+    private static final String ROOT = "<main>";
+
+    /**
+     * Totals of one function.
+     */
+    private static class Stats {
+        private FunctionDeclExpr decl;
+        private long calls;
+        private long totalNanos;
+        private long selfNanos;
+        private long totalBytes;
+        private long selfBytes;
+        private int active; // calls on the stack, so recursion is counted once in totals
+
+        Stats(FunctionDeclExpr decl) {
+            this.decl = decl;
+        }
+    }
+
+    /**
+     * A node of the calling context tree.
+     */
+    private static class Node {
+        private String label;
+        private Stats stats;
+        private Map<FunctionDeclExpr, Node> children = new IdentityHashMap<FunctionDeclExpr, Node>();
+        private long selfNanos;
+
+        Node(String label, Stats stats) {
+            this.label = label;
+            this.stats = stats;
+        }
+    }
+
+    private com.sun.management.ThreadMXBean memory;
+    private Map<FunctionDeclExpr, Stats> stats = new IdentityHashMap<FunctionDeclExpr, Stats>();
+    private Node root = new Node(ROOT, null);
+
+    // the stack of active calls, root at 0
+    private Node[] nodes = new Node[64];
+    private long[] startNanos = new long[64];
+    private long[] startBytes = new long[64];
+    private long[] childNanos = new long[64];
+    private long[] childBytes = new long[64];
+    private int depth = -1;
+
+    public Profiler() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            memory = (com.sun.management.ThreadMXBean) threads;
+            memory.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * Starts timing the top-level code.
+     */
+    public void start() {
+        push(root);
+    }
+
+    /**
+     * Stops timing the top-level code, and any calls an exception left open.
+     */
+    public void stop() {
+        while (depth >= 0) {
+            pop();
+        }
+    }
+
+    /**
+     * Called before the body of a function runs.
+     */
+    void enter(FunctionDeclExpr decl) {
+        if (depth < 0) {
+            // calls from outside a started run are put under the root
+            push(root);
+        }
+        Node parent = nodes[depth];
+        Node node = parent.children.get(decl);
+        if (node == null) {
+            Stats s = stats.get(decl);
+            if (s == null) {
+                s = new Stats(decl);
+                stats.put(decl, s);
+            }
+            node = new Node(decl.describe(), s);
+            parent.children.put(decl, node);
+        }
+        node.stats.calls++;
+        node.stats.active++;
+        push(node);
+    }
+
+    /**
+     * Called when a function returns, normally or not.
+     */
+    void exit() {
+        pop();
+    }
+
+    /**
+     * A call in tail position: the running function is done, and decl
+     * runs in its place.
+     */
+    void tailCall(FunctionDeclExpr decl) {
+        if (depth > 0) {
+            pop();
+        }
+        enter(decl);
+    }
+
+    private void push(Node node) {
+        depth++;
+        if (depth == nodes.length) {
+            int n = depth * 2;
+            nodes = Arrays.copyOf(nodes, n);
+            startNanos = Arrays.copyOf(startNanos, n);
+            startBytes = Arrays.copyOf(startBytes, n);
+            childNanos = Arrays.copyOf(childNanos, n);
+            childBytes = Arrays.copyOf(childBytes, n);
+        }
+        nodes[depth] = node;
+        childNanos[depth] = 0;
+        childBytes[depth] = 0;
+        startBytes[depth] = allocated();
+        startNanos[depth] = System.nanoTime();
+    }
+
+    private void pop() {
+        long nanos = System.nanoTime() - startNanos[depth];
+        long bytes = allocated() - startBytes[depth];
+        Node node = nodes[depth];
+        long selfNanos = nanos - childNanos[depth];
+        long selfBytes = bytes - childBytes[depth];
+        node.selfNanos += selfNanos;
+        Stats s = node.stats;
+        if (s != null) {
+            s.selfNanos += selfNanos;
+            s.selfBytes += selfBytes;
+            if (--s.active == 0) {
+                s.totalNanos += nanos;
+                s.totalBytes += bytes;
+            }
+        }
+        nodes[depth] = null;
+        depth--;
+        if (depth >= 0) {
+            childNanos[depth] += nanos;
+            childBytes[depth] += bytes;
+        }
+    }
+
+    private long allocated() {
+        return memory == null ? 0 : memory.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Writes a table of all functions, the most self time first.
+     */
+    public void writeReport(Writer out) throws IOException {
+        List<Stats> all = new ArrayList<Stats>(stats.values());
+        all.sort(Comparator.comparingLong((Stats s) -> s.selfNanos).reversed());
+        out.write(String.format("%10s %10s %10s %12s %12s  %s%n",
+                "calls", "total ms", "self ms", "total KB", "self KB", "function"));
+        for (Stats s : all) {
+            out.write(String.format("%10d %10.3f %10.3f %12s %12s  %s%n",
+                    s.calls, s.totalNanos / 1e6, s.selfNanos / 1e6,
+                    kilobytes(s.totalBytes), kilobytes(s.selfBytes), s.decl.describe()));
+        }
+        out.flush();
+    }
+
+    private String kilobytes(long bytes) {
+        return memory == null ? "-" : String.format("%.1f", bytes / 1024.0);
+    }
+
+    /**
+     * Writes one line per call path, "<main>;f;g micros", where micros is
+     * the self time of g on that path. Paths under a microsecond are left
+     * out.
+     */
+    public void writeFolded(Writer out) throws IOException {
+        writeFolded(root, new StringBuilder(ROOT), out);
+        out.flush();
+    }
+
+    private void writeFolded(Node node, StringBuilder path, Writer out) throws IOException {
+        long micros = node.selfNanos / 1000;
+        if (micros > 0) {
+            out.write(path + " " + micros + "\n");
+        }
+        for (Node child : node.children.values()) {
+            int length = path.length();
+            // ';' separates frames in the folded format
+            path.append(';').append(child.label.replace(';', '_'));
+            writeFolded(child, path, out);
+            path.setLength(length);
+        }
+    }
+}
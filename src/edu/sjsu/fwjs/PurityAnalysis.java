@@ -0,0 +1,365 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the functions of a resolved program whose result depends on their
+ * arguments only, and marks them pure (FunctionDeclExpr.isPure), so a
+ * Memoizer may store their results.
+ *
+ * A function is pure if its body
+ * - does not print,
+ * - assigns only to its own parameters and locals, and to no name that the
+ *   program also defines globally unless it is certainly declared in the
+ *   function (an undeclared local falls through to the global of that
+ *   name, see GlobalDefinitions),
+ * - reads only its own parameters and locals, never a variable of an
+ *   enclosing function, and
+ * - calls only pure functions, by a global name that the program defines
+ *   exactly once, at top level and outside a loop, as a function literal.
+ * Reading such a name before it is defined gives null, and calling that
+ * fails, so the call is never stored.
+ *
+ * Nested function literals in a body are fine; the closures are just
+ * values, and the literals are checked on their own. The analysis is
+ * conservative: a function that reads a global constant is not pure.
+ *
+ * With analyzeForks it also finds the fork points of a ForkJoiner: binary
+ * operations, and calls with several arguments, where at least two
+ * operands call functions and none has an effect another could see. Such
+ * an operand only combines constants, reads of variables and calls of pure
+ * functions through stable global names, so it writes nothing, and nothing
+ * it reads can change while the operands run.
+ *
+ * It needs the whole program, so it is not run on statements of -stream.
+ */
+public class PurityAnalysis {
+    private GlobalDefinitions globals;
+    private List<FunctionDeclExpr> functions = new ArrayList<FunctionDeclExpr>();
+    // functions each candidate calls
+    private Map<FunctionDeclExpr, List<FunctionDeclExpr>> callees =
+            new IdentityHashMap<FunctionDeclExpr, List<FunctionDeclExpr>>();
+    // fork points found, by identity, since a CountingLoopExpr shares nodes with its loop
+    private Set<Expression> forks = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+    /**
+     * Marks the pure functions of a resolved program and returns how many
+     * there are.
+     */
+    public static int analyze(Expression prog) {
+        PurityAnalysis a = new PurityAnalysis(prog);
+        return a.mark();
+    }
+
+    /**
+     * Marks the pure functions like analyze, then the fork points, and
+     * returns how many fork points there are.
+     */
+    public static int analyzeForks(Expression prog) {
+        PurityAnalysis a = new PurityAnalysis(prog);
+        a.mark();
+        a.markForks(prog, null);
+        return a.forks.size();
+    }
+
+    private PurityAnalysis(Expression prog) {
+        this.globals = GlobalDefinitions.of(prog);
+        collect(prog);
+    }
+
+    /**
+     * Finds every function literal.
+     */
+    private void collect(Expression exp) {
+        if (exp instanceof VarDeclExpr) {
+            collect(((VarDeclExpr) exp).getExp());
+        } else if (exp instanceof AssignExpr) {
+            collect(((AssignExpr) exp).getE());
+        } else if (exp instanceof LocalAssignExpr) {
+            collect(((LocalAssignExpr) exp).getE());
+        } else if (exp instanceof LocalDeclExpr) {
+            collect(((LocalDeclExpr) exp).getExp());
+        } else if (exp instanceof PrintExpr) {
+            collect(((PrintExpr) exp).getExp());
+        } else if (exp instanceof BinOpExpr) {
+            collect(((BinOpExpr) exp).getE1());
+            collect(((BinOpExpr) exp).getE2());
+        } else if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            collect(i.getCond());
+            collect(i.getThn());
+            collect(i.getEls());
+        } else if (exp instanceof CountingLoopExpr) {
+            collect(((CountingLoopExpr) exp).getLoop());
+        } else if (exp instanceof WhileExpr) {
+            collect(((WhileExpr) exp).getCond());
+            collect(((WhileExpr) exp).getBody());
+        } else if (exp instanceof SeqExpr) {
+            collect(((SeqExpr) exp).getE1());
+            collect(((SeqExpr) exp).getE2());
+        } else if (exp instanceof FunctionAppExpr) {
+            collect(((FunctionAppExpr) exp).getF());
+            for (Expression arg : ((FunctionAppExpr) exp).getArgs()) {
+                collect(arg);
+            }
+        } else if (exp instanceof SpawnExpr) {
+            collect(((SpawnExpr) exp).getF());
+            for (Expression arg : ((SpawnExpr) exp).getArgs()) {
+                collect(arg);
+            }
+        } else if (exp instanceof AwaitExpr) {
+            collect(((AwaitExpr) exp).getExp());
+        } else if (exp instanceof FunctionDeclExpr) {
+            FunctionDeclExpr f = (FunctionDeclExpr) exp;
+            functions.add(f);
+            collect(f.getBody());
+        }
+    }
+
+    /**
+     * Whether a reference kind is a variable of the current frame rather
+     * than one captured from an enclosing function.
+     */
+    private static boolean isOwn(int kind) {
+        return kind == Environment.SLOT || kind == Environment.CELL;
+    }
+
+    private int mark() {
+        List<FunctionDeclExpr> pure = new ArrayList<FunctionDeclExpr>();
+        for (FunctionDeclExpr f : functions) {
+            List<FunctionDeclExpr> calls = new ArrayList<FunctionDeclExpr>();
+            if (f.getFrameSize() >= 0 && isLocallyPure(f.getBody(), f, calls)) {
+                callees.put(f, calls);
+                pure.add(f);
+            }
+        }
+        // drop functions calling impure ones until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = pure.size() - 1; i >= 0; i--) {
+                for (FunctionDeclExpr callee : callees.get(pure.get(i))) {
+                    if (!callees.containsKey(callee)) {
+                        callees.remove(pure.remove(i));
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        for (FunctionDeclExpr f : pure) {
+            f.setPure(true);
+        }
+        return pure.size();
+    }
+
+    /**
+     * Marks the fork points of an expression; fn is the innermost enclosing
+     * function, null at top level.
+     */
+    private void markForks(Expression exp, FunctionDeclExpr fn) {
+        if (exp instanceof VarDeclExpr) {
+            markForks(((VarDeclExpr) exp).getExp(), fn);
+        } else if (exp instanceof AssignExpr) {
+            markForks(((AssignExpr) exp).getE(), fn);
+        } else if (exp instanceof LocalAssignExpr) {
+            markForks(((LocalAssignExpr) exp).getE(), fn);
+        } else if (exp instanceof LocalDeclExpr) {
+            markForks(((LocalDeclExpr) exp).getExp(), fn);
+        } else if (exp instanceof PrintExpr) {
+            markForks(((PrintExpr) exp).getExp(), fn);
+        } else if (exp instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) exp;
+            if (isIndependent(b.getE1()) && isIndependent(b.getE2()) && hasCall(b.getE1()) && hasCall(b.getE2())) {
+                b.setFork(true);
+                addFork(b, fn);
+            }
+            markForks(b.getE1(), fn);
+            markForks(b.getE2(), fn);
+        } else if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            markForks(i.getCond(), fn);
+            markForks(i.getThn(), fn);
+            markForks(i.getEls(), fn);
+        } else if (exp instanceof CountingLoopExpr) {
+            // the specialized body has copies of the nodes it changed
+            markForks(((CountingLoopExpr) exp).getLoop(), fn);
+            markForks(((CountingLoopExpr) exp).getBody(), fn);
+        } else if (exp instanceof WhileExpr) {
+            markForks(((WhileExpr) exp).getCond(), fn);
+            markForks(((WhileExpr) exp).getBody(), fn);
+        } else if (exp instanceof SeqExpr) {
+            markForks(((SeqExpr) exp).getE1(), fn);
+            markForks(((SeqExpr) exp).getE2(), fn);
+        } else if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            int expensive = 0;
+            boolean independent = true;
+            for (Expression arg : app.getArgs()) {
+                independent &= isIndependent(arg);
+                if (hasCall(arg)) {
+                    expensive++;
+                }
+            }
+            if (independent && expensive >= 2) {
+                app.setForkArgs(true);
+                addFork(app, fn);
+            }
+            markForks(app.getF(), fn);
+            for (Expression arg : app.getArgs()) {
+                markForks(arg, fn);
+            }
+        } else if (exp instanceof SpawnExpr) {
+            markForks(((SpawnExpr) exp).getF(), fn);
+            for (Expression arg : ((SpawnExpr) exp).getArgs()) {
+                markForks(arg, fn);
+            }
+        } else if (exp instanceof AwaitExpr) {
+            markForks(((AwaitExpr) exp).getExp(), fn);
+        } else if (exp instanceof FunctionDeclExpr) {
+            FunctionDeclExpr f = (FunctionDeclExpr) exp;
+            markForks(f.getBody(), f);
+        }
+    }
+
+    private void addFork(Expression exp, FunctionDeclExpr fn) {
+        forks.add(exp);
+        if (fn != null) {
+            fn.setForks(true);
+        }
+    }
+
+    /**
+     * Whether an expression may run at the same time as others like it:
+     * it has no effects, and does not read anything they could change.
+     */
+    private boolean isIndependent(Expression exp) {
+        if (exp == null || exp instanceof ValueExpr || exp instanceof VarExpr
+                || exp instanceof GlobalVarExpr || exp instanceof LocalVarExpr) {
+            return true;
+        }
+        if (exp instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) exp;
+            return isIndependent(b.getE1()) && isIndependent(b.getE2());
+        }
+        if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            return isIndependent(i.getCond()) && isIndependent(i.getThn()) && isIndependent(i.getEls());
+        }
+        if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            String name;
+            if (app.getF() instanceof GlobalVarExpr) {
+                name = ((GlobalVarExpr) app.getF()).getVarName();
+            } else if (app.getF() instanceof VarExpr) {
+                // top-level code
+                name = ((VarExpr) app.getF()).getVarName();
+            } else {
+                return false;
+            }
+            FunctionDeclExpr callee = globals.stableFunction(name);
+            if (callee == null || !callee.isPure()) {
+                return false;
+            }
+            for (Expression arg : app.getArgs()) {
+                if (!isIndependent(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether an independent expression calls a function, the only thing
+     * in it that may take long.
+     */
+    private static boolean hasCall(Expression exp) {
+        if (exp instanceof FunctionAppExpr) {
+            return true;
+        }
+        if (exp instanceof BinOpExpr) {
+            return hasCall(((BinOpExpr) exp).getE1()) || hasCall(((BinOpExpr) exp).getE2());
+        }
+        if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            return hasCall(i.getCond()) || hasCall(i.getThn()) || hasCall(i.getEls());
+        }
+        return false;
+    }
+
+    /**
+     * Checks a body, apart from the functions it calls, which are added to
+     * calls.
+     */
+    private boolean isLocallyPure(Expression exp, FunctionDeclExpr fn, List<FunctionDeclExpr> calls) {
+        if (exp == null || exp instanceof ValueExpr || exp instanceof FunctionDeclExpr) {
+            return true;
+        }
+        if (exp instanceof LocalVarExpr) {
+            LocalVarExpr v = (LocalVarExpr) exp;
+            for (int kind : v.getKinds()) {
+                if (!isOwn(kind)) {
+                    return false;
+                }
+            }
+            return !globals.readsGlobal(fn, v) || !globals.isDefined(v.getVarName());
+        }
+        if (exp instanceof LocalDeclExpr) {
+            return isLocallyPure(((LocalDeclExpr) exp).getExp(), fn, calls);
+        }
+        if (exp instanceof LocalAssignExpr) {
+            LocalAssignExpr a = (LocalAssignExpr) exp;
+            // with no slot of an enclosing function, only a global may be updated instead
+            boolean local = a.getKinds().length == 1
+                    && (!globals.writesGlobal(fn, a) || !globals.isDefined(a.getVarName()));
+            return local && isLocallyPure(a.getE(), fn, calls);
+        }
+        if (exp instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) exp;
+            return isLocallyPure(b.getE1(), fn, calls) && isLocallyPure(b.getE2(), fn, calls);
+        }
+        if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            return isLocallyPure(i.getCond(), fn, calls) && isLocallyPure(i.getThn(), fn, calls)
+                    && isLocallyPure(i.getEls(), fn, calls);
+        }
+        if (exp instanceof CountingLoopExpr) {
+            return isLocallyPure(((CountingLoopExpr) exp).getLoop(), fn, calls);
+        }
+        if (exp instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) exp;
+            return isLocallyPure(w.getCond(), fn, calls) && isLocallyPure(w.getBody(), fn, calls);
+        }
+        if (exp instanceof SeqExpr) {
+            SeqExpr s = (SeqExpr) exp;
+            return isLocallyPure(s.getE1(), fn, calls) && isLocallyPure(s.getE2(), fn, calls);
+        }
+        if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            if (!(app.getF() instanceof GlobalVarExpr)) {
+                return false;
+            }
+            FunctionDeclExpr callee = globals.stableFunction(((GlobalVarExpr) app.getF()).getVarName());
+            if (callee == null) {
+                return false;
+            }
+            calls.add(callee);
+            for (Expression arg : app.getArgs()) {
+                if (!isLocallyPure(arg, fn, calls)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // prints, reads of globals or captured variables, spawns and awaits,
+        // unresolved code
+        return false;
+    }
+}
@@ -0,0 +1,480 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Static resolution pass, run on the tree built by ExpressionBuilderVisitor.
+ *
+ * Every function gets an array-backed frame. Its slots are the parameters
+ * followed by every name the body declares with var or assigns to (nested
+ * functions excluded), since an assignment to an unknown variable creates it
+ * in the current frame.
+ *
+ * Closures do not keep the frames they were created in (closure
+ * conversion). Before a function is resolved, a first pass over it and the
+ * functions nested in it finds the variables of enclosing functions each
+ * one uses, its free variables; a function also gets the free variables of
+ * the functions nested in it, so it can hand them on. A closure captures
+ * exactly those (see ClosureVal). A captured parameter that nobody assigns
+ * to is captured by value; any other captured variable lives in a Cell that
+ * the frame and the closures share, since it may be declared or changed
+ * after the closure was created.
+ *
+ * Variable references inside functions are then rewritten to (kind, index)
+ * pairs: a slot or cell of the current frame, or a captured value or cell
+ * (see Environment.lookup). Because FWJS has no block scope and declarations
+ * happen at run time, a name may be a slot in several enclosing functions
+ * without being declared yet in all of them. Such references keep every
+ * candidate (innermost first) plus the global scope, which is still a
+ * dynamic map, so lookups behave exactly like the old scope chain walk.
+ *
+ * Top-level code runs in the global environment and is left name-based.
+ *
+ * Calls in tail position of a function body are marked on the way, so
+ * they go through the trampoline in ClosureVal.apply, counting loops of
+ * functions become CountingLoopExprs, and functions whose frames can not
+ * escape their calls are marked, so the frames are pooled (see FramePool). Resolved nodes come from an
+ * ExpressionFactory: a reference to the same slot, or an expression using
+ * only such references, is one node wherever it appears.
+ */
+public class Resolver {
+
+    /**
+     * The local variables of one function.
+     */
+    private static class Scope {
+        private Scope parent;
+        private Map<String, Integer> slots = new HashMap<String, Integer>();
+        private int numParams;
+        private FunctionProfile profile = new FunctionProfile();
+        private BitSet captured = new BitSet(); // slots used by nested functions
+        private BitSet assigned = new BitSet(); // slots declared or assigned after binding
+        // variables of enclosing functions, in the order of the captured array
+        private Map<Var, Integer> free = new HashMap<Var, Integer>();
+        private List<Var> freeVars = new ArrayList<Var>();
+
+        Scope(Scope parent) {
+            this.parent = parent;
+        }
+
+        int slotOf(String name) {
+            Integer slot = slots.get(name);
+            return slot == null ? -1 : slot;
+        }
+
+        boolean isParam(int slot) {
+            return slot < numParams;
+        }
+
+        void declare(String name) {
+            if (!slots.containsKey(name)) {
+                slots.put(name, slots.size());
+            }
+        }
+
+        boolean isCell(int slot) {
+            return captured.get(slot) && (!isParam(slot) || assigned.get(slot));
+        }
+
+        Scope outer(int depth) {
+            Scope s = this;
+            for (int i = 0; i < depth; i++) {
+                s = s.parent;
+            }
+            return s;
+        }
+
+        void addFree(Var v) {
+            if (!free.containsKey(v)) {
+                free.put(v, freeVars.size());
+                freeVars.add(v);
+            }
+        }
+    }
+
+    /**
+     * A slot of the frame of an enclosing function.
+     */
+    private static class Var {
+        private Scope owner;
+        private int slot;
+
+        Var(Scope owner, int slot) {
+            this.owner = owner;
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return (that instanceof Var) && ((Var) that).owner == owner && ((Var) that).slot == slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(owner), slot);
+        }
+    }
+
+    private ExpressionFactory factory;
+    private Scope scope; // null while resolving top-level code
+    // scopes of the functions seen by analyze, by their unresolved literal
+    private Map<FunctionDeclExpr, Scope> scopes = new IdentityHashMap<FunctionDeclExpr, Scope>();
+
+    public Resolver() {
+        this(new ExpressionFactory());
+    }
+
+    /**
+     * A Resolver creating its nodes with the given factory, which may be
+     * the one the tree was built with.
+     */
+    public Resolver(ExpressionFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the resolved version of the given expression.
+     */
+    public Expression resolve(Expression exp) {
+        if (exp == null) {
+            return null;
+        }
+        if (exp instanceof ValueExpr) {
+            return exp;
+        }
+        if (exp instanceof VarExpr) {
+            String name = ((VarExpr) exp).getVarName();
+            if (scope == null) {
+                return exp;
+            }
+            List<int[]> candidates = new ArrayList<int[]>();
+            boolean checkGlobal = lookup(scope, name, candidates);
+            if (candidates.isEmpty()) {
+                return factory.globalVar(name);
+            }
+            int[][] refs = refs(candidates);
+            return factory.localVar(name, refs[0], refs[1], checkGlobal);
+        }
+        if (exp instanceof PrintExpr) {
+            return factory.print(resolve(((PrintExpr) exp).getExp()));
+        }
+        if (exp instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) exp;
+            return factory.binOp(b.getOp(), resolve(b.getE1()), resolve(b.getE2()));
+        }
+        if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            return factory.ifExpr(resolve(i.getCond()), resolve(i.getThn()), resolve(i.getEls()));
+        }
+        if (exp instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) exp;
+            if (scope == null) {
+                return factory.whileExpr(resolve(w.getCond()), resolve(w.getBody()));
+            }
+            WhileExpr loop = factory.whileExpr(resolve(w.getCond()), resolve(w.getBody()), scope.profile);
+            Scope s = this.scope;
+            CountingLoopExpr counting = CountingLoopExpr.of(loop, () -> {
+                // a name no variable can have
+                String name = "%" + s.slots.size();
+                s.declare(name);
+                return s.slotOf(name);
+            });
+            return counting != null ? counting : loop;
+        }
+        if (exp instanceof SeqExpr) {
+            SeqExpr s = (SeqExpr) exp;
+            return factory.seq(resolve(s.getE1()), resolve(s.getE2()));
+        }
+        if (exp instanceof VarDeclExpr) {
+            VarDeclExpr d = (VarDeclExpr) exp;
+            Expression value = resolve(d.getExp());
+            if (scope == null) {
+                return factory.varDecl(d.getVarName(), value);
+            }
+            int slot = scope.slotOf(d.getVarName());
+            return factory.localDecl(d.getVarName(), slot, value, scope.isCell(slot));
+        }
+        if (exp instanceof AssignExpr) {
+            AssignExpr a = (AssignExpr) exp;
+            Expression value = resolve(a.getE());
+            if (scope == null) {
+                return factory.assign(a.getVarName(), value);
+            }
+            // the current frame always has a slot for an assigned name,
+            // so it is the first candidate
+            List<int[]> candidates = new ArrayList<int[]>();
+            lookup(scope, a.getVarName(), candidates);
+            int[][] refs = refs(candidates);
+            return factory.localAssign(a.getVarName(), refs[0], refs[1], value);
+        }
+        if (exp instanceof FunctionDeclExpr) {
+            return resolveFunction((FunctionDeclExpr) exp);
+        }
+        if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            List<Expression> args = new ArrayList<Expression>();
+            for (Expression arg : app.getArgs()) {
+                args.add(resolve(arg));
+            }
+            return factory.call(resolve(app.getF()), args, app.isTail());
+        }
+        if (exp instanceof SpawnExpr) {
+            SpawnExpr sp = (SpawnExpr) exp;
+            List<Expression> args = new ArrayList<Expression>();
+            for (Expression arg : sp.getArgs()) {
+                args.add(resolve(arg));
+            }
+            return factory.spawn(resolve(sp.getF()), args);
+        }
+        if (exp instanceof AwaitExpr) {
+            return factory.await(resolve(((AwaitExpr) exp).getExp()));
+        }
+        // already resolved, or a node this pass does not know about
+        return exp;
+    }
+
+    private Expression resolveFunction(FunctionDeclExpr f) {
+        Scope fnScope = scopes.get(f);
+        if (fnScope == null) {
+            // an outermost function: analyze it with all nested ones
+            analyze(f, scope);
+            fnScope = scopes.get(f);
+        }
+
+        Scope saved = this.scope;
+        this.scope = fnScope;
+        FunctionDeclExpr decl;
+        try {
+            Expression body = markTailCalls(resolve(f.getBody()));
+            decl = new FunctionDeclExpr(f.getParams(), body, fnScope.slots.size(), fnScope.profile).copySource(f);
+        } finally {
+            this.scope = saved;
+        }
+
+        // where each free variable is found in the frame creating the closure
+        int n = fnScope.freeVars.size();
+        int[] kinds = new int[n];
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            Var v = fnScope.freeVars.get(i);
+            int[] ref = ref(scope, depthOf(scope, v.owner), v.slot);
+            kinds[i] = ref[0];
+            indices[i] = ref[1];
+        }
+        decl.setCaptures(kinds, indices);
+        decl.setCellSlots(fnScope.captured.stream()
+                .filter(fnScope::isCell).toArray());
+        // closures copy the variables they capture out of the frame, except
+        // those in cells; without cells nothing can see the frame once the
+        // call has returned
+        decl.setLocalFrame(decl.getCellSlots().length == 0);
+        return decl;
+    }
+
+    /**
+     * The first pass: builds the scope of a function and of the functions
+     * nested in it, and finds their free variables and which captured
+     * slots need a cell.
+     */
+    private void analyze(FunctionDeclExpr f, Scope parent) {
+        Scope fnScope = new Scope(parent);
+        for (String param : f.getParams()) {
+            if (fnScope.slotOf(param) >= 0) {
+                throw new RuntimeException("Variable already in current scope");
+            }
+            fnScope.declare(param);
+        }
+        fnScope.numParams = f.getParams().size();
+        collectLocals(f.getBody(), fnScope);
+        scopes.put(f, fnScope);
+        scan(f.getBody(), fnScope);
+    }
+
+    private void scan(Expression exp, Scope s) {
+        if (exp instanceof VarExpr) {
+            use(s, ((VarExpr) exp).getVarName(), false);
+        } else if (exp instanceof VarDeclExpr) {
+            s.assigned.set(s.slotOf(((VarDeclExpr) exp).getVarName()));
+            scan(((VarDeclExpr) exp).getExp(), s);
+        } else if (exp instanceof AssignExpr) {
+            use(s, ((AssignExpr) exp).getVarName(), true);
+            scan(((AssignExpr) exp).getE(), s);
+        } else if (exp instanceof FunctionDeclExpr) {
+            analyze((FunctionDeclExpr) exp, s);
+        } else if (exp instanceof PrintExpr) {
+            scan(((PrintExpr) exp).getExp(), s);
+        } else if (exp instanceof BinOpExpr) {
+            scan(((BinOpExpr) exp).getE1(), s);
+            scan(((BinOpExpr) exp).getE2(), s);
+        } else if (exp instanceof IfExpr) {
+            scan(((IfExpr) exp).getCond(), s);
+            scan(((IfExpr) exp).getThn(), s);
+            scan(((IfExpr) exp).getEls(), s);
+        } else if (exp instanceof WhileExpr) {
+            scan(((WhileExpr) exp).getCond(), s);
+            scan(((WhileExpr) exp).getBody(), s);
+        } else if (exp instanceof SeqExpr) {
+            scan(((SeqExpr) exp).getE1(), s);
+            scan(((SeqExpr) exp).getE2(), s);
+        } else if (exp instanceof FunctionAppExpr) {
+            scan(((FunctionAppExpr) exp).getF(), s);
+            for (Expression arg : ((FunctionAppExpr) exp).getArgs()) {
+                scan(arg, s);
+            }
+        } else if (exp instanceof SpawnExpr) {
+            scan(((SpawnExpr) exp).getF(), s);
+            for (Expression arg : ((SpawnExpr) exp).getArgs()) {
+                scan(arg, s);
+            }
+        } else if (exp instanceof AwaitExpr) {
+            scan(((AwaitExpr) exp).getExp(), s);
+        }
+    }
+
+    /**
+     * Records a use of a name in scope s: every candidate slot outside s is
+     * captured, and free in s and the scopes between s and its owner.
+     */
+    private void use(Scope s, String name, boolean assign) {
+        List<int[]> candidates = new ArrayList<int[]>();
+        lookup(s, name, candidates);
+        for (int[] c : candidates) {
+            Scope owner = s.outer(c[0]);
+            if (assign) {
+                owner.assigned.set(c[1]);
+            }
+            if (c[0] > 0) {
+                owner.captured.set(c[1]);
+                Var v = new Var(owner, c[1]);
+                for (int i = 0; i < c[0]; i++) {
+                    s.outer(i).addFree(v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the calls whose value is the value of the function body:
+     * the body itself, the second half of a sequence and both branches
+     * of an if. These calls are made by the caller's trampoline.
+     */
+    private Expression markTailCalls(Expression exp) {
+        if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            return factory.call(app.getF(), app.getArgs(), true);
+        }
+        if (exp instanceof SeqExpr) {
+            SeqExpr s = (SeqExpr) exp;
+            return factory.seq(s.getE1(), markTailCalls(s.getE2()));
+        }
+        if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            return factory.ifExpr(i.getCond(), markTailCalls(i.getThn()), markTailCalls(i.getEls()));
+        }
+        return exp;
+    }
+
+    /**
+     * Finds every name declared or assigned directly in a function body.
+     * Nested function bodies get their own scope.
+     */
+    private void collectLocals(Expression exp, Scope s) {
+        if (exp instanceof VarDeclExpr) {
+            s.declare(((VarDeclExpr) exp).getVarName());
+            collectLocals(((VarDeclExpr) exp).getExp(), s);
+        } else if (exp instanceof AssignExpr) {
+            s.declare(((AssignExpr) exp).getVarName());
+            collectLocals(((AssignExpr) exp).getE(), s);
+        } else if (exp instanceof PrintExpr) {
+            collectLocals(((PrintExpr) exp).getExp(), s);
+        } else if (exp instanceof BinOpExpr) {
+            collectLocals(((BinOpExpr) exp).getE1(), s);
+            collectLocals(((BinOpExpr) exp).getE2(), s);
+        } else if (exp instanceof IfExpr) {
+            collectLocals(((IfExpr) exp).getCond(), s);
+            collectLocals(((IfExpr) exp).getThn(), s);
+            collectLocals(((IfExpr) exp).getEls(), s);
+        } else if (exp instanceof WhileExpr) {
+            collectLocals(((WhileExpr) exp).getCond(), s);
+            collectLocals(((WhileExpr) exp).getBody(), s);
+        } else if (exp instanceof SeqExpr) {
+            collectLocals(((SeqExpr) exp).getE1(), s);
+            collectLocals(((SeqExpr) exp).getE2(), s);
+        } else if (exp instanceof FunctionAppExpr) {
+            collectLocals(((FunctionAppExpr) exp).getF(), s);
+            for (Expression arg : ((FunctionAppExpr) exp).getArgs()) {
+                collectLocals(arg, s);
+            }
+        } else if (exp instanceof SpawnExpr) {
+            collectLocals(((SpawnExpr) exp).getF(), s);
+            for (Expression arg : ((SpawnExpr) exp).getArgs()) {
+                collectLocals(arg, s);
+            }
+        } else if (exp instanceof AwaitExpr) {
+            collectLocals(((AwaitExpr) exp).getExp(), s);
+        }
+    }
+
+    /**
+     * Adds the (depth, slot) pairs where the name may be bound, seen from
+     * scope from, innermost first. Returns false if a parameter was reached,
+     * since a parameter always shadows the scopes further out.
+     */
+    private static boolean lookup(Scope from, String name, List<int[]> candidates) {
+        int depth = 0;
+        for (Scope s = from; s != null; s = s.parent) {
+            int slot = s.slotOf(name);
+            if (slot >= 0) {
+                candidates.add(new int[] { depth, slot });
+                if (s.isParam(slot)) {
+                    return false;
+                }
+            }
+            depth++;
+        }
+        return true;
+    }
+
+    /**
+     * The kinds and indices of the references for (depth, slot) candidates
+     * of the current scope.
+     */
+    private int[][] refs(List<int[]> candidates) {
+        int[] kinds = new int[candidates.size()];
+        int[] indices = new int[candidates.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            int[] ref = ref(scope, candidates.get(i)[0], candidates.get(i)[1]);
+            kinds[i] = ref[0];
+            indices[i] = ref[1];
+        }
+        return new int[][] { kinds, indices };
+    }
+
+    /**
+     * The (kind, index) reference, in a frame of scope from, to a slot of
+     * the scope depth function scopes out.
+     */
+    private static int[] ref(Scope from, int depth, int slot) {
+        Scope owner = from.outer(depth);
+        boolean cell = owner.isCell(slot);
+        if (depth == 0) {
+            return new int[] { cell ? Environment.CELL : Environment.SLOT, slot };
+        }
+        int index = from.free.get(new Var(owner, slot));
+        return new int[] { cell ? Environment.CAPTURED_CELL : Environment.CAPTURED, index };
+    }
+
+    private static int depthOf(Scope from, Scope owner) {
+        int depth = 0;
+        for (Scope s = from; s != owner; s = s.parent) {
+            depth++;
+        }
+        return depth;
+    }
+}
@@ -0,0 +1,176 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of parsed and optimized scripts, so a repeated run skips
+ * ANTLR. Entries are keyed by a SHA-256 hash of the source together with
+ * the interpreter version and the options that change the tree.
+ *
+ * An entry is one file, named after the key:
+ *   magic, format, key (32 bytes), payload length, CRC32 of the payload,
+ *   payload (see TreeCodec)
+ * Files are read through a memory mapping. An entry whose header, key or
+ * checksum does not match is deleted and treated as a miss. Entries are
+ * written to a temporary file first and renamed into place, so readers
+ * never see half-written files.
+ *
+ * Interpreter.main does not store scripts with syntax errors, so every
+ * run reports them. The cache is only an optimization: any IO problem means a miss.
+ */
+public class ScriptCache {
+    static final int MAGIC = 0x46574a43; // "FWJC"
+    static final int FORMAT = 3;
+    private static final int HEADER_SIZE = 4 + 4 + 32 + 4 + 4;
+    private static final String SUFFIX = ".fwjc";
+
+    private Path dir;
+
+    public ScriptCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * The directory from the fwjs.cache.dir property, or ~/.fwjs/cache.
+     */
+    public static Path defaultDir() {
+        String dir = System.getProperty("fwjs.cache.dir");
+        if (dir != null) {
+            return Paths.get(dir);
+        }
+        return Paths.get(System.getProperty("user.home"), ".fwjs", "cache");
+    }
+
+    /**
+     * The cache key of a script. optimized tells whether the tree went
+     * through the Optimizer.
+     */
+    public static byte[] key(byte[] source, boolean optimized) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update((Interpreter.VERSION + "/" + FORMAT + "/" + (optimized ? "opt" : "noopt") + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            sha.update(source);
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached tree for the key, with its nodes created by the
+     * given factory, or null on a miss.
+     */
+    public Expression load(byte[] key, ExpressionFactory factory) {
+        Path file = fileFor(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bad size");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT) {
+                throw new IllegalArgumentException("Not a cache file of this format");
+            }
+            byte[] stored = new byte[32];
+            in.get(stored);
+            if (!MessageDigest.isEqual(stored, key)) {
+                throw new IllegalArgumentException("Key mismatch");
+            }
+            int length = in.getInt();
+            int crc = in.getInt();
+            if (length != size - HEADER_SIZE) {
+                throw new IllegalArgumentException("Bad length");
+            }
+            ByteBuffer payload = in.slice();
+            CRC32 check = new CRC32();
+            check.update(payload.duplicate());
+            if ((int) check.getValue() != crc) {
+                throw new IllegalArgumentException("Checksum mismatch");
+            }
+            return TreeCodec.decode(payload, factory);
+        } catch (IOException | RuntimeException e) {
+            // stale or damaged entry, drop it
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores a tree under the key. Trees that can not be encoded and
+     * IO errors are ignored.
+     */
+    public void store(byte[] key, Expression prog) {
+        byte[] payload;
+        try {
+            payload = TreeCodec.encode(prog);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        out.putInt(MAGIC).putInt(FORMAT).put(key).putInt(payload.length).putInt((int) crc.getValue());
+        out.put(payload);
+
+        Path tmp = null;
+        try {
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, "entry", ".tmp");
+            Files.write(tmp, out.array());
+            Files.move(tmp, fileFor(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes every entry. Returns how many were deleted.
+     */
+    public int clear() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        int count = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path entry : entries) {
+                if (Files.deleteIfExists(entry)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private Path fileFor(byte[] key) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : key) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return dir.resolve(sb.append(SUFFIX).toString());
+    }
+}
@@ -0,0 +1,127 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the calls of `spawn f(args)` expressions of a run on other threads,
+ * one task per call: a virtual thread each where the JVM has them (Java 21
+ * and later), otherwise a ForkJoinPool with a daemon thread per core, which
+ * starts more threads while some are blocked in an await.
+ *
+ * Spawned calls share the global scope and the captured variables of the
+ * closures they run with the rest of the run, and the run itself keeps
+ * going: `await` is what waits for a call and gives its value, or rethrows
+ * its error. As for ordering:
+ * - Each read or write of a variable is atomic, and a write is seen by
+ *   every thread that reads the variable after it (global variables are
+ *   in a ConcurrentHashMap, captured ones in a Cell with a volatile value).
+ *   `x = x + 1` is a read and a write, so two calls doing it at the same
+ *   time may lose an increment.
+ * - A spawned call sees everything the run did before spawning it, and
+ *   after an await the run sees everything the call did.
+ * - Output of different threads is interleaved by lines.
+ * - When the run is done, it waits for the calls that nobody awaited, and
+ *   fails with the error of the first of them (in spawn order) that
+ *   failed. If the run itself fails, calls that have not started are
+ *   dropped, and the ones running are waited for.
+ *
+ * Function frames never move between threads: the arguments are evaluated
+ * by the spawning thread, and the call gets a frame on the thread that
+ * runs it (see FramePool).
+ *
+ * While the run has a Budget or a Profiler, which count per thread, calls
+ * are not handed to other threads: each runs on the thread that first
+ * awaits it, or at the end of the run.
+ */
+final class Spawner {
+    // spawned calls not known to be awaited or done without an error
+    private final Set<FutureVal> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong spawned = new AtomicLong();
+
+    /**
+     * Starts a call of closure on another thread and returns its future.
+     */
+    FutureVal spawn(ClosureVal closure, List<Value> args, ExecutionContext context) {
+        FutureVal future = new FutureVal(this, spawned.getAndIncrement(), closure, args, context);
+        pending.add(future);
+        if (context.getBudget() == null && context.getProfiler() == null) {
+            executor().execute(future);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for a future and returns its value. The error of a call is
+     * given to whoever awaits it, so the end of the run does not report
+     * it again.
+     */
+    static Value await(FutureVal future) {
+        future.join();
+        future.getSpawner().pending.remove(future);
+        return future.get();
+    }
+
+    /**
+     * Called by a call that is done; one that failed stays pending until
+     * it is awaited or the run ends.
+     */
+    void finished(FutureVal future) {
+        if (!future.failed()) {
+            pending.remove(future);
+        }
+    }
+
+    /**
+     * Waits for the calls nobody awaited, including the ones they spawn,
+     * and rethrows the error of the first one that failed.
+     */
+    void joinAll() {
+        FutureVal first = null;
+        while (!pending.isEmpty()) {
+            for (FutureVal f : pending) {
+                f.join();
+                pending.remove(f);
+                if (f.failed() && (first == null || f.getOrder() < first.getOrder())) {
+                    first = f;
+                }
+            }
+        }
+        if (first != null) {
+            first.get();
+        }
+    }
+
+    /**
+     * Drops the calls that have not started and waits for the others, for
+     * a run that failed.
+     */
+    void cancelAll() {
+        while (!pending.isEmpty()) {
+            for (FutureVal f : pending) {
+                if (!f.cancel()) {
+                    f.join();
+                }
+                pending.remove(f);
+            }
+        }
+    }
+
+    private static ExecutorService executor() {
+        return Shared.EXECUTOR;
+    }
+
+    /**
+     * Holds the executor, so it is only created once a run spawns.
+     */
+    private static final class Shared {
+        static final ExecutorService EXECUTOR = Isolate.hasVirtualThreads() ? Isolate.newExecutor()
+                // async mode: tasks are started in the order they came in
+                : new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+}
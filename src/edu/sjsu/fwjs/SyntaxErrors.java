@@ -0,0 +1,57 @@
+package edu.sjsu.fwjs;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+
+/**
+ * Counts the syntax errors of a parse and keeps the first one. ANTLR
+ * recovers from errors and still builds a tree, with missing parts left
+ * out, so a tree is only complete if getCount() is 0.
+ *
+ * If printing, every error is also written to stderr the way ANTLR's
+ * ConsoleErrorListener does.
+ */
+class SyntaxErrors extends BaseErrorListener {
+    private boolean printing;
+    private int count;
+    private String message;
+    private int line;
+    private int column;
+
+    SyntaxErrors(boolean printing) {
+        this.printing = printing;
+    }
+
+    @Override
+    public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+            int charPositionInLine, String msg, RecognitionException e) {
+        if (printing) {
+            System.err.println("line " + line + ":" + charPositionInLine + " " + msg);
+        }
+        if (count++ == 0) {
+            this.message = msg;
+            this.line = line;
+            this.column = charPositionInLine;
+        }
+    }
+
+    int getCount() {
+        return this.count;
+    }
+
+    /**
+     * The message of the first error, or null if there was none.
+     */
+    String getMessage() {
+        return this.message;
+    }
+
+    int getLine() {
+        return this.line;
+    }
+
+    int getColumn() {
+        return this.column;
+    }
+}
@@ -0,0 +1,331 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of an unresolved Expression tree, for the ScriptCache.
+ *
+ * The encoding is a table of all names followed by the tree in prefix order.
+ * Each node is a tag byte and its fields; ints and name indexes are varints.
+ * Sequences are written as a flat list, since long scripts are long chains
+ * of SeqExpr and reading them back must not recurse once per statement.
+ *
+ * Only the node types built by ExpressionBuilderVisitor can be encoded, so
+ * trees are stored before the Resolver runs.
+ */
+class TreeCodec {
+    private static final int EMPTY = 0;
+    private static final int INT = 1;
+    private static final int TRUE = 2;
+    private static final int FALSE = 3;
+    private static final int NULL = 4;
+    private static final int VAR = 5;
+    private static final int PRINT = 6;
+    private static final int BINOP = 7;
+    private static final int IF = 8;
+    private static final int WHILE = 9;
+    private static final int SEQ = 10;
+    private static final int VAR_DECL = 11;
+    private static final int ASSIGN = 12;
+    private static final int FUNCTION = 13;
+    private static final int CALL = 14;
+    private static final int SPAWN = 15;
+    private static final int AWAIT = 16;
+
+    private static final Op[] OPS = Op.values();
+
+    /**
+     * Encodes a tree. Throws IllegalArgumentException if it contains
+     * a node that can not be encoded.
+     */
+    static byte[] encode(Expression exp) {
+        Encoder tree = new Encoder();
+        tree.write(exp);
+
+        Encoder all = new Encoder();
+        all.varint(tree.names.size());
+        for (String name : tree.names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            all.varint(bytes.length);
+            all.out.write(bytes, 0, bytes.length);
+        }
+        byte[] body = tree.out.toByteArray();
+        all.out.write(body, 0, body.length);
+        return all.out.toByteArray();
+    }
+
+    /**
+     * Decodes a tree written by encode, creating its nodes with the given
+     * factory. Throws IllegalArgumentException (or a
+     * BufferUnderflowException) if the data is not valid.
+     */
+    static Expression decode(ByteBuffer in, ExpressionFactory factory) {
+        Decoder d = new Decoder(in, factory);
+        int count = d.varint();
+        d.names = new String[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[d.varint()];
+            in.get(bytes);
+            d.names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Expression exp = d.read();
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("Trailing bytes after tree");
+        }
+        return exp;
+    }
+
+    private static class Encoder {
+        private ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private List<String> names = new ArrayList<String>();
+        private Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+
+        void varint(int v) {
+            while ((v & ~0x7f) != 0) {
+                out.write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+
+        void name(String name) {
+            Integer index = nameIndex.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                nameIndex.put(name, index);
+            }
+            varint(index);
+        }
+
+        void write(Expression exp) {
+            if (exp == null) {
+                out.write(EMPTY);
+            } else if (exp instanceof ValueExpr) {
+                Value v = ((ValueExpr) exp).getValue();
+                if (v instanceof IntVal) {
+                    int i = ((IntVal) v).toInt();
+                    out.write(INT);
+                    varint((i << 1) ^ (i >> 31)); // zigzag, so small negatives stay short
+                } else if (v instanceof BoolVal) {
+                    out.write(((BoolVal) v).toBoolean() ? TRUE : FALSE);
+                } else if (v instanceof NullVal) {
+                    out.write(NULL);
+                } else {
+                    throw new IllegalArgumentException("Can not encode value " + v);
+                }
+            } else if (exp instanceof VarExpr) {
+                out.write(VAR);
+                name(((VarExpr) exp).getVarName());
+            } else if (exp instanceof PrintExpr) {
+                out.write(PRINT);
+                write(((PrintExpr) exp).getExp());
+            } else if (exp instanceof BinOpExpr) {
+                BinOpExpr b = (BinOpExpr) exp;
+                out.write(BINOP);
+                out.write(b.getOp().ordinal());
+                write(b.getE1());
+                write(b.getE2());
+            } else if (exp instanceof IfExpr) {
+                IfExpr i = (IfExpr) exp;
+                out.write(IF);
+                write(i.getCond());
+                write(i.getThn());
+                write(i.getEls());
+            } else if (exp instanceof WhileExpr) {
+                out.write(WHILE);
+                write(((WhileExpr) exp).getCond());
+                write(((WhileExpr) exp).getBody());
+            } else if (exp instanceof SeqExpr) {
+                // flatten the left-nested chain: first, then every second half
+                List<Expression> rest = new ArrayList<Expression>();
+                Expression e = exp;
+                while (e instanceof SeqExpr) {
+                    rest.add(((SeqExpr) e).getE2());
+                    e = ((SeqExpr) e).getE1();
+                }
+                out.write(SEQ);
+                varint(rest.size());
+                write(e);
+                for (int i = rest.size() - 1; i >= 0; i--) {
+                    write(rest.get(i));
+                }
+            } else if (exp instanceof VarDeclExpr) {
+                out.write(VAR_DECL);
+                name(((VarDeclExpr) exp).getVarName());
+                write(((VarDeclExpr) exp).getExp());
+            } else if (exp instanceof AssignExpr) {
+                out.write(ASSIGN);
+                name(((AssignExpr) exp).getVarName());
+                write(((AssignExpr) exp).getE());
+            } else if (exp instanceof FunctionDeclExpr) {
+                FunctionDeclExpr f = (FunctionDeclExpr) exp;
+                out.write(FUNCTION);
+                varint(f.getParams().size());
+                for (String param : f.getParams()) {
+                    name(param);
+                }
+                // position (shifted so that -1 becomes 0), then the name if any
+                varint(f.getLine() + 1);
+                varint(f.getColumn() + 1);
+                if (f.getName() == null) {
+                    out.write(0);
+                } else {
+                    out.write(1);
+                    name(f.getName());
+                }
+                write(f.getBody());
+            } else if (exp instanceof FunctionAppExpr) {
+                FunctionAppExpr app = (FunctionAppExpr) exp;
+                out.write(CALL);
+                write(app.getF());
+                varint(app.getArgs().size());
+                for (Expression arg : app.getArgs()) {
+                    write(arg);
+                }
+            } else if (exp instanceof SpawnExpr) {
+                SpawnExpr sp = (SpawnExpr) exp;
+                out.write(SPAWN);
+                write(sp.getF());
+                varint(sp.getArgs().size());
+                for (Expression arg : sp.getArgs()) {
+                    write(arg);
+                }
+            } else if (exp instanceof AwaitExpr) {
+                out.write(AWAIT);
+                write(((AwaitExpr) exp).getExp());
+            } else {
+                throw new IllegalArgumentException("Can not encode " + exp.getClass().getSimpleName());
+            }
+        }
+    }
+
+    private static class Decoder {
+        private ByteBuffer in;
+        private String[] names;
+        // subtrees the encoder wrote more than once come back shared
+        private ExpressionFactory factory;
+
+        Decoder(ByteBuffer in, ExpressionFactory factory) {
+            this.in = in;
+            this.factory = factory;
+        }
+
+        int varint() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.get() & 0xff;
+                v |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Bad varint");
+        }
+
+        String name() {
+            int index = varint();
+            if (index < 0 || index >= names.length) {
+                throw new IllegalArgumentException("Bad name index " + index);
+            }
+            return names[index];
+        }
+
+        Expression read() {
+            int tag = in.get();
+            switch (tag) {
+                case EMPTY:
+                    return null;
+                case INT: {
+                    int z = varint();
+                    return factory.value(IntVal.of((z >>> 1) ^ -(z & 1)));
+                }
+                case TRUE:
+                    return factory.value(BoolVal.TRUE);
+                case FALSE:
+                    return factory.value(BoolVal.FALSE);
+                case NULL:
+                    return factory.value(NullVal.NULL);
+                case VAR:
+                    return factory.var(name());
+                case PRINT:
+                    return factory.print(read());
+                case BINOP: {
+                    int op = in.get();
+                    if (op < 0 || op >= OPS.length) {
+                        throw new IllegalArgumentException("Bad operator " + op);
+                    }
+                    Expression e1 = read();
+                    return factory.binOp(OPS[op], e1, read());
+                }
+                case IF: {
+                    Expression cond = read();
+                    Expression thn = read();
+                    return factory.ifExpr(cond, thn, read());
+                }
+                case WHILE: {
+                    Expression cond = read();
+                    return factory.whileExpr(cond, read());
+                }
+                case SEQ: {
+                    int count = varint();
+                    Expression exp = read();
+                    for (int i = 0; i < count; i++) {
+                        exp = factory.seq(exp, read());
+                    }
+                    return exp;
+                }
+                case VAR_DECL: {
+                    String name = name();
+                    return factory.varDecl(name, read());
+                }
+                case ASSIGN: {
+                    String name = name();
+                    return factory.assign(name, read());
+                }
+                case FUNCTION: {
+                    int count = varint();
+                    List<String> params = new ArrayList<String>(count);
+                    for (int i = 0; i < count; i++) {
+                        params.add(name());
+                    }
+                    int line = varint() - 1;
+                    int column = varint() - 1;
+                    String fname = in.get() == 0 ? null : name();
+                    FunctionDeclExpr f = factory.function(params, read());
+                    f.setPosition(line, column);
+                    f.setName(fname);
+                    return f;
+                }
+                case CALL: {
+                    Expression f = read();
+                    int count = varint();
+                    List<Expression> args = new ArrayList<Expression>(count);
+                    for (int i = 0; i < count; i++) {
+                        args.add(read());
+                    }
+                    return factory.call(f, args);
+                }
+                case SPAWN: {
+                    Expression f = read();
+                    int count = varint();
+                    List<Expression> args = new ArrayList<Expression>(count);
+                    for (int i = 0; i < count; i++) {
+                        args.add(read());
+                    }
+                    return factory.spawn(f, args);
+                }
+                case AWAIT:
+                    return factory.await(read());
+                default:
+                    throw new IllegalArgumentException("Bad tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Flow-sensitive type inference over a resolved program. A type is a set
+ * of value kinds, a bit mask of INT, BOOL, NULL, FUNCTION and FUTURE; 0
+ * means no value reaches that point, and ANY that nothing is known.
+ *
+ * Types are followed through sequences, branches (joined where they meet)
+ * and loops (until the types at the loop head stop changing), for the
+ * slots of a function frame and, in top-level code, for global variables.
+ * Globals are forgotten at every call from top-level code, since the
+ * callee may assign them, and not followed at all in a program that
+ * spawns calls, which may assign them at any time; slots in a Cell are
+ * not followed either.
+ *
+ * Parameters get the types of the arguments of every call, for functions
+ * stored under a global name that the program defines exactly once and
+ * only ever calls directly (see GlobalDefinitions); such a
+ * call has the type of what the body returns. Tables of parameter and
+ * return types are grown until nothing changes, starting from 0, so
+ * recursive functions get their types too. Parameters of other functions
+ * are ANY.
+ *
+ * The result is used in two ways:
+ * - binary operations whose operands are proven ints (or booleans, for
+ *   ==) get their specialized BinOpNode before the program runs, instead
+ *   of at their first execution. This only pre-warms them: the node still
+ *   checks its operands like one installed at run time, and conditions of
+ *   if and while keep their checks too, so no run-time check is removed,
+ *   and
+ * - operations whose operands can only have wrong types are reported
+ *   with the message they would fail with at run time (see check).
+ *
+ * Like PurityAnalysis it needs the whole program, so it is not run on
+ * statements of -stream. It assumes that globals it does not see defined
+ * are not functions of the program, which a Prelude or the bindings of a
+ * FwjsScriptEngine may break; that can only make the reported errors
+ * wrong, since the nodes it installs still check their operands, so
+ * Interpreter.compile runs it for every entry point and only main reports
+ * the errors.
+ */
+public class TypeInference {
+    static final int INT = 1;
+    static final int BOOL = 2;
+    static final int NULL = 4; // NullVal, or no value at all
+    static final int FUNCTION = 8;
+    static final int FUTURE = 16;
+    static final int ANY = INT | BOOL | NULL | FUNCTION | FUTURE;
+
+    private GlobalDefinitions globals;
+    // global names used other than as the function of a call
+    private Set<String> escaping = new HashSet<String>();
+    private boolean spawns; // the program has spawn expressions
+
+    private Map<FunctionDeclExpr, int[]> paramTypes = new IdentityHashMap<FunctionDeclExpr, int[]>();
+    private Map<FunctionDeclExpr, Integer> returnTypes = new IdentityHashMap<FunctionDeclExpr, Integer>();
+    private boolean changed;
+
+    // set for the last pass, once the tables are complete
+    private boolean reporting;
+    // loops being iterated, whose types are not complete yet
+    private int iterating;
+    // operand types of every binary operation, joined over all the places it is in
+    private Map<BinOpExpr, int[]> operands = new IdentityHashMap<BinOpExpr, int[]>();
+    private Set<String> errors = new LinkedHashSet<String>();
+    private FunctionDeclExpr function; // the innermost one, null at top level
+
+    /**
+     * Infers the types of a resolved program, pre-warms the binary
+     * operations it can, and returns the type errors found, as messages
+     * like "fib@3:11: Condition in if expression must be a boolean". An
+     * error is only reported where a value of the wrong type is certain to
+     * fail, but it may be in code that never runs.
+     */
+    public static List<String> check(Expression prog) {
+        TypeInference t = new TypeInference();
+        t.globals = GlobalDefinitions.of(prog);
+        t.collect(prog);
+        do {
+            t.changed = false;
+            t.type(prog, new HashMap<Object, Integer>());
+        } while (t.changed);
+        t.reporting = true;
+        t.type(prog, new HashMap<Object, Integer>());
+        t.specialize();
+        return new ArrayList<String>(t.errors);
+    }
+
+    /**
+     * Finds the global names that are used other than by calling them.
+     */
+    private void collect(Expression exp) {
+        if (exp instanceof VarExpr) {
+            escaping.add(((VarExpr) exp).getVarName());
+        } else if (exp instanceof GlobalVarExpr) {
+            escaping.add(((GlobalVarExpr) exp).getVarName());
+        } else if (exp instanceof LocalVarExpr) {
+            // may fall through to the global
+            escaping.add(((LocalVarExpr) exp).getVarName());
+        } else if (exp instanceof VarDeclExpr) {
+            collect(((VarDeclExpr) exp).getExp());
+        } else if (exp instanceof AssignExpr) {
+            collect(((AssignExpr) exp).getE());
+        } else if (exp instanceof LocalAssignExpr) {
+            collect(((LocalAssignExpr) exp).getE());
+        } else if (exp instanceof LocalDeclExpr) {
+            collect(((LocalDeclExpr) exp).getExp());
+        } else if (exp instanceof PrintExpr) {
+            collect(((PrintExpr) exp).getExp());
+        } else if (exp instanceof BinOpExpr) {
+            collect(((BinOpExpr) exp).getE1());
+            collect(((BinOpExpr) exp).getE2());
+        } else if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            collect(i.getCond());
+            collect(i.getThn());
+            collect(i.getEls());
+        } else if (exp instanceof CountingLoopExpr) {
+            collect(((CountingLoopExpr) exp).getLoop());
+        } else if (exp instanceof WhileExpr) {
+            collect(((WhileExpr) exp).getCond());
+            collect(((WhileExpr) exp).getBody());
+        } else if (exp instanceof SeqExpr) {
+            collect(((SeqExpr) exp).getE1());
+            collect(((SeqExpr) exp).getE2());
+        } else if (exp instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) exp;
+            if (calleeName(app) == null) {
+                collect(app.getF());
+            }
+            for (Expression arg : app.getArgs()) {
+                collect(arg);
+            }
+        } else if (exp instanceof SpawnExpr) {
+            // the function is called where the analysis does not follow it
+            spawns = true;
+            collect(((SpawnExpr) exp).getF());
+            for (Expression arg : ((SpawnExpr) exp).getArgs()) {
+                collect(arg);
+            }
+        } else if (exp instanceof AwaitExpr) {
+            collect(((AwaitExpr) exp).getExp());
+        } else if (exp instanceof FunctionDeclExpr) {
+            collect(((FunctionDeclExpr) exp).getBody());
+        }
+    }
+
+    /**
+     * The global name a call calls its function by, or null if the
+     * function is computed some other way.
+     */
+    private static String calleeName(FunctionAppExpr app) {
+        if (app.getF() instanceof GlobalVarExpr) {
+            return ((GlobalVarExpr) app.getF()).getVarName();
+        }
+        if (app.getF() instanceof VarExpr) {
+            // top-level code
+            return ((VarExpr) app.getF()).getVarName();
+        }
+        return null;
+    }
+
+    /**
+     * The function a call always calls, if it calls one at all.
+     */
+    private FunctionDeclExpr callee(FunctionAppExpr app) {
+        String name = calleeName(app);
+        return name == null ? null : globals.stableFunction(name);
+    }
+
+    /**
+     * Whether every call of a function is one the analysis sees, so its
+     * parameters can get the types of the arguments.
+     */
+    private boolean isKnownCallee(FunctionDeclExpr f) {
+        String name = globals.stableName(f);
+        return name != null && !escaping.contains(name);
+    }
+
+    /**
+     * The type of an expression, given the types of the variables before
+     * it; vars is changed to the types after it. Keys are slots in a
+     * function and names at top level.
+     */
+    private int type(Expression exp, Map<Object, Integer> vars) {
+        if (exp == null) {
+            return NULL;
+        }
+        if (exp instanceof ValueExpr) {
+            return typeOf(((ValueExpr) exp).getValue());
+        }
+        if (exp instanceof VarExpr) {
+            Integer t = spawns ? null : vars.get(((VarExpr) exp).getVarName());
+            return t != null ? t : ANY;
+        }
+        if (exp instanceof GlobalVarExpr) {
+            return ANY;
+        }
+        if (exp instanceof LocalVarExpr) {
+            LocalVarExpr v = (LocalVarExpr) exp;
+            // a declared slot of this frame is the first place looked at
+            Integer t = v.getKinds()[0] == Environment.SLOT ? vars.get(v.getSlots()[0]) : null;
+            return t != null ? t : ANY;
+        }
+        if (exp instanceof PrintExpr) {
+            return type(((PrintExpr) exp).getExp(), vars);
+        }
+        if (exp instanceof BinOpExpr) {
+            return typeBinOp((BinOpExpr) exp, vars);
+        }
+        if (exp instanceof IfExpr) {
+            IfExpr i = (IfExpr) exp;
+            int cond = type(i.getCond(), vars);
+            if (cond != 0 && (cond & BOOL) == 0) {
+                error("Condition in if expression must be a boolean");
+            }
+            Map<Object, Integer> els = new HashMap<Object, Integer>(vars);
+            int t = type(i.getThn(), vars);
+            t |= type(i.getEls(), els);
+            join(vars, els);
+            return t;
+        }
+        if (exp instanceof CountingLoopExpr) {
+            return type(((CountingLoopExpr) exp).getLoop(), vars);
+        }
+        if (exp instanceof WhileExpr) {
+            return typeWhile((WhileExpr) exp, vars);
+        }
+        if (exp instanceof SeqExpr) {
+            type(((SeqExpr) exp).getE1(), vars);
+            return type(((SeqExpr) exp).getE2(), vars);
+        }
+        if (exp instanceof VarDeclExpr) {
+            VarDeclExpr d = (VarDeclExpr) exp;
+            int t = type(d.getExp(), vars);
+            vars.put(d.getVarName(), t);
+            return t;
+        }
+        if (exp instanceof AssignExpr) {
+            AssignExpr a = (AssignExpr) exp;
+            int t = type(a.getE(), vars);
+            vars.put(a.getVarName(), t);
+            return t;
+        }
+        if (exp instanceof LocalDeclExpr) {
+            LocalDeclExpr d = (LocalDeclExpr) exp;
+            int t = type(d.getExp(), vars);
+            if (!d.isCell()) {
+                vars.put(d.getSlot(), t);
+            }
+            return t;
+        }
+        if (exp instanceof LocalAssignExpr) {
+            LocalAssignExpr a = (LocalAssignExpr) exp;
+            int t = type(a.getE(), vars);
+            // only a declared slot is sure to be the one updated
+            if (a.getKinds()[0] == Environment.SLOT && vars.containsKey(a.getSlots()[0])) {
+                vars.put(a.getSlots()[0], t);
+            }
+            return t;
+        }
+        if (exp instanceof FunctionDeclExpr) {
+            typeFunction((FunctionDeclExpr) exp);
+            return FUNCTION;
+        }
+        if (exp instanceof FunctionAppExpr) {
+            return typeCall((FunctionAppExpr) exp, vars);
+        }
+        if (exp instanceof SpawnExpr) {
+            SpawnExpr sp = (SpawnExpr) exp;
+            int f = type(sp.getF(), vars);
+            if (f != 0 && (f & FUNCTION) == 0) {
+                error("Should be a function to be called");
+            }
+            for (Expression arg : sp.getArgs()) {
+                type(arg, vars);
+            }
+            return FUTURE;
+        }
+        if (exp instanceof AwaitExpr) {
+            int t = type(((AwaitExpr) exp).getExp(), vars);
+            // other values are their own result
+            return (t & FUTURE) != 0 ? ANY : t;
+        }
+        return ANY;
+    }
+
+    private static int typeOf(Value v) {
+        if (v instanceof IntVal) {
+            return INT;
+        }
+        if (v instanceof BoolVal) {
+            return BOOL;
+        }
+        if (v instanceof ClosureVal) {
+            return FUNCTION;
+        }
+        return NULL;
+    }
+
+    private int typeBinOp(BinOpExpr b, Map<Object, Integer> vars) {
+        int t1 = type(b.getE1(), vars);
+        int t2 = type(b.getE2(), vars);
+        if (reporting && iterating == 0) {
+            int[] seen = operands.get(b);
+            if (seen == null) {
+                operands.put(b, new int[] { t1, t2 });
+            } else {
+                seen[0] |= t1;
+                seen[1] |= t2;
+            }
+        }
+        switch (b.getOp()) {
+            case EQ:
+                return BOOL;
+            case GT:
+            case GE:
+            case LT:
+            case LE:
+                checkInts(b, t1, t2);
+                return BOOL;
+            default:
+                checkInts(b, t1, t2);
+                return INT;
+        }
+    }
+
+    private void checkInts(BinOpExpr b, int t1, int t2) {
+        if (t1 != 0 && t2 != 0 && ((t1 & INT) == 0 || (t2 & INT) == 0)) {
+            error("Type error in binary operation: " + b.getOp() + " of " + describe(t1) + " and " + describe(t2));
+        }
+    }
+
+    /**
+     * A loop: the types at its head are joined with those at the end of
+     * its body until they stop changing, then the loop is typed once more
+     * with those, so that only complete types are reported.
+     */
+    private int typeWhile(WhileExpr w, Map<Object, Integer> vars) {
+        Map<Object, Integer> head = new HashMap<Object, Integer>(vars);
+        iterating++;
+        try {
+            while (true) {
+                Map<Object, Integer> end = new HashMap<Object, Integer>(head);
+                type(w.getCond(), end);
+                type(w.getBody(), end);
+                Map<Object, Integer> next = new HashMap<Object, Integer>(head);
+                join(next, end);
+                if (next.equals(head)) {
+                    break;
+                }
+                head = next;
+            }
+        } finally {
+            iterating--;
+        }
+        vars.clear();
+        vars.putAll(head);
+        int cond = type(w.getCond(), vars);
+        if (cond != 0 && (cond & BOOL) == 0) {
+            error("Condition should be boolean type");
+        }
+        // the loop ends where its condition is false
+        Map<Object, Integer> body = new HashMap<Object, Integer>(vars);
+        // the value of the last run of the body, none if it never runs
+        return type(w.getBody(), body) | NULL;
+    }
+
+    /**
+     * Types the body of a function literal with the parameter types known
+     * so far, and adds what it returns to its return type.
+     */
+    private void typeFunction(FunctionDeclExpr f) {
+        int[] params = paramTypes(f);
+        Map<Object, Integer> vars = new HashMap<Object, Integer>();
+        for (int i = 0; i < params.length; i++) {
+            vars.put(i, params[i]);
+        }
+        for (int slot : f.getCellSlots()) {
+            vars.remove(slot);
+        }
+        FunctionDeclExpr saved = this.function;
+        this.function = f;
+        int t;
+        try {
+            t = type(f.getBody(), vars);
+        } finally {
+            this.function = saved;
+        }
+        Integer before = returnTypes.get(f);
+        int after = (before == null ? 0 : before) | t;
+        if (before == null || after != before) {
+            returnTypes.put(f, after);
+            changed = true;
+        }
+    }
+
+    private int[] paramTypes(FunctionDeclExpr f) {
+        int[] params = paramTypes.get(f);
+        if (params == null) {
+            params = new int[f.getParams().size()];
+            if (!isKnownCallee(f)) {
+                Arrays.fill(params, ANY);
+            }
+            paramTypes.put(f, params);
+        }
+        return params;
+    }
+
+    private int typeCall(FunctionAppExpr app, Map<Object, Integer> vars) {
+        int f = type(app.getF(), vars);
+        if (f != 0 && (f & FUNCTION) == 0) {
+            error("Should be a function to be called");
+        }
+        int[] args = new int[app.getArgs().size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = type(app.getArgs().get(i), vars);
+        }
+        if (function == null) {
+            // the callee may have changed any global
+            vars.clear();
+        }
+        FunctionDeclExpr callee = callee(app);
+        if (callee == null) {
+            return ANY;
+        }
+        int[] params = paramTypes(callee);
+        for (int i = 0; i < params.length && i < args.length; i++) {
+            if ((params[i] | args[i]) != params[i]) {
+                params[i] |= args[i];
+                changed = true;
+            }
+        }
+        Integer t = returnTypes.get(callee);
+        return t == null ? 0 : t;
+    }
+
+    /**
+     * Joins the variable types of another path into vars; a variable
+     * only one of them has is no longer known.
+     */
+    private static void join(Map<Object, Integer> vars, Map<Object, Integer> other) {
+        vars.keySet().retainAll(other.keySet());
+        for (Map.Entry<Object, Integer> e : vars.entrySet()) {
+            e.setValue(e.getValue() | other.get(e.getKey()));
+        }
+    }
+
+    private void error(String message) {
+        if (reporting && iterating == 0) {
+            String where = function == null ? "top level" : function.describe();
+            errors.add(where + ": " + message);
+        }
+    }
+
+    /**
+     * Gives binary operations with proven operand types the node their
+     * first execution would install.
+     */
+    private void specialize() {
+        for (Map.Entry<BinOpExpr, int[]> e : operands.entrySet()) {
+            BinOpExpr b = e.getKey();
+            int t1 = e.getValue()[0];
+            int t2 = e.getValue()[1];
+            if (t1 == INT && t2 == INT) {
+                b.specialize(BinOpNode.forInts(b.getOp()));
+            } else if (b.getOp() == Op.EQ && t1 == BOOL && t2 == BOOL) {
+                b.specialize(BinOpNode.BOOL_EQ);
+            }
+        }
+    }
+
+    /**
+     * A type as text, like "int or null".
+     */
+    static String describe(int type) {
+        if (type == ANY) {
+            return "any";
+        }
+        String[] names = { "int", "bool", "null", "function", "future" };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            if ((type & (1 << i)) != 0) {
+                sb.append(sb.length() == 0 ? "" : " or ").append(names[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
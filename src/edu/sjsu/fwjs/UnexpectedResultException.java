@@ -0,0 +1,23 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Thrown by Expression.evaluateInt and evaluateBoolean when the expression
+ * produced a value of another type. Carries that value, which was already
+ * computed and must not be computed again.
+ *
+ * This is control flow, not an error, so no stack trace is recorded.
+ */
+class UnexpectedResultException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private transient Value result;
+
+    UnexpectedResultException(Value result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+
+    Value getResult() {
+        return this.result;
+    }
+}
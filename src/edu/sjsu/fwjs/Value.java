@@ -1,6 +1,10 @@
 package edu.sjsu.fwjs;
 
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Values in FWJS.
@@ -14,14 +18,23 @@ public interface Value {
 
 /**
  * Boolean values.
+ * Use TRUE and FALSE (or of) instead of creating new instances; equality is
+ * still by value, so a BoolVal made with the constructor works the same.
  */
 class BoolVal implements Value {
+    static final BoolVal TRUE = new BoolVal(true);
+    static final BoolVal FALSE = new BoolVal(false);
+
     private boolean boolVal;
 
     public BoolVal(boolean b) {
         this.boolVal = b;
     }
 
+    static BoolVal of(boolean b) {
+        return b ? TRUE : FALSE;
+    }
+
     public boolean toBoolean() {
         return this.boolVal;
     }
@@ -33,9 +46,14 @@ class BoolVal implements Value {
         return this.boolVal == ((BoolVal) that).boolVal;
     }
 
+    @Override
+    public int hashCode() {
+        return Boolean.hashCode(this.boolVal);
+    }
+
     @Override
     public String toString() {
-        return "" + this.boolVal;
+        return this.boolVal ? "true" : "false";
     }
 }
 
@@ -43,12 +61,33 @@ class BoolVal implements Value {
  * Numbers. Only integers are supported.
  */
 class IntVal implements Value {
+    // small ints are shared, most loop counters and results fit here
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1023;
+    private static final IntVal[] CACHE = new IntVal[CACHE_HIGH - CACHE_LOW + 1];
+
+    static {
+        for (int n = 0; n < CACHE.length; n++) {
+            CACHE[n] = new IntVal(n + CACHE_LOW);
+        }
+    }
+
     private int i;
 
     public IntVal(int i) {
         this.i = i;
     }
 
+    /**
+     * Returns an IntVal for i, shared if i is small.
+     */
+    static IntVal of(int i) {
+        if (i >= CACHE_LOW && i <= CACHE_HIGH) {
+            return CACHE[i - CACHE_LOW];
+        }
+        return new IntVal(i);
+    }
+
     public int toInt() {
         return this.i;
     }
@@ -60,18 +99,33 @@ class IntVal implements Value {
         return this.i == ((IntVal) that).i;
     }
 
+    @Override
+    public int hashCode() {
+        return this.i;
+    }
+
     @Override
     public String toString() {
-        return "" + this.i;
+        return Integer.toString(this.i);
     }
 }
 
+/**
+ * The null value. NULL is the only instance the interpreter creates.
+ */
 class NullVal implements Value {
+    static final NullVal NULL = new NullVal();
+
     @Override
     public boolean equals(Object that) {
         return (that instanceof NullVal);
     }
 
+    @Override
+    public int hashCode() {
+        return 0;
+    }
+
     @Override
     public String toString() {
         return "null";
@@ -86,21 +140,62 @@ class NullVal implements Value {
  * that why we need outerEnv
  */
 class ClosureVal implements Value {
-    private List<String> params;
-    private Expression body; // represents code inside function
+    private FunctionDeclExpr decl; // params and code inside function
     private Environment outerEnv; // env where function is defined
+    private Object[] captured; // values and cells of enclosing functions used
 
     /**
      * The environment is the environment where the function was created.
      * This design is what makes this expression a closure.
+     *
+     * A resolved function does not keep that whole environment, only the
+     * global scope and the variables of enclosing functions it (or a
+     * function nested in it) uses, which the Resolver listed in the decl.
+     * The frames it was created in can then be collected once they return.
      */
-    public ClosureVal(List<String> params, Expression body, Environment env) {
-        this.params = params;
-        this.body = body;
-        this.outerEnv = env;
+    public ClosureVal(FunctionDeclExpr decl, Environment env) {
+        this.decl = decl;
+        if (decl.getFrameSize() < 0) {
+            this.outerEnv = env;
+            return;
+        }
+        this.outerEnv = env.getGlobal();
+        int[] kinds = decl.getCaptureKinds();
+        int[] indices = decl.getCaptureIndices();
+        this.captured = new Object[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            captured[i] = env.capture(kinds[i], indices[i]);
+        }
+    }
+
+    FunctionDeclExpr getDecl() {
+        return this.decl;
+    }
+
+    /**
+     * The defining environment of an unresolved function, the global
+     * scope of a resolved one.
+     */
+    Environment getOuterEnv() {
+        return this.outerEnv;
+    }
+
+    Object[] getCaptured() {
+        return this.captured;
+    }
+
+    /**
+     * Fails a call with fewer arguments than parameters, in every engine
+     * with the IndexOutOfBoundsException of reading the first missing one.
+     */
+    void checkArgs(int argc) {
+        if (argc < decl.getParams().size()) {
+            Objects.checkIndex(argc, argc);
+        }
     }
 
     public String toString() {
+        List<String> params = decl.getParams();
         String s = "function(";
         String sep = "";
         for (int i = 0; i < params.size(); i++) {
@@ -119,13 +214,276 @@ class ClosureVal implements Value {
      * } * add(3,5); => match x with 3 and y with 5
      */
     public Value apply(List<Value> argVals) {
+        return runTailCalls(invoke(argVals));
+    }
+
+    /**
+     * Makes the calls in tail position a function body returned,
+     * until one returns a real value.
+     */
+    static Value runTailCalls(Value result) {
+        while (result instanceof TailCall) {
+            // a call in tail position: make it here instead of nesting
+            TailCall call = (TailCall) result;
+            Profiler profiler = call.getClosure().outerEnv.getContext().getProfiler();
+            if (profiler != null) {
+                profiler.tailCall(call.getClosure().getDecl());
+            }
+            if (call.getFrame() != null) {
+                try {
+                    result = call.getClosure().getDecl().getBody().evaluate(call.getFrame());
+                } finally {
+                    FramePool.current().release(call.getFrame());
+                }
+            } else {
+                result = call.getClosure().invoke(call.getArgs());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs the body once. The result may be a TailCall.
+     */
+    private Value invoke(List<Value> argVals) {
+        if (decl.getFrameSize() >= 0) {
+            CompiledFunction compiled = compiledCode();
+            if (compiled != null) {
+                Value result = compiled.invoke(decl, this.outerEnv, argVals);
+                if (result != null) {
+                    return result;
+                }
+                // a guard failed, interpret this call
+            }
+        }
+        return interpret(argVals);
+    }
+
+    /**
+     * The JIT hook: counts the call and returns the compiled code of the
+     * function once it is hot, or null if it is not compiled.
+     */
+    CompiledFunction compiledCode() {
+        FunctionProfile profile = decl.getProfile();
+        if (profile == null || !JitCompiler.enabled) {
+            return null;
+        }
+        ExecutionContext context = outerEnv.getContext();
+        if (context.getBudget() != null || context.getProfiler() != null
+                || (decl.isPure() && context.getMemoizer() != null)) {
+            // compiled code does not count fuel, report calls or memoize
+            // its recursive calls
+            return null;
+        }
+        if (decl.hasForks() && context.getForkJoiner() != null && context.getForkJoiner().wantsFork()) {
+            // nor fork; below the fork cutoff it may run compiled again
+            return null;
+        }
+        CompiledFunction compiled = profile.compiled;
+        if (compiled == null) {
+            profile.calls++;
+            if (profile.isHot()) {
+                compiled = JitCompiler.compile(decl, this.outerEnv);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Runs the body in the tree-walker. The result may be a TailCall.
+     */
+    Value interpret(List<Value> argVals) {
+        checkArgs(argVals.size());
+        List<String> params = decl.getParams();
+        int frameSize = decl.getFrameSize();
+        if (frameSize >= 0) {
+            // resolved function: parameters are the first slots of the frame
+            FramePool pool = FramePool.current();
+            Environment local = pool.acquire(this);
+            try {
+                for (int i = 0; i < params.size(); i++) {
+                    local.bindParam(i, argVals.get(i));
+                }
+                return decl.getBody().evaluate(local);
+            } finally {
+                pool.release(local);
+            }
+        }
         // create a new local environment
         Environment local = new Environment(this.outerEnv);
         // bouding each parameter name ot its argument value
         for (int i = 0; i < params.size(); i++) {
             local.createVar(params.get(i), argVals.get(i));
         }
-        return body.evaluate(local);
+        return decl.getBody().evaluate(local);
+    }
+
+}
+
+/**
+ * A call in tail position that has not been made yet.
+ * FunctionAppExpr returns one instead of calling when it is the last thing
+ * its function does. It can only end up as the result of a function body,
+ * so ClosureVal.apply is the only place that sees it, and it makes the call
+ * in a loop. Tail recursion then runs in constant Java stack space.
+ */
+class TailCall implements Value {
+    private ClosureVal closure;
+    private List<Value> args;
+    private Environment frame; // set instead of args if already bound
+
+    TailCall(ClosureVal closure, List<Value> args) {
+        this.closure = closure;
+        this.args = args;
+    }
+
+    /**
+     * A call whose arguments an inline cache already put in a frame.
+     */
+    TailCall(ClosureVal closure, Environment frame) {
+        this.closure = closure;
+        this.frame = frame;
+    }
+
+    ClosureVal getClosure() {
+        return this.closure;
+    }
+
+    List<Value> getArgs() {
+        return this.args;
+    }
+
+    Environment getFrame() {
+        return this.frame;
+    }
+}
+
+/**
+ * The value of a spawn expression: a call that runs on another thread
+ * (see Spawner), and whose result an await expression waits for.
+ *
+ * A call is run by whoever claims it first: the thread the Spawner gave
+ * it to, or a thread awaiting it before it started, which then runs it
+ * itself. Awaiting a call that has not started never blocks, so spawned
+ * calls awaiting each other do not run out of threads.
+ */
+final class FutureVal implements Value, Runnable {
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Spawner spawner;
+    private final long order; // spawn order within the run, see Spawner
+    private ClosureVal closure;
+    private List<Value> args;
+    private ExecutionContext context;
+    private Value result;
+    private Throwable failure;
+
+    FutureVal(Spawner spawner, long order, ClosureVal closure, List<Value> args, ExecutionContext context) {
+        this.spawner = spawner;
+        this.order = order;
+        this.closure = closure;
+        this.args = args;
+        this.context = context;
+    }
+
+    Spawner getSpawner() {
+        return this.spawner;
+    }
+
+    long getOrder() {
+        return this.order;
+    }
+
+    /**
+     * Makes the call, unless another thread already claimed it.
+     */
+    @Override
+    public void run() {
+        if (!claimed.compareAndSet(false, true)) {
+            return;
+        }
+        // functions of a prelude print through the context of the thread
+        ExecutionContext saved = ExecutionContext.current();
+        ExecutionContext.setCurrent(context);
+        try {
+            result = closure.apply(args);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            ExecutionContext.setCurrent(saved);
+            // nothing the call needed is kept once it is done
+            closure = null;
+            args = null;
+            context = null;
+            done.countDown();
+            spawner.finished(this);
+        }
+    }
+
+    /**
+     * Drops the call if no thread has started it; returns whether it did.
+     */
+    boolean cancel() {
+        if (!claimed.compareAndSet(false, true)) {
+            return false;
+        }
+        closure = null;
+        args = null;
+        context = null;
+        failure = new RuntimeException("Spawned call cancelled");
+        done.countDown();
+        return true;
+    }
+
+    /**
+     * Waits until the call is done, making it on this thread if it has
+     * not started yet. A thread of a ForkJoinPool that has to block lets
+     * the pool start another one meanwhile.
+     */
+    void join() {
+        run();
+        if (done.getCount() == 0) {
+            return;
+        }
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    done.await();
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return done.getCount() == 0;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while awaiting a spawned call");
+        }
     }
 
+    boolean failed() {
+        return this.failure != null;
+    }
+
+    /**
+     * The result of the call, once it is done; an error it threw is
+     * rethrown as it was.
+     */
+    Value get() {
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "future";
+    }
 }
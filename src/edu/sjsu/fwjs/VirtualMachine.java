@@ -0,0 +1,356 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stack machine for the bytecode produced by BytecodeCompiler.
+ * FWJS calls between compiled functions push a frame record instead of
+ * recursing on the Java stack. Frames are the same Environments the
+ * tree-walker uses, so closures can be passed freely between the engines.
+ */
+public class VirtualMachine {
+    private static final Op[] OPS = Op.values();
+
+    private BytecodeCompiler compiler;
+
+    // operand stack, typed Object[] so pushes need no array store check
+    // against the Value interface
+    private Object[] stack = new Object[256];
+
+    // saved state of the callers
+    private Chunk[] callChunks = new Chunk[64];
+    private int[] callPcs = new int[64];
+    private Environment[] callEnvs = new Environment[64];
+    private Object[] callKeys = new Object[64]; // Memoizer key of the call, or null
+    private int calls;
+
+    public VirtualMachine(BytecodeCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * Runs a chunk in the given environment and returns its value.
+     */
+    public Value run(Chunk main, Environment env) {
+        Chunk chunk = main;
+        int[] code = chunk.code;
+        Object[] k = chunk.constants;
+        int pc = 0;
+        int sp = 0;
+        int base = calls;
+        ensureStack(chunk.maxStack);
+        Object[] stack = this.stack;
+        Budget budget = env.getContext().getBudget();
+        Memoizer memoizer = env.getContext().getMemoizer();
+        FramePool frames = FramePool.current();
+
+        while (true) {
+            int opcode = code[pc++];
+            switch (opcode) {
+                case Chunk.CONST:
+                    stack[sp++] = k[code[pc++]];
+                    break;
+                case Chunk.PUSH_NULL:
+                    stack[sp++] = NullVal.NULL;
+                    break;
+                case Chunk.PUSH_NONE:
+                    stack[sp++] = null;
+                    break;
+                case Chunk.POP:
+                    stack[--sp] = null;
+                    break;
+
+                case Chunk.LOAD_NAME: {
+                    Value r = env.resolveVar((String) k[code[pc++]]);
+                    stack[sp++] = (r == null) ? NullVal.NULL : r;
+                    break;
+                }
+                case Chunk.LOAD_GLOBAL: {
+                    Value r = env.getGlobal().resolveVar((String) k[code[pc++]]);
+                    stack[sp++] = (r == null) ? NullVal.NULL : r;
+                    break;
+                }
+                case Chunk.DECLARE_NAME:
+                    env.createVar((String) k[code[pc++]], (Value) stack[sp - 1]);
+                    break;
+                case Chunk.ASSIGN_NAME:
+                    ((AssignExpr) k[code[pc++]]).assign(env, (Value) stack[sp - 1]);
+                    break;
+
+                case Chunk.LOAD_SLOT: {
+                    Value v = env.lookup(code[pc], code[pc + 1]);
+                    stack[sp++] = (v == null) ? NullVal.NULL : v;
+                    pc += 2;
+                    break;
+                }
+                case Chunk.TRY_SLOT: {
+                    Value v = env.lookup(code[pc], code[pc + 1]);
+                    if (v != null) {
+                        stack[sp++] = v;
+                        pc = code[pc + 2];
+                    } else {
+                        pc += 3;
+                    }
+                    break;
+                }
+                case Chunk.DECLARE_SLOT:
+                    env.declareSlot(code[pc++], (Value) stack[sp - 1]);
+                    break;
+                case Chunk.DECLARE_CELL:
+                    env.declareCell(code[pc++], (Value) stack[sp - 1]);
+                    break;
+                case Chunk.ASSIGN_LOCAL:
+                    ((LocalAssignExpr) k[code[pc++]]).assign(env, (Value) stack[sp - 1]);
+                    break;
+
+                case Chunk.PRINT:
+                    env.getContext().print((Value) stack[sp - 1]);
+                    break;
+
+                case Chunk.ADD:
+                case Chunk.SUBTRACT:
+                case Chunk.MULTIPLY:
+                case Chunk.DIVIDE:
+                case Chunk.MOD:
+                case Chunk.GT:
+                case Chunk.GE:
+                case Chunk.LT:
+                case Chunk.LE:
+                case Chunk.EQ: {
+                    Value b = (Value) stack[--sp];
+                    Value a = (Value) stack[sp - 1];
+                    if (a instanceof IntVal && b instanceof IntVal) {
+                        stack[sp - 1] = intOp(opcode, ((IntVal) a).toInt(), ((IntVal) b).toInt());
+                    } else {
+                        stack[sp - 1] = BinOpExpr.apply(OPS[opcode - Chunk.ADD], a, b);
+                    }
+                    break;
+                }
+
+                case Chunk.JUMP:
+                    if (budget != null && code[pc] < pc) {
+                        // loop back-edge
+                        budget.tick();
+                    }
+                    pc = code[pc];
+                    break;
+                case Chunk.JUMP_IF_FALSE: {
+                    Value c = (Value) stack[--sp];
+                    if (!(c instanceof BoolVal)) {
+                        throw new RuntimeException("Condition in if expression must be a boolean");
+                    }
+                    pc = ((BoolVal) c).toBoolean() ? pc + 1 : code[pc];
+                    break;
+                }
+                case Chunk.LOOP_IF_FALSE: {
+                    Value c = (Value) stack[--sp];
+                    if (!(c instanceof BoolVal)) {
+                        throw new RuntimeException("Condition should be boolean type");
+                    }
+                    pc = ((BoolVal) c).toBoolean() ? pc + 1 : code[pc];
+                    break;
+                }
+
+                case Chunk.CMP_JUMP_IF_FALSE:
+                case Chunk.CMP_LOOP_IF_FALSE: {
+                    Value b = (Value) stack[--sp];
+                    Value a = (Value) stack[--sp];
+                    int cmp = code[pc];
+                    boolean taken;
+                    if (a instanceof IntVal && b instanceof IntVal) {
+                        taken = compare(cmp, ((IntVal) a).toInt(), ((IntVal) b).toInt());
+                    } else {
+                        Value c = BinOpExpr.apply(OPS[cmp], a, b);
+                        if (!(c instanceof BoolVal)) {
+                            throw new RuntimeException(opcode == Chunk.CMP_JUMP_IF_FALSE
+                                    ? "Condition in if expression must be a boolean"
+                                    : "Condition should be boolean type");
+                        }
+                        taken = ((BoolVal) c).toBoolean();
+                    }
+                    pc = taken ? pc + 2 : code[pc + 1];
+                    break;
+                }
+
+                case Chunk.CLOSURE:
+                    stack[sp++] = new ClosureVal((FunctionDeclExpr) k[code[pc++]], env);
+                    break;
+                case Chunk.CALL:
+                case Chunk.TAIL_CALL: {
+                    if (budget != null) {
+                        budget.tick();
+                    }
+                    int argc = code[pc++];
+                    int argBase = sp - argc;
+                    Value v = (Value) stack[argBase - 1];
+                    if (!(v instanceof ClosureVal)) {
+                        throw new RuntimeException("Should be a function to be called");
+                    }
+                    ClosureVal closure = (ClosureVal) v;
+                    FunctionDeclExpr decl = closure.getDecl();
+                    Object key = null;
+                    if (memoizer != null && opcode == Chunk.CALL && decl.isPure()) {
+                        key = memoizer.key(decl, stack, argBase, argc);
+                        Value known = key == null ? null : memoizer.get(key);
+                        if (known != null) {
+                            sp = argBase - 1;
+                            stack[sp++] = known;
+                            break;
+                        }
+                    }
+                    Chunk target = compiler.chunkFor(decl);
+                    if (target == null) {
+                        // not compiled, let the tree-walker run it
+                        List<Value> args = new ArrayList<Value>(argc);
+                        for (int i = 0; i < argc; i++) {
+                            args.add((Value) stack[argBase + i]);
+                        }
+                        sp = argBase - 1;
+                        Value result = closure.apply(args);
+                        if (key != null) {
+                            memoizer.put(key, result);
+                        }
+                        stack[sp++] = result;
+                        break;
+                    }
+                    closure.checkArgs(argc);
+                    int numParams = decl.getParams().size();
+                    Environment frame = frames.acquire(closure);
+                    for (int i = 0; i < numParams; i++) {
+                        frame.bindParam(i, (Value) stack[argBase + i]);
+                    }
+                    sp = argBase - 1;
+
+                    if (opcode == Chunk.CALL || calls == base) {
+                        // a memoized call stores its result when it returns
+                        pushCall(chunk, pc, env, key);
+                    } else {
+                        // a tail call: the callee returns straight to our
+                        // caller, and our frame is done
+                        frames.release(env);
+                    }
+                    chunk = target;
+                    code = chunk.code;
+                    k = chunk.constants;
+                    pc = 0;
+                    env = frame;
+                    stack = ensureStack(sp + chunk.maxStack);
+                    break;
+                }
+                case Chunk.RETURN: {
+                    Value result = (Value) stack[--sp];
+                    if (calls == base) {
+                        return result;
+                    }
+                    // the frame of a call this run made
+                    frames.release(env);
+                    calls--;
+                    chunk = callChunks[calls];
+                    code = chunk.code;
+                    k = chunk.constants;
+                    pc = callPcs[calls];
+                    env = callEnvs[calls];
+                    callEnvs[calls] = null;
+                    if (callKeys[calls] != null) {
+                        memoizer.put(callKeys[calls], result);
+                        callKeys[calls] = null;
+                    }
+                    stack[sp++] = result;
+                    break;
+                }
+
+                case Chunk.SPAWN: {
+                    if (budget != null) {
+                        budget.tick();
+                    }
+                    int argc = code[pc++];
+                    int argBase = sp - argc;
+                    Value v = (Value) stack[argBase - 1];
+                    if (!(v instanceof ClosureVal)) {
+                        throw new RuntimeException("Should be a function to be called");
+                    }
+                    List<Value> args = new ArrayList<Value>(argc);
+                    for (int i = 0; i < argc; i++) {
+                        args.add((Value) stack[argBase + i]);
+                    }
+                    sp = argBase - 1;
+                    // the spawned call runs in the tree-walker, see Spawner
+                    ExecutionContext context = env.getContext();
+                    stack[sp++] = context.getSpawner().spawn((ClosureVal) v, args, context);
+                    break;
+                }
+                case Chunk.AWAIT:
+                    stack[sp - 1] = AwaitExpr.await((Value) stack[sp - 1]);
+                    break;
+
+                case Chunk.EVAL:
+                    stack[sp++] = ((Expression) k[code[pc++]]).evaluate(env);
+                    break;
+
+                default:
+                    throw new IllegalStateException("Bad opcode " + opcode + " at " + (pc - 1));
+            }
+        }
+    }
+
+    /**
+     * Int fast path of the binary operators, see BinOpExpr.apply.
+     */
+    private static Value intOp(int opcode, int num1, int num2) {
+        switch (opcode) {
+            case Chunk.ADD:
+                return IntVal.of(num1 + num2);
+            case Chunk.SUBTRACT:
+                return IntVal.of(num1 - num2);
+            case Chunk.MULTIPLY:
+                return IntVal.of(num1 * num2);
+            case Chunk.DIVIDE:
+                if (num2 == 0) {
+                    throw new RuntimeException("Division by zero");
+                }
+                return IntVal.of(num1 / num2);
+            case Chunk.MOD:
+                return IntVal.of(num1 % num2);
+            default:
+                return BoolVal.of(compare(opcode - Chunk.ADD, num1, num2));
+        }
+    }
+
+    private static boolean compare(int op, int num1, int num2) {
+        switch (OPS[op]) {
+            case GT:
+                return num1 > num2;
+            case GE:
+                return num1 >= num2;
+            case LT:
+                return num1 < num2;
+            case LE:
+                return num1 <= num2;
+            default:
+                return num1 == num2;
+        }
+    }
+
+    private void pushCall(Chunk chunk, int pc, Environment env, Object key) {
+        if (calls == callChunks.length) {
+            callChunks = Arrays.copyOf(callChunks, calls * 2);
+            callPcs = Arrays.copyOf(callPcs, calls * 2);
+            callEnvs = Arrays.copyOf(callEnvs, calls * 2);
+            callKeys = Arrays.copyOf(callKeys, calls * 2);
+        }
+        callChunks[calls] = chunk;
+        callPcs[calls] = pc;
+        callEnvs[calls] = env;
+        callKeys[calls] = key;
+        calls++;
+    }
+
+    private Object[] ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,43 @@
+package edu.sjsu.fwjs;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+import org.junit.Test;
+
+public class FwjsScriptEngineTest {
+
+    @Test
+    public void compiledScriptEvaluatesManyTimes() throws ScriptException {
+        FwjsScriptEngine engine = new FwjsScriptEngine();
+        CompiledScript cs = engine.compile("var x = 1; x;");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, cs.eval());
+            assertEquals(1, engine.get("x"));
+        }
+    }
+
+    @Test
+    public void varShadowsBinding() throws ScriptException {
+        FwjsScriptEngine engine = new FwjsScriptEngine();
+        engine.put("n", 5);
+        CompiledScript cs = engine.compile("var x = 1; x = x + n; x;");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(6, cs.eval());
+        }
+        engine.put("x", 40);
+        assertEquals(6, cs.eval());
+    }
+
+    @Test
+    public void assignmentUpdatesBinding() throws ScriptException {
+        FwjsScriptEngine engine = new FwjsScriptEngine();
+        engine.put("n", 1);
+        CompiledScript cs = engine.compile("n = n + 1;");
+        cs.eval();
+        cs.eval();
+        assertEquals(3, engine.get("n"));
+    }
+}
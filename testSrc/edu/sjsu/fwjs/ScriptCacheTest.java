@@ -0,0 +1,57 @@
+package edu.sjsu.fwjs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class ScriptCacheTest {
+
+    @Test
+    public void storesParsedScript() throws Exception {
+        Path dir = Files.createTempDirectory("fwjs-cache");
+        warm(dir, "var x = 1;\nprint(x + 2);\n");
+        assertEquals(1, entries(dir));
+        assertEquals(1, new ScriptCache(dir).clear());
+    }
+
+    @Test
+    public void skipsScriptWithSyntaxErrors() throws Exception {
+        Path dir = Files.createTempDirectory("fwjs-cache");
+        warm(dir, "print(1 2);\nprint(3);\n");
+        assertEquals(0, entries(dir));
+    }
+
+    @Test
+    public void dropsEntryOfOtherKey() throws Exception {
+        Path dir = Files.createTempDirectory("fwjs-cache");
+        byte[] source = "print(1);".getBytes(StandardCharsets.UTF_8);
+        ScriptCache cache = new ScriptCache(dir);
+        byte[] key = ScriptCache.key(source, true);
+        cache.store(key, Interpreter.parse(source));
+        assertEquals("Print\n  Value 1\n", AstPrinter.print(cache.load(key, new ExpressionFactory())));
+        assertNull(cache.load(ScriptCache.key(source, false), new ExpressionFactory()));
+    }
+
+    /**
+     * Runs the Interpreter with -cache=warm on a script, so it is only
+     * parsed and stored.
+     */
+    private static void warm(Path dir, String script) throws Exception {
+        File file = File.createTempFile("script", ".fwjs");
+        file.deleteOnExit();
+        Files.write(file.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        Interpreter.main(new String[] { "-cache=warm", "-cache-dir=" + dir, file.getPath() });
+    }
+
+    private static int entries(Path dir) throws IOException {
+        String[] names = dir.toFile().list((d, name) -> name.endsWith(".fwjc"));
+        return names == null ? 0 : names.length;
+    }
+}
@@ -0,0 +1,88 @@
+package edu.sjsu.fwjs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TreeCodecTest {
+
+    private static Expression parse(String script) throws Exception {
+        return Interpreter.parse(script.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes and decodes a tree, and checks that the result prints the
+     * same and encodes to the same bytes.
+     */
+    private static void assertRoundTrip(Expression exp) {
+        byte[] bytes = TreeCodec.encode(exp);
+        Expression decoded = TreeCodec.decode(ByteBuffer.wrap(bytes), new ExpressionFactory());
+        assertEquals(AstPrinter.print(exp), AstPrinter.print(decoded));
+        assertTrue(Arrays.equals(bytes, TreeCodec.encode(decoded)));
+    }
+
+    @Test
+    public void roundTripsEveryTag() throws Exception {
+        Expression prog = parse("var n = null;\n"
+                + "var add = function(a, b) { a + b; };\n"
+                + "var f = spawn add(1, 2);\n"
+                + "n = await f;\n"
+                + "if (true) { print(n); } else { print(false); }\n"
+                + "while (n > 0) { n = n - 1; }\n"
+                + "(function() { print(add(n, 40)); })();\n");
+        String tree = AstPrinter.print(prog);
+        for (String node : new String[] { "VarDecl", "Assign", "Function [a, b] add", "Spawn", "Await",
+                "If", "While", "Seq", "Call", "Print", "BinOp", "Value null", "Value true", "Value false" }) {
+            assertTrue(node, tree.contains(node));
+        }
+        assertRoundTrip(prog);
+    }
+
+    @Test
+    public void roundTripsNegativeInts() {
+        ExpressionFactory factory = new ExpressionFactory();
+        Expression exp = factory.value(IntVal.of(0));
+        for (int i : new int[] { -1, 1, -64, 64, -1000000, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+            exp = factory.seq(exp, factory.print(factory.value(IntVal.of(i))));
+        }
+        assertRoundTrip(exp);
+    }
+
+    @Test
+    public void roundTripsLongSequence() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append("print(").append(i).append(");\n");
+        }
+        // compared as bytes, printing a tree this deep would overflow the stack
+        byte[] bytes = TreeCodec.encode(parse(sb.toString()));
+        assertTrue(Arrays.equals(bytes, TreeCodec.encode(TreeCodec.decode(ByteBuffer.wrap(bytes), new ExpressionFactory()))));
+    }
+
+    @Test
+    public void decodesWithGivenFactory() throws Exception {
+        ExpressionFactory factory = new ExpressionFactory();
+        Expression exp = factory.print(factory.binOp(Op.ADD, factory.var("x"), factory.value(IntVal.of(1))));
+        // the decoded nodes are the ones the factory already handed out
+        assertSame(exp, TreeCodec.decode(ByteBuffer.wrap(TreeCodec.encode(exp)), factory));
+    }
+
+    @Test
+    public void rejectsTrailingBytes() throws Exception {
+        byte[] bytes = TreeCodec.encode(parse("print(1);"));
+        ByteBuffer in = ByteBuffer.allocate(bytes.length + 1).put(bytes).put((byte) 0);
+        in.flip();
+        try {
+            TreeCodec.decode(in, new ExpressionFactory());
+            throw new AssertionError("decoded trailing bytes");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Trailing bytes after tree", e.getMessage());
+        }
+    }
+}
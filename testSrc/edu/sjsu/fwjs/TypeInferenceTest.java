@@ -0,0 +1,80 @@
+package edu.sjsu.fwjs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TypeInferenceTest {
+
+    /**
+     * Compiles a script like Interpreter.main and returns the type errors
+     * -typecheck would report.
+     */
+    private static List<String> check(String script) throws Exception {
+        List<String> errors = new ArrayList<String>();
+        compile(script, errors);
+        return errors;
+    }
+
+    private static Expression compile(String script, List<String> errors) throws Exception {
+        ExpressionFactory factory = new ExpressionFactory();
+        Expression prog = Interpreter.parse(script.getBytes(StandardCharsets.UTF_8), factory);
+        prog = Optimizer.standard().optimize(prog);
+        return Interpreter.resolve(prog, factory, errors);
+    }
+
+    /**
+     * The first binary operation inside the function of a var declaration.
+     */
+    private static BinOpExpr operationIn(Expression exp) {
+        if (exp instanceof BinOpExpr) {
+            return (BinOpExpr) exp;
+        } else if (exp instanceof SeqExpr) {
+            BinOpExpr b = operationIn(((SeqExpr) exp).getE1());
+            return b != null ? b : operationIn(((SeqExpr) exp).getE2());
+        } else if (exp instanceof VarDeclExpr) {
+            return operationIn(((VarDeclExpr) exp).getExp());
+        } else if (exp instanceof FunctionDeclExpr) {
+            return operationIn(((FunctionDeclExpr) exp).getBody());
+        }
+        return null;
+    }
+
+    @Test
+    public void reportsOperandsOfWrongType() throws Exception {
+        assertEquals(Arrays.asList("top level: Type error in binary operation: ADD of bool and int"),
+                check("print(true + 1);"));
+    }
+
+    @Test
+    public void reportsConditionInFunction() throws Exception {
+        assertEquals(Arrays.asList("f@1:9: Condition in if expression must be a boolean"),
+                check("var f = function(n) { if (n) { 1; } else { 2; } };\nf(3);\n"));
+    }
+
+    @Test
+    public void parameterFromTwoCallSites() throws Exception {
+        List<String> errors = new ArrayList<String>();
+        Expression prog = compile("var add = function(a, b) { a + b; };\n"
+                + "print(add(1, 2));\nprint(add(3, 4));\n", errors);
+        assertEquals(new ArrayList<String>(), errors);
+        BinOpExpr b = operationIn(prog);
+        assertSame(BinOpNode.forInts(Op.ADD), b.getNode());
+    }
+
+    @Test
+    public void mixedCallSitesAreNotReported() throws Exception {
+        List<String> errors = new ArrayList<String>();
+        Expression prog = compile("var eq = function(a, b) { a == b; };\n"
+                + "print(eq(1, 2));\nprint(eq(true, false));\n", errors);
+        assertEquals(new ArrayList<String>(), errors);
+        // neither int nor bool is proven, so the site learns its types at run time
+        assertSame(BinOpNode.UNINITIALIZED, operationIn(prog).getNode());
+    }
+}